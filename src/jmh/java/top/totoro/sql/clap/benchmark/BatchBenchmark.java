@@ -0,0 +1,48 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.totoro.sql.clap.SQLBatch;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批处理插入的吞吐量，每次插入batchSize个新数据并等待写入完成。
+ * 每轮迭代使用一个空表，表的大小只随这一轮的插入次数增长。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    private BenchService service;
+    private SQLBatch<BenchBean> batch;
+    private int nextIndex;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        service = BenchData.service(0);
+        batch = new SQLBatch<>(service);
+        nextIndex = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        BenchData.release(service);
+    }
+
+    @Benchmark
+    public boolean insertBatch() {
+        List<BenchBean> beans = BenchData.beans(nextIndex, batchSize);
+        nextIndex += batchSize;
+        return BenchData.insertBatch(batch, beans);
+    }
+}
@@ -0,0 +1,35 @@
+package top.totoro.sql.clap.benchmark;
+
+import top.totoro.sql.clap.SQLBean;
+
+/**
+ * 基准测试使用的数据实体，字段的数量和长度接近常见的客户端数据。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class BenchBean extends SQLBean {
+    String name;
+    int count;
+    long time;
+
+    public BenchBean(String key, String name, int count, long time) {
+        this.key = key;
+        this.name = name;
+        this.count = count;
+        this.time = time;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean isSame(Object another) {
+        return true;
+    }
+}
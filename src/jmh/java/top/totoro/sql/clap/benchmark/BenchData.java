@@ -0,0 +1,118 @@
+package top.totoro.sql.clap.benchmark;
+
+import top.totoro.sql.clap.SQLBatch;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 生成基准测试的数据，使用固定的随机数种子，每次运行生成的数据完全相同，不同版本之间的结果可以直接比较。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class BenchData {
+    public static final long SEED = 20200626L;
+    public static final String TABLE = "bench";
+    private static final long baseTime = 1593180000000L;
+
+    private BenchData() {
+    }
+
+    /**
+     * @return 第index个主键，长度固定，字符串顺序和index的顺序一致
+     */
+    public static String key(int index) {
+        String digits = Integer.toString(index);
+        StringBuilder key = new StringBuilder("k");
+        for (int i = digits.length(); i < 9; i++) {
+            key.append('0');
+        }
+        return key.append(digits).toString();
+    }
+
+    /**
+     * 生成主键从first开始的连续count个数据。
+     */
+    public static List<BenchBean> beans(int first, int count) {
+        Random random = new Random(SEED + first);
+        List<BenchBean> beans = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            beans.add(bean(i, random));
+        }
+        return beans;
+    }
+
+    static BenchBean bean(int index, Random random) {
+        char[] name = new char[8 + random.nextInt(24)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new BenchBean(key(index), new String(name), random.nextInt(100), baseTime + random.nextInt(86400000));
+    }
+
+    /**
+     * 按固定的顺序打乱[0, size)的下标，用于随机访问已经存在的数据。
+     */
+    public static int[] shuffledIndexes(int size) {
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        Random random = new Random(SEED);
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = indexes[i];
+            indexes[i] = indexes[j];
+            indexes[j] = t;
+        }
+        return indexes;
+    }
+
+    /**
+     * 创建一个新的数据库服务并写入size个数据，每次使用新的数据库目录，不受之前运行留下的数据影响。
+     */
+    public static BenchService service(int size) {
+        Log.debug(false);
+        BenchService service = new BenchService("bench-" + System.nanoTime());
+        service.createTable(TABLE);
+        if (size > 0 && !insertBatch(new SQLBatch<>(service), beans(0, size))) {
+            throw new IllegalStateException("prepare " + size + " rows failed");
+        }
+        return service;
+    }
+
+    /**
+     * 通过批处理插入数据并等待完成。
+     *
+     * @return 是否全部插入成功
+     */
+    public static boolean insertBatch(SQLBatch<BenchBean> batch, List<BenchBean> beans) {
+        CountDownLatch done = new CountDownLatch(1);
+        boolean[] result = {false};
+        if (!batch.insertBatch(TABLE, beans, respond -> {
+            result[0] = Boolean.TRUE.equals(respond);
+            done.countDown();
+        })) {
+            return false;
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return result[0];
+    }
+
+    /**
+     * 删除基准测试的表并关闭数据库服务。
+     */
+    public static void release(BenchService service) {
+        service.dropTable(TABLE);
+        service.close();
+    }
+}
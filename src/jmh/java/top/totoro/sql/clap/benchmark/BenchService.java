@@ -0,0 +1,28 @@
+package top.totoro.sql.clap.benchmark;
+
+import com.google.gson.Gson;
+import top.totoro.sql.clap.SQLService;
+
+/**
+ * 基准测试使用的数据库服务，使用json封装和解析数据行。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class BenchService extends SQLService<BenchBean> {
+    private static final Gson GSON = new Gson();
+
+    public BenchService(String dbName) {
+        super(dbName);
+    }
+
+    @Override
+    public String encoderRow(BenchBean bean) {
+        return GSON.toJson(bean);
+    }
+
+    @Override
+    public BenchBean decoderRow(String row) {
+        return GSON.fromJson(row, BenchBean.class);
+    }
+}
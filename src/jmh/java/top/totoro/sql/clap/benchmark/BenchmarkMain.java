@@ -0,0 +1,38 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试的入口，参数和JMH的命令行一致（例如 -h 查看帮助，PointBenchmark 只运行一类基准测试），
+ * 没有指定结果格式时把结果以json格式写入当前目录的jmh-result.json，用于和之前版本的结果比较。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class BenchmarkMain {
+    private static final String defaultResultFile = "jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        if (options.shouldList() || options.shouldListWithParams() || options.shouldListProfilers()
+                || options.shouldListResultFormats()) {
+            // 列出基准测试等信息时交给JMH处理
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+            if (!options.getResult().hasValue()) builder.result(defaultResultFile);
+        }
+        new Runner(builder.build()).run();
+    }
+}
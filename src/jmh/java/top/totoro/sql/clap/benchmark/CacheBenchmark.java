@@ -0,0 +1,103 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.totoro.sql.clap.SQLCache;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SQLCache}的命中和未命中路径，以及整个子表放入缓存。
+ * 缓存16个子表，每个子表100个数据，总数没有超过缓存的容量，测量过程中不会淘汰。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    private static final int shards = 16;
+    private static final int rowsPerShard = 100;
+
+    // SQLCache的读写方法只对子类开放
+    static final class Cache extends SQLCache<BenchBean> {
+        boolean put(String path, List<BenchBean> rows) {
+            return putToCaching(path, rows);
+        }
+
+        BenchBean get(String path, String key) {
+            return getInCaching(path, key);
+        }
+
+        List<BenchBean> getAll(String path) {
+            return getInCaching(path);
+        }
+    }
+
+    private Cache cache;
+    private String[] paths;
+    private List<List<BenchBean>> rows;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Log.debug(false);
+        cache = new Cache();
+        paths = new String[shards];
+        rows = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            paths[i] = "bench" + i + ".tab";
+            rows.add(BenchData.beans(i * rowsPerShard, rowsPerShard));
+            cache.put(paths[i], rows.get(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        // 清空缓存，退出时不会把基准测试的数据持久化到缓存文件中
+        for (String path : paths) {
+            cache.put(path, Collections.emptyList());
+        }
+    }
+
+    private int next() {
+        cursor = (cursor + 1) % (shards * rowsPerShard);
+        return cursor;
+    }
+
+    @Benchmark
+    public BenchBean hit() {
+        int index = next();
+        return cache.get(paths[index / rowsPerShard], BenchData.key(index));
+    }
+
+    /**
+     * 子表已经缓存，但是主键不在子表中。
+     */
+    @Benchmark
+    public BenchBean missKey() {
+        int index = next();
+        return cache.get(paths[index / rowsPerShard], BenchData.key(index + shards * rowsPerShard));
+    }
+
+    /**
+     * 子表没有缓存。
+     */
+    @Benchmark
+    public List<BenchBean> missShard() {
+        return cache.getAll("absent" + (next() % shards) + ".tab");
+    }
+
+    @Benchmark
+    public boolean putShard() {
+        int shard = next() % shards;
+        return cache.put(paths[shard], rows.get(shard));
+    }
+}
@@ -0,0 +1,58 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.totoro.sql.clap.uitl.Base64;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 数据行的封装和解析：{@link BenchService}的json编解码，以及写入表文件前后的{@link Base64}转换。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int rowCount = 1024;
+
+    private BenchService service;
+    private List<BenchBean> beans;
+    private String[] rows;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = BenchData.service(0);
+        beans = BenchData.beans(0, rowCount);
+        rows = new String[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            rows[i] = Base64.encode(service.encoderRow(beans.get(i)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.release(service);
+    }
+
+    private int next() {
+        cursor = (cursor + 1) & (rowCount - 1);
+        return cursor;
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base64.encode(service.encoderRow(beans.get(next())));
+    }
+
+    @Benchmark
+    public BenchBean decode() {
+        return service.decoderRow(Base64.decode(rows[next()]));
+    }
+}
@@ -0,0 +1,51 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import top.totoro.sql.clap.uitl.IDKit;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IDKit}生成id的开销，主键的哈希分表和有序表的主键都依赖它。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IDKitBenchmark {
+    private static final int keyCount = 1024;
+
+    private String[] keys;
+    private Date time;
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = BenchData.key(i);
+        }
+        time = new Date(1593180000000L);
+    }
+
+    private String nextKey() {
+        cursor = (cursor + 1) & (keyCount - 1);
+        return keys[cursor];
+    }
+
+    @Benchmark
+    public Long getUniqueID() {
+        return IDKit.getUniqueID(nextKey());
+    }
+
+    @Benchmark
+    public Long getUniqueIDWithTime() {
+        return IDKit.getUniqueIDWithTime(nextKey(), time);
+    }
+}
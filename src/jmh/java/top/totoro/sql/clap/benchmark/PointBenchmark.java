@@ -0,0 +1,83 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按主键的单行操作：查找（存在和不存在的主键）、插入、更新和删除。
+ * 表中预先写入tableSize个数据，按固定的打乱顺序访问，缓存命中率和实际使用时接近。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointBenchmark {
+    @Param({"1000", "10000"})
+    public int tableSize;
+
+    private BenchService service;
+    private int[] indexes;
+    private int cursor;
+    // 插入的新数据的下标，从2 * tableSize开始递增，不会和已有的数据以及查找的不存在的主键重复
+    private int insertIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = BenchData.service(tableSize);
+        indexes = BenchData.shuffledIndexes(tableSize);
+        insertIndex = 2 * tableSize;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.release(service);
+    }
+
+    private int nextIndex() {
+        int index = indexes[cursor];
+        cursor = (cursor + 1) % indexes.length;
+        return index;
+    }
+
+    private String nextKey() {
+        return BenchData.key(nextIndex());
+    }
+
+    @Benchmark
+    public BenchBean selectByKey() {
+        return service.selectByKey(BenchData.TABLE, nextKey());
+    }
+
+    @Benchmark
+    public BenchBean selectAbsentKey() {
+        // 下标不小于tableSize的主键都不在表中
+        return service.selectByKey(BenchData.TABLE, BenchData.key(tableSize + nextIndex()));
+    }
+
+    @Benchmark
+    public boolean insert() {
+        int index = insertIndex++;
+        return service.insert(BenchData.TABLE, new BenchBean(BenchData.key(index), "insert", index, index));
+    }
+
+    @Benchmark
+    public boolean updateByKey() {
+        return service.updateByKey(BenchData.TABLE, new BenchBean(nextKey(), "update", cursor, cursor));
+    }
+
+    /**
+     * 删除一行数据后再插入回去，表的大小在测量过程中保持不变。
+     */
+    @Benchmark
+    public boolean deleteAndInsertByKey() {
+        String key = nextKey();
+        return service.deleteByKey(BenchData.TABLE, key)
+                && service.insert(BenchData.TABLE, new BenchBean(key, "reinsert", 0, 0));
+    }
+}
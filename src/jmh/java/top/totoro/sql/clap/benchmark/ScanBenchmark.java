@@ -0,0 +1,60 @@
+package top.totoro.sql.clap.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 遍历整个表的操作：按条件查找、查找全部和按条件更新。
+ * 缓存最多保存2048个数据，较大的表大部分子表需要从文件读取。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int tableSize;
+
+    private BenchService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = BenchData.service(tableSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.release(service);
+    }
+
+    /**
+     * 大约1%的数据满足条件。
+     */
+    @Benchmark
+    public List<BenchBean> selectByCondition() {
+        return service.selectByCondition(BenchData.TABLE, bean -> bean.count == 42);
+    }
+
+    @Benchmark
+    public List<BenchBean> selectAll() {
+        return service.selectAll(BenchData.TABLE);
+    }
+
+    /**
+     * 大约1%的数据被更新，修改的值每次相同，表的内容在测量过程中不变。
+     */
+    @Benchmark
+    public boolean updateByCondition() {
+        return service.updateByCondition(BenchData.TABLE, bean -> bean.count == 42, bean -> {
+            bean.name = "scan";
+            return bean;
+        });
+    }
+}
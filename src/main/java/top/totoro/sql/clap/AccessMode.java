@@ -0,0 +1,12 @@
+package top.totoro.sql.clap;
+
+/**
+ * 数据库服务访问数据库目录的方式，同一个数据库目录同时只能有一个写入的进程，可以有多个只读的进程。
+ */
+public enum AccessMode {
+    /* 数据库的访问方式 */
+    // 读写，持有数据库的写入锁，其它进程已经持有时只能只读
+    READ_WRITE,
+    // 只读，写入操作都会失败，读取时发现写入进程修改了的子表并重新加载
+    READ_ONLY,
+}
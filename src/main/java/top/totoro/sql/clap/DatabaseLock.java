@@ -0,0 +1,228 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 多个进程访问同一个数据库目录时的协调，一个数据库同时只有一个写入进程，可以有多个只读进程。
+ * <ul>
+ * <li>db.lock：写入进程在关闭服务之前一直持有这个文件的排他锁</li>
+ * <li>db.meta：保存数据库的版本号（generation），写入进程每次提交写入都会增加，只读进程比较版本号发现修改</li>
+ * </ul>
+ * 写入进程提交时持有db.meta中版本号区域的排他锁，并把版本号加1变成奇数，提交完成后再加1变成偶数并释放锁；
+ * 只读进程读到奇数时通过这个区域的共享锁等待提交完成，所以不会在多个子表一起提交的中间开始读取。
+ * 版本号通过内存映射读取，没有修改时只读进程每次操作只需要读取一次内存。
+ * 同一个进程中访问同一个数据库目录的所有服务共享一个实例。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+final class DatabaseLock implements Closeable {
+    private static final String TAG = "DatabaseLock";
+    private static final String lockFileName = "db.lock";
+    private static final String metaFileName = "db.meta";
+    private static final byte[] MAGIC = {'C', 'L', 'A', 'P'};
+    private static final int GENERATION_OFFSET = 8;
+    private static final int META_SIZE = 16;
+    // 进程中打开的数据库目录 -> 实例
+    private static final Map<String, DatabaseLock> opened = new HashMap<>();
+
+    private final String path;
+    private final File dbDir;
+    private final FileChannel metaChannel;
+    private final MappedByteBuffer meta;
+    private int refs = 0;
+    // 写入锁和持有写入锁的服务数量
+    private FileChannel lockChannel;
+    private FileLock writeLock;
+    private int writers = 0;
+    // 进程中正在提交的写入数量和持有的版本号区域的锁
+    private int commits = 0;
+    private FileLock commitLock;
+
+    private DatabaseLock(String path, File dbDir) throws IOException {
+        this.path = path;
+        this.dbDir = dbDir;
+        if (!dbDir.exists() && !dbDir.mkdirs()) throw new IOException("can not create " + dbDir);
+        metaChannel = FileChannel.open(new File(dbDir, metaFileName).toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        boolean created = metaChannel.size() < META_SIZE;
+        meta = metaChannel.map(FileChannel.MapMode.READ_WRITE, 0, META_SIZE);
+        if (created) {
+            for (int i = 0; i < MAGIC.length; i++) {
+                meta.put(i, MAGIC[i]);
+            }
+        }
+    }
+
+    /**
+     * 打开数据库目录的协调，同一个进程中重复打开得到同一个实例，需要和{@link #close()}成对调用。
+     */
+    static DatabaseLock open(File dbDir) throws IOException {
+        String path = dbDir.getCanonicalPath();
+        synchronized (opened) {
+            DatabaseLock lock = opened.get(path);
+            if (lock == null) {
+                lock = new DatabaseLock(path, dbDir);
+                opened.put(path, lock);
+            }
+            lock.refs++;
+            return lock;
+        }
+    }
+
+    /**
+     * 获取数据库的写入锁，同一个进程中的多个服务共享写入锁。
+     *
+     * @return 是否获取成功，其它进程已经持有时为false
+     */
+    synchronized boolean acquireWrite() {
+        if (writeLock == null) {
+            try {
+                lockChannel = FileChannel.open(new File(dbDir, lockFileName).toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                writeLock = lockChannel.tryLock();
+            } catch (IOException | OverlappingFileLockException e) {
+                Log.w(TAG, "lock " + path + " for writing failed: " + e);
+            }
+            if (writeLock == null) {
+                closeLockChannel();
+                return false;
+            }
+            // 上一个写入进程在提交的中间退出了，版本号停在奇数
+            long generation = meta.getLong(GENERATION_OFFSET);
+            if ((generation & 1) != 0) meta.putLong(GENERATION_OFFSET, generation + 1);
+        }
+        writers++;
+        return true;
+    }
+
+    synchronized void releaseWrite() {
+        if (writers == 0 || --writers > 0) return;
+        try {
+            writeLock.release();
+        } catch (IOException e) {
+            Log.w(TAG, "release write lock of " + path + " failed: " + e);
+        }
+        writeLock = null;
+        closeLockChannel();
+    }
+
+    private void closeLockChannel() {
+        if (lockChannel == null) return;
+        try {
+            lockChannel.close();
+        } catch (IOException ignored) {
+        }
+        lockChannel = null;
+    }
+
+    /**
+     * @return 数据库当前的版本号，奇数表示正在提交
+     */
+    synchronized long generation() {
+        return meta.getLong(GENERATION_OFFSET);
+    }
+
+    /**
+     * 开始提交写入，需要和{@link #endCommit()}成对调用，进程中同时提交的写入共享一次版本号的变化。
+     */
+    synchronized void beginCommit() {
+        if (commits++ > 0) return;
+        try {
+            commitLock = metaChannel.lock(GENERATION_OFFSET, 8, false);
+        } catch (IOException e) {
+            Log.w(TAG, "lock generation of " + path + " failed: " + e);
+        }
+        meta.putLong(GENERATION_OFFSET, meta.getLong(GENERATION_OFFSET) + 1);
+    }
+
+    synchronized void endCommit() {
+        if (--commits > 0) return;
+        meta.putLong(GENERATION_OFFSET, meta.getLong(GENERATION_OFFSET) + 1);
+        if (commitLock != null) {
+            try {
+                commitLock.release();
+            } catch (IOException e) {
+                Log.w(TAG, "unlock generation of " + path + " failed: " + e);
+            }
+            commitLock = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * 等待正在进行的提交完成。
+     *
+     * @return 没有正在提交时的版本号
+     */
+    long awaitGeneration() {
+        while (true) {
+            synchronized (this) {
+                long generation = meta.getLong(GENERATION_OFFSET);
+                if ((generation & 1) == 0) return generation;
+                if (commits > 0) {
+                    // 同一个进程中的写入正在提交
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return generation;
+                    }
+                    continue;
+                }
+            }
+            // 其它进程正在提交，持有共享锁时写入进程无法开始提交，版本号仍然是奇数说明写入进程在提交的中间退出了
+            FileLock shared = null;
+            try {
+                shared = metaChannel.lock(GENERATION_OFFSET, 8, true);
+                return generation();
+            } catch (OverlappingFileLockException e) {
+                // 同一个进程中的写入刚开始提交
+                Thread.yield();
+            } catch (IOException e) {
+                Log.w(TAG, "wait commit of " + path + " failed: " + e);
+                return generation();
+            } finally {
+                release(shared);
+            }
+        }
+    }
+
+    private void release(FileLock lock) {
+        if (lock == null) return;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Log.w(TAG, "unlock generation of " + path + " failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (opened) {
+            if (--refs > 0) return;
+            opened.remove(path);
+        }
+        synchronized (this) {
+            while (writers > 0) {
+                releaseWrite();
+            }
+            try {
+                metaChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close " + path + " failed: " + e);
+            }
+        }
+    }
+}
@@ -1,19 +1,17 @@
 package top.totoro.sql.clap;
 
-import top.totoro.sql.clap.batch.BatchMode;
-import top.totoro.sql.clap.batch.BatchTask;
-import top.totoro.sql.clap.batch.ThenTask;
+import top.totoro.sql.clap.batch.*;
+import top.totoro.sql.clap.metrics.LatencyHistogram;
 import top.totoro.sql.clap.uitl.Log;
 
 import java.io.File;
-import java.io.Serializable;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 数据库的批处理能力，根据自己项目的需要进行使用，默认是不会使用批处理执行数据库操作的。
+ * 同一个数据库服务的所有批处理共享服务的执行环境{@link BatchContext}，
+ * 每个表的批处理提交都需要先进入表的有界队列{@link BatchQueue}，队列满时按{@link BatchPolicy}处理。
  * 创建时间 2020/7/15
  *
  * @author dragon
@@ -34,30 +32,41 @@ public class SQLBatch<Bean extends SQLBean> {
         this.sqlService = sqlService;
     }
 
-    // 使用机器的处理器数量创建计划执行的的服务
-    public static final ScheduledExecutorService SCHEDULED_EXECUTOR
-            = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
-    // 存储当前存在的所有批处理对象优先级集合，执行批处理任务时需要根据优先级执行
-    /* changed by dragon 2020/07/18 增加一级map，用来区分不同表的批处理任务，使得各个表之间的任务执行优先级不受影响 */
-    public static final Map<String, HashMap<BatchMode, LinkedList<BatchTask<? extends Serializable>>>> BATCH_PRIORITY_MAP
-            = new ConcurrentHashMap<>();
-    // 当前可再利用的批处理空对象
-    public static final Map<BatchMode, List<BatchTask<? extends Serializable>>> BATCH_AVAILABLE_MAP
-            = new ConcurrentHashMap<>();
-
-    private synchronized BatchTask<?> obtain(BatchMode mode, Class<?> respondType) {
-        List<BatchTask<?>> batchTaskList = BATCH_AVAILABLE_MAP.computeIfAbsent(mode, key -> new ArrayList<>());
-        for (BatchTask<?> batchTask : batchTaskList) {
-            if (batchTask != null
-                    && batchTask.isTaskEnd()
-                    && batchTask.getRespond().getClass().isAssignableFrom(respondType)) {
-                batchTask.setTaskEnd(false);
-                batchTaskList.remove(batchTask);
-                Log.d(this, "obtain mode = " + mode);
-                return batchTask;
-            }
-        }
-        return new BatchTask<>(mode);
+    // 数据库服务的批处理执行环境，服务切换执行方式后会是新的执行环境
+    private BatchContext context() {
+        return sqlService.getBatchContext();
+    }
+
+    private BatchTask<?> obtain(BatchMode mode, Class<?> respondType) {
+        return context().obtain(mode, respondType);
+    }
+
+    /**
+     * 设置所有表的提交队列的容量和队列满时的策略。
+     *
+     * @param capacity     每个表同时存在的批处理的最大数量
+     * @param policy       队列已满时的策略
+     * @param blockTimeout BLOCK策略下最多等待的时间（ms），不大于0时一直等待
+     */
+    public void setQueueConfig(int capacity, BatchPolicy policy, long blockTimeout) {
+        context().setQueueConfig(capacity, policy, blockTimeout);
+    }
+
+    /**
+     * 获取表的提交队列，可以单独修改表的队列配置，或者观察队列的深度和等待时间。
+     *
+     * @param tableName 表名
+     * @return 表的提交队列
+     */
+    public BatchQueue getQueue(String tableName) {
+        return context().getQueue(tableName);
+    }
+
+    /**
+     * @return 所有表的提交队列
+     */
+    public Map<String, BatchQueue> getQueues() {
+        return Collections.unmodifiableMap(context().getQueues());
     }
 
     /**
@@ -65,11 +74,13 @@ public class SQLBatch<Bean extends SQLBean> {
      *
      * @param tableName     表名
      * @param beansToInsert 需要批量插入的数据
-     * @param thenTask      写入一次文件后需要执行的任务
+     * @param thenTask      所有数据写入文件后需要执行的任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
      */
-    public void insertBatch(String tableName, List<Bean> beansToInsert, ThenTask<Boolean> thenTask) {
-        long batchStart = new Date().getTime();
-        final BatchTask<Boolean> insertTask = new BatchTask<>(tableName, () -> {
+    public boolean insertBatch(String tableName, List<Bean> beansToInsert, ThenTask<Boolean> thenTask) {
+        BatchGroup group = enterGroup(tableName, "insert", thenTask);
+        if (group == null) return false;
+        final BatchTask<Boolean> insertTask = new BatchTask<>(context(), tableName, () -> {
             Log.d(TAG, "INSERT BATCH");
             // 0)先对所有的bean分表，同一个表的插入只需要一次IO
             Map<File, List<Bean>> batchSubTables = new HashMap<>();
@@ -82,21 +93,18 @@ public class SQLBatch<Bean extends SQLBean> {
                 }
                 batchSubTables.computeIfAbsent(subTableFile, key -> new ArrayList<>()).add(bean);
             }
-            int size = batchSubTables.size() - 1;
             // 1)创建每个分表的批处理任务
             batchSubTables.forEach((file, beans) -> {
                 BatchTask<Boolean> task = (BatchTask<Boolean>) obtain(BatchMode.INSERT, Boolean.class);
                 task.setTableName(tableName);
                 task.setTask(() -> sqlService.insert(tableName, file, beans));
-                task.start().then(null);
+                group.fork(task);
             });
             return true;
         }, BatchMode.INSERT, 0);
         // 2)开始执行批处理任务
-        insertTask.start().then(respond -> {
-            Log.d(TAG, "batch insert time = " + (new Date().getTime() - batchStart) + "ms");
-            thenTask.then(respond);
-        });
+        insertTask.start().then(group);
+        return true;
     }
 
     /**
@@ -106,42 +114,145 @@ public class SQLBatch<Bean extends SQLBean> {
      * @param condition 自定义更新条件
      * @param operation 匹配更新条件的数据操作
      * @param thenTask  更新结束后的后续任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
      */
-    public void updateBatch(String tableName, SQLService.Condition<Bean> condition,
-                            SQLService.Operation<Bean> operation, ThenTask<Boolean> thenTask) {
-        long batchStart = new Date().getTime();
-        final BatchTask<Boolean> selectTask = new BatchTask<>(tableName, () -> {
+    public boolean updateBatch(String tableName, SQLService.Condition<Bean> condition,
+                               SQLService.Operation<Bean> operation, ThenTask<Boolean> thenTask) {
+        BatchGroup group = enterGroup(tableName, "update", thenTask);
+        if (group == null) return false;
+        final BatchTask<Boolean> selectTask = new BatchTask<>(context(), tableName, () -> {
             Log.d(TAG, "UPDATE BATCH");
             // 0)查找所有的子表文件
             File[] allSubTableFiles = sqlService.getAllSubTableFile(tableName);
             if (allSubTableFiles == null) return false;
-            // 1)从每个子表文件中找出匹配更新条件的bean，并执行更新操作
+            // 1)从每个子表文件中找出存在匹配更新条件的bean的子表
             for (int i = 0; i < allSubTableFiles.length; i++) {
                 File subTableFile = allSubTableFiles[i];
                 List<Bean> subTableBeans = sqlService.getTableFileBeans(subTableFile);
-                List<Bean> acceptBeans = new ArrayList<>();
+                boolean hasAccepted = false;
                 for (Bean bean : subTableBeans) {
                     if (condition.accept(bean)) {
-                        operation.operate(bean);
-                        acceptBeans.add(bean);
+                        hasAccepted = true;
+                        break;
                     }
                 }
                 // 只有存在匹配的bean时才添加到待批处理的表中，避免创建大量空的批处理任务
-                if (!acceptBeans.isEmpty()) {
-                    // 2)为匹配更新条件的beans创建批处理任务
+                if (hasAccepted) {
+                    // 2)为子表创建批处理任务，任务执行时在子表的写入锁中重新查找并更新
                     BatchTask<Boolean> task = (BatchTask<Boolean>) obtain(BatchMode.UPDATE, Boolean.class);
                     task.setTableName(tableName);
                     task.setDelay(10);
-                    task.setTask(() -> sqlService.update(tableName, subTableFile, subTableBeans, acceptBeans));
-                    task.start().then(null);
+                    task.setTask(() -> sqlService.update(tableName, subTableFile, condition, operation));
+                    group.fork(task);
                 }
             }
             return true;
         }, BatchMode.SELECT, 10);
-        selectTask.start().then(respond -> {
-            Log.d(TAG, "batch update time = " + (new Date().getTime() - batchStart) + "ms");
-            thenTask.then(respond);
-        });
+        selectTask.start().then(group);
+        return true;
+    }
+
+    /**
+     * 批量插入或更新数据，主键不存在时插入，存在时替换，同一个子表的数据只触发一次文件写入。
+     * 这一批数据中主键相同的以最后一行为准。
+     *
+     * @param tableName     表名
+     * @param beansToUpsert 需要插入或更新的数据
+     * @param thenTask      所有数据写入文件后需要执行的任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
+     */
+    public boolean upsertBatch(String tableName, List<Bean> beansToUpsert, ThenTask<Boolean> thenTask) {
+        BatchGroup group = enterGroup(tableName, "upsert", thenTask);
+        if (group == null) return false;
+        final BatchTask<Boolean> upsertTask = new BatchTask<>(context(), tableName, () -> {
+            Log.d(TAG, "UPSERT BATCH");
+            // 0)先对所有的bean分表，同一个表的写入只需要一次IO
+            Map<File, List<Bean>> batchSubTables = new HashMap<>();
+            File subTableFile;
+            for (Bean bean : beansToUpsert) {
+                if (isEmpty(bean.getKey())) {
+                    subTableFile = sqlService.getSubTableFileOrCreate(tableName, null);
+                } else {
+                    subTableFile = sqlService.getSubTableFileOrCreate(tableName, sqlService.getKeyId(bean.getKey()));
+                }
+                batchSubTables.computeIfAbsent(subTableFile, key -> new ArrayList<>()).add(bean);
+            }
+            // 1)创建每个分表的批处理任务
+            batchSubTables.forEach((file, beans) -> {
+                BatchTask<Boolean> task = (BatchTask<Boolean>) obtain(BatchMode.UPDATE, Boolean.class);
+                task.setTableName(tableName);
+                task.setTask(() -> sqlService.upsert(tableName, file, beans));
+                group.fork(task);
+            });
+            return true;
+        }, BatchMode.UPDATE, 0);
+        // 2)开始执行批处理任务
+        upsertTask.start().then(group);
+        return true;
+    }
+
+    /**
+     * 按主键批量修改数据的部分字段，同一个子表的主键只触发一次文件读取和写入，不存在的主键被忽略。
+     *
+     * @param tableName 表名
+     * @param keys      需要修改的主键
+     * @param operation 接收当前数据行的副本，返回修改后的数据行，主键必须不变，返回null时不修改
+     * @param thenTask  所有修改写入文件后需要执行的任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
+     */
+    public boolean patchBatch(String tableName, Collection<String> keys,
+                              SQLService.Operation<Bean> operation, ThenTask<Boolean> thenTask) {
+        return mergeBatch(tableName, keys, operation, false, thenTask);
+    }
+
+    /**
+     * 按主键批量读取、修改并写入数据，主键不存在时operation收到null，可以创建新的数据行，
+     * 同一个子表的主键只触发一次文件读取和写入，适合批量更新计数。
+     *
+     * @param tableName 表名
+     * @param keys      需要修改的主键
+     * @param operation 接收当前数据行的副本（不存在时为null），返回新的数据行，主键必须不变，返回null时不修改
+     * @param thenTask  所有修改写入文件后需要执行的任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
+     */
+    public boolean upsertBatch(String tableName, Collection<String> keys,
+                               SQLService.Operation<Bean> operation, ThenTask<Boolean> thenTask) {
+        return mergeBatch(tableName, keys, operation, true, thenTask);
+    }
+
+    private boolean mergeBatch(String tableName, Collection<String> keys, SQLService.Operation<Bean> operation,
+                               boolean create, ThenTask<Boolean> thenTask) {
+        String name = create ? "upsert" : "patch";
+        BatchGroup group = enterGroup(tableName, name, thenTask);
+        if (group == null) return false;
+        final BatchTask<Boolean> mergeTask = new BatchTask<>(context(), tableName, () -> {
+            Log.d(TAG, () -> name.toUpperCase() + " BATCH");
+            // 0)先对所有的主键分表，同一个表的修改只需要一次IO
+            Map<File, Set<String>> batchSubTables;
+            if (create) {
+                batchSubTables = new HashMap<>();
+                for (String key : keys) {
+                    if (isEmpty(key)) continue;
+                    File subTableFile = sqlService.getSubTableFileOrCreate(tableName, sqlService.getKeyId(key));
+                    if (subTableFile != null) batchSubTables.computeIfAbsent(subTableFile, file -> new LinkedHashSet<>()).add(key);
+                }
+            } else {
+                // 不存在的子表中一定没有这些主键
+                batchSubTables = sqlService.groupKeysByShard(tableName, keys);
+                if (batchSubTables == null) return false;
+            }
+            // 1)创建每个分表的批处理任务
+            batchSubTables.forEach((file, shardKeys) -> {
+                BatchTask<Boolean> task = (BatchTask<Boolean>) obtain(BatchMode.UPDATE, Boolean.class);
+                task.setTableName(tableName);
+                task.setTask(() -> sqlService.patch(tableName, file, shardKeys, operation, create));
+                group.fork(task);
+            });
+            return true;
+        }, BatchMode.UPDATE, 0);
+        // 2)开始执行批处理任务
+        mergeTask.start().then(group);
+        return true;
     }
 
     /**
@@ -150,18 +261,26 @@ public class SQLBatch<Bean extends SQLBean> {
      * @param tableName 查询的数据表名
      * @param condition 自定义查询条件
      * @param thenTask  查询后的后续任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
      */
-    public void selectBatch(String tableName, SQLService.Condition<Bean> condition,
-                            ThenTask<ArrayList<Bean>> thenTask) {
+    public boolean selectBatch(String tableName, SQLService.Condition<Bean> condition,
+                               ThenTask<ArrayList<Bean>> thenTask) {
+        BatchQueue queue = context().getQueue(tableName);
+        if (!queue.enter()) {
+            Log.w(TAG, "select batch of " + tableName + " discarded, queue is full");
+            return false;
+        }
         long batchStart = new Date().getTime();
-        final BatchTask<ArrayList<Bean>> selectTask = new BatchTask<>(tableName, () -> {
+        final BatchTask<ArrayList<Bean>> selectTask = new BatchTask<>(context(), tableName, () -> {
             Log.d(TAG, "SELECT BATCH");
             return sqlService.selectByCondition(tableName, condition);
         }, BatchMode.SELECT, 5);
         selectTask.start().then(respond -> {
-            Log.d(TAG, "batch select time = " + (new Date().getTime() - batchStart) + "ms");
-            thenTask.then(respond);
+            queue.leave();
+            Log.d(TAG, () -> "batch select time = " + (new Date().getTime() - batchStart) + "ms");
+            if (thenTask != null) thenTask.then(respond);
         });
+        return true;
     }
 
     /**
@@ -170,47 +289,98 @@ public class SQLBatch<Bean extends SQLBean> {
      * @param tableName 删除数据的表名
      * @param condition 自定义删除条件
      * @param thenTask  删除结束后的后续任务
+     * @return 是否提交成功，DISCARD策略下队列已满时返回false
      */
-    public void deleteBatch(String tableName, SQLService.Condition<Bean> condition,
-                            ThenTask<Boolean> thenTask) {
-        long batchStart = new Date().getTime();
-        final BatchTask<Boolean> deleteTask = new BatchTask<>(tableName, () -> {
+    public boolean deleteBatch(String tableName, SQLService.Condition<Bean> condition,
+                               ThenTask<Boolean> thenTask) {
+        BatchGroup group = enterGroup(tableName, "delete", thenTask);
+        if (group == null) return false;
+        final BatchTask<Boolean> deleteTask = new BatchTask<>(context(), tableName, () -> {
             Log.d(TAG, "DELETE BATCH");
             // 0)查找所有的子表文件
             File[] allSubTableFiles = sqlService.getAllSubTableFile(tableName);
             if (allSubTableFiles == null) return false;
-            // 1)从每个子表文件中找出匹配更新条件的bean，并执行更新操作
+            // 1)从每个子表文件中找出存在匹配删除条件的bean的子表
             for (int i = 0; i < allSubTableFiles.length; i++) {
                 File subTableFile = allSubTableFiles[i];
                 List<Bean> subTableBeans = sqlService.getTableFileBeans(subTableFile);
-                List<Bean> acceptBeans = new ArrayList<>();
+                boolean hasAccepted = false;
                 for (Bean bean : subTableBeans) {
                     if (condition.accept(bean)) {
-                        acceptBeans.add(bean);
+                        hasAccepted = true;
+                        break;
                     }
                 }
                 // 只有存在匹配的bean时才添加到待批处理的表中，避免创建大量空的批处理任务
-                if (!acceptBeans.isEmpty()) {
-                    for (Bean acceptBean : acceptBeans) {
-                        subTableBeans.remove(acceptBean);
-                    }
-                    // 2)为匹配删除条件的beans创建批处理任务
+                if (hasAccepted) {
+                    // 2)为子表创建批处理任务，任务执行时在子表的写入锁中重新查找并删除
                     BatchTask<Boolean> task = (BatchTask<Boolean>) obtain(BatchMode.DELETE, Boolean.class);
                     task.setTableName(tableName);
-                    task.setTask(() -> sqlService.delete(subTableFile, subTableBeans, acceptBeans));
-                    task.start().then(null);
+                    task.setTask(() -> sqlService.delete(tableName, subTableFile, condition));
+                    group.fork(task);
                 }
             }
             return true;
         }, BatchMode.DELETE, 0);
         // 3)执行批处理任务
-        deleteTask.start().then(respond -> {
-            Log.d(TAG, "batch delete time = " + (new Date().getTime() - batchStart) + "ms");
-            thenTask.then(respond);
-        });
+        deleteTask.start().then(group);
+        return true;
+    }
+
+    /**
+     * 进入表的提交队列，并创建等待所有子任务结束的批处理组。
+     *
+     * @return 批处理组，DISCARD策略下队列已满时返回null
+     */
+    private BatchGroup enterGroup(String tableName, String name, ThenTask<Boolean> thenTask) {
+        BatchQueue queue = context().getQueue(tableName);
+        if (!queue.enter()) {
+            Log.w(TAG, name + " batch of " + tableName + " discarded, queue is full");
+            return null;
+        }
+        return new BatchGroup(queue, name, sqlService.getMetrics().histogram("batch." + name), thenTask);
     }
 
     private boolean isEmpty(String s) {
         return s == null || s.equals("");
     }
+
+    /**
+     * 一次批处理的所有任务，包括拆分数据的主任务和每个子表的子任务。
+     * 所有任务都执行结束后才离开提交队列并执行后续任务，
+     * 这样队列深度反映的是真正还占用着内存的批处理数量。
+     */
+    private static class BatchGroup implements ThenTask<Boolean> {
+        private final BatchQueue queue;
+        private final String name;
+        // 批处理从进入队列到所有任务结束的耗时
+        private final LatencyHistogram latency;
+        private final ThenTask<Boolean> thenTask;
+        private final long batchStart = System.nanoTime();
+        // 主任务本身也算一个未结束的任务
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean result = true;
+
+        BatchGroup(BatchQueue queue, String name, LatencyHistogram latency, ThenTask<Boolean> thenTask) {
+            this.queue = queue;
+            this.name = name;
+            this.latency = latency;
+            this.thenTask = thenTask;
+        }
+
+        void fork(BatchTask<Boolean> task) {
+            pending.incrementAndGet();
+            task.start().then(this);
+        }
+
+        @Override
+        public void then(Boolean respond) {
+            if (!Boolean.TRUE.equals(respond)) result = false;
+            if (pending.decrementAndGet() > 0) return;
+            queue.leave();
+            latency.recordSince(batchStart);
+            Log.d(TAG, () -> "batch " + name + " time = " + (System.nanoTime() - batchStart) / 1000000 + "ms");
+            if (thenTask != null) thenTask.then(result);
+        }
+    }
 }
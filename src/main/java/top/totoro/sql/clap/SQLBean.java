@@ -15,6 +15,45 @@ public abstract class SQLBean implements Serializable {
      */
     public String key;
 
+    /**
+     * 数据行的过期时间（ms），0表示不过期。
+     * 记录在子表文件的数据行中，不属于数据行的内容，所以不会被序列化。
+     */
+    private transient long expireAt;
+
+    /**
+     * @return 数据行的过期时间（ms），0表示不过期
+     */
+    public long getExpireAt() {
+        return expireAt;
+    }
+
+    /**
+     * 设置数据行的过期时间，写入时生效，过期之后查询不到，并且会被后台清理。
+     * 没有设置时使用表的TTL（{@link SQLService#setTableTTL}）。
+     *
+     * @param expireAt 过期时间（ms），0表示不过期
+     */
+    public void setExpireAt(long expireAt) {
+        this.expireAt = expireAt;
+    }
+
+    /**
+     * 设置数据行从现在开始的存活时间。
+     *
+     * @param ttl 存活时间（ms）
+     */
+    public void setTTL(long ttl) {
+        this.expireAt = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @return 在now时数据行是否已经过期
+     */
+    public boolean isExpired(long now) {
+        return expireAt != 0 && expireAt <= now;
+    }
+
     /**
      * 不需要使用分表的话可以不实现该方法，
      * 主要是防止当需要使用json格式存储时，
@@ -0,0 +1,413 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.metrics.Tracer;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 批量导入数据，用于初始化表等一次写入大量数据的场景。
+ * 和{@link SQLBatch#insertBatch}逐行判断重复不同，导入的数据先按子表分组，每个子表按主键排序并去重，
+ * 所有数据都分组完成后每个子表只读取和写入一次，索引、布隆过滤器和变更日志在写入子表时一起更新。
+ * 解析数据行和计算子表在批处理的线程池中并行执行，不同的子表也并行写入。
+ * 内存中的数据行超过预算时，每个子表的数据按主键排序后写入临时文件，写入子表时再和子表已有的数据归并，
+ * 所以写入时同时只需要在内存中保存正在写入的子表的数据。
+ * 主键相同的数据行只保留最后导入的一行，并替换表中已有的主键相同的数据行；没有主键的数据行都会保留。
+ * <pre>
+ * 命令行导入：java top.totoro.sql.clap.SQLBulkLoader 服务类名 数据库名 表名 数据文件...
+ * </pre>
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class SQLBulkLoader<Bean extends SQLBean> {
+    private static final String TAG = "SQLBulkLoader";
+    // 并行解析和分组的一批数据行的数量
+    private static final int chunkSize = 8192;
+    // 一批数据行分成多少份并行处理
+    private static final int chunkSlices = 16;
+
+    private final SQLService<Bean> sqlService;
+    // 内存中最多保存的数据行数量，超过时写入临时文件
+    private int memoryBudget = 1000000;
+    private File tempDir = new File(System.getProperty("java.io.tmpdir"));
+    private final Comparator<Bean> byKey = Comparator.comparing(SQLBean::getKey, Comparator.nullsLast(Comparator.<String>naturalOrder()));
+
+    /**
+     * @param sqlService 导入数据的数据库服务
+     */
+    public SQLBulkLoader(SQLService<Bean> sqlService) {
+        this.sqlService = sqlService;
+    }
+
+    /**
+     * 设置内存中最多保存的数据行数量，默认是1000000，超过时按子表排序后写入临时文件。
+     *
+     * @param rows 数据行的数量
+     */
+    public void setMemoryBudget(int rows) {
+        assert rows > 0;
+        memoryBudget = rows;
+    }
+
+    public int getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * 设置超过内存预算时保存临时文件的目录，默认是系统的临时目录。
+     */
+    public void setTempDir(File tempDir) {
+        assert tempDir != null;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * 导入数据行。
+     *
+     * @param tableName 导入的表名，表需要已经创建
+     * @param rows      导入的数据行
+     * @return 导入的数据行数量（包括被去重的），失败时为-1
+     */
+    public long load(String tableName, Iterator<? extends Bean> rows) {
+        return load(tableName, rows, row -> row);
+    }
+
+    /**
+     * 导入文件中的数据行，每一行是{@link SQLService#encoderRow}编码的一行数据，空行会被忽略，
+     * 文件名以".gz"结尾时按gzip解压，可以直接导入{@link SQLService#export(String, File)}导出的文件。
+     *
+     * @param tableName 导入的表名，表需要已经创建
+     * @param file      UTF-8编码的数据文件
+     * @return 导入的数据行数量（包括被去重的），失败时为-1
+     */
+    public long load(String tableName, File file) {
+        try (InputStream in = file.getName().endsWith(".gz")
+                ? new GZIPInputStream(new FileInputStream(file), 64 * 1024) : new FileInputStream(file);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            Iterator<String> lines = reader.lines().filter(line -> !line.trim().isEmpty()).iterator();
+            return load(tableName, lines, sqlService::decoderRow);
+        } catch (IOException | UncheckedIOException e) {
+            Log.e(TAG, "load " + file + " into " + tableName + " failed: " + e);
+            return -1;
+        }
+    }
+
+    private <T> long load(String tableName, Iterator<T> source, Function<? super T, ? extends Bean> decoder) {
+        Tracer tracer = sqlService.getTracer();
+        tracer.begin("bulkLoad", tableName);
+        long start = System.nanoTime();
+        Load<T> load = new Load<>(tableName, decoder);
+        try {
+            if (sqlService.getAllSubTableFile(tableName) == null) {
+                Log.e(TAG, "load into " + tableName + " failed, because of no target table exist!");
+                return -1;
+            }
+            List<T> chunk = new ArrayList<>(chunkSize);
+            while (source.hasNext()) {
+                chunk.add(source.next());
+                if (chunk.size() == chunkSize) {
+                    if (!load.add(chunk)) return -1;
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty() && !load.add(chunk)) return -1;
+            if (!load.write()) return -1;
+            Log.d(TAG, () -> "load " + load.count + " rows into " + tableName
+                    + " cost time = " + (System.nanoTime() - start) / 1000000 + "ms");
+            return load.count;
+        } catch (UncheckedIOException e) {
+            Log.e(TAG, "load into " + tableName + " failed: " + e.getCause());
+            return -1;
+        } finally {
+            load.deleteRuns();
+            sqlService.getMetrics().histogram("sql.bulkLoad").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    // 一次导入的状态
+    private final class Load<T> {
+        private final String tableName;
+        private final Function<? super T, ? extends Bean> decoder;
+        // 子表序号 -> 子表导入的数据
+        private final Map<Integer, Shard> shards = new TreeMap<>();
+        private long count = 0;
+        // 内存中的数据行数量
+        private int buffered = 0;
+
+        Load(String tableName, Function<? super T, ? extends Bean> decoder) {
+            this.tableName = tableName;
+            this.decoder = decoder;
+        }
+
+        // 并行解析一批数据行并计算所在的子表，再按顺序分到每个子表中
+        @SuppressWarnings("unchecked")
+        boolean add(List<T> chunk) {
+            int size = chunk.size();
+            Object[] rows = new Object[size];
+            int[] shardIndexes = new int[size];
+            int slices = Math.min(chunkSlices, size);
+            sqlService.forEachShardParallel(slices, slice -> {
+                for (int i = slice * size / slices; i < (slice + 1) * size / slices; i++) {
+                    Bean row = decoder.apply(chunk.get(i));
+                    rows[i] = row;
+                    if (row != null) shardIndexes[i] = sqlService.getShardIndex(row.getKey());
+                }
+            });
+            for (int i = 0; i < size; i++) {
+                Bean row = (Bean) rows[i];
+                if (row == null) continue;
+                Shard shard = shards.get(shardIndexes[i]);
+                if (shard == null) {
+                    File tableFile = sqlService.getSubTableFileOrCreate(tableName, sqlService.getKeyId(row.getKey()));
+                    if (tableFile == null) return false;
+                    shard = new Shard(tableFile);
+                    shards.put(shardIndexes[i], shard);
+                }
+                shard.buffer.add(row);
+                count++;
+                buffered++;
+            }
+            if (buffered >= memoryBudget) {
+                List<Shard> spilling = new ArrayList<>(shards.values());
+                sqlService.forEachShardParallel(spilling.size(), i -> spilling.get(i).spill());
+                buffered = 0;
+            }
+            return true;
+        }
+
+        // 并行写入所有的子表
+        boolean write() {
+            List<Shard> writing = new ArrayList<>(shards.values());
+            AtomicBoolean success = new AtomicBoolean(true);
+            sqlService.forEachShardParallel(writing.size(), i -> {
+                Shard shard = writing.get(i);
+                if (!sqlService.load(tableName, shard.tableFile, shard::merge)) success.set(false);
+            });
+            return success.get();
+        }
+
+        void deleteRuns() {
+            for (Shard shard : shards.values()) {
+                for (File run : shard.runs) {
+                    run.delete();
+                }
+            }
+        }
+    }
+
+    // 一个子表导入的数据：内存中的数据行和按主键排序后写入临时文件的数据行
+    private final class Shard {
+        private final File tableFile;
+        private List<Bean> buffer = new ArrayList<>();
+        private final List<File> runs = new ArrayList<>();
+
+        Shard(File tableFile) {
+            this.tableFile = tableFile;
+        }
+
+        // 内存中的数据行按主键排序后写入临时文件
+        void spill() {
+            if (buffer.isEmpty()) return;
+            buffer.sort(byKey);
+            try {
+                File run = File.createTempFile("clap-load-", ".run", tempDir);
+                runs.add(run);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+                    for (Bean row : buffer) {
+                        out.writeBoolean(row.getKey() != null);
+                        if (row.getKey() != null) out.writeUTF(row.getKey());
+                        out.writeLong(row.getExpireAt());
+                        byte[] data = sqlService.encoderRow(row).getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(data.length);
+                        out.write(data);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer = new ArrayList<>();
+        }
+
+        /**
+         * 按主键归并子表已有的数据行、临时文件和内存中的数据行，得到子表新的内容。
+         * 主键相同时后导入的数据行替换之前的，所以按主键和导入顺序排序，保留主键相同的最后一行。
+         */
+        List<Bean> merge(List<Bean> exists) {
+            List<Source> sources = new ArrayList<>(runs.size() + 2);
+            try {
+                exists.sort(byKey);
+                sources.add(new MemorySource(0, exists));
+                for (File run : runs) {
+                    sources.add(new RunSource(sources.size(), run));
+                }
+                buffer.sort(byKey);
+                sources.add(new MemorySource(sources.size(), buffer));
+                PriorityQueue<Source> queue = new PriorityQueue<>(sources.size(), (a, b) -> {
+                    int compare = a.key == null ? (b.key == null ? 0 : 1) : b.key == null ? -1 : a.key.compareTo(b.key);
+                    return compare != 0 ? compare : Integer.compare(a.order, b.order);
+                });
+                for (Source source : sources) {
+                    if (source.advance()) queue.add(source);
+                }
+                List<Bean> rows = new ArrayList<>(exists.size() + buffer.size());
+                String lastKey = null;
+                while (!queue.isEmpty()) {
+                    Source source = queue.poll();
+                    String key = source.key;
+                    if (key != null && key.equals(lastKey)) {
+                        rows.set(rows.size() - 1, source.bean());
+                    } else {
+                        rows.add(source.bean());
+                    }
+                    lastKey = key;
+                    if (source.advance()) queue.add(source);
+                }
+                // 写入之后不再需要内存中的数据行
+                buffer = new ArrayList<>();
+                return rows;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                for (Source source : sources) {
+                    source.close();
+                }
+            }
+        }
+    }
+
+    // 按主键排序的一组数据行
+    private abstract class Source {
+        // 导入的顺序，主键相同时顺序大的替换顺序小的
+        final int order;
+        // 当前数据行的主键
+        String key;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        /**
+         * @return 是否还有数据行
+         */
+        abstract boolean advance() throws IOException;
+
+        /**
+         * @return 当前的数据行
+         */
+        abstract Bean bean();
+
+        void close() {
+        }
+    }
+
+    private final class MemorySource extends Source {
+        private final Iterator<Bean> iterator;
+        private Bean current;
+
+        MemorySource(int order, List<Bean> rows) {
+            super(order);
+            iterator = rows.iterator();
+        }
+
+        @Override
+        boolean advance() {
+            if (!iterator.hasNext()) return false;
+            current = iterator.next();
+            key = current.getKey();
+            return true;
+        }
+
+        @Override
+        Bean bean() {
+            return current;
+        }
+    }
+
+    private final class RunSource extends Source {
+        private final DataInputStream in;
+        private long expireAt;
+        private byte[] data;
+
+        RunSource(int order, File run) throws IOException {
+            super(order);
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                key = in.readBoolean() ? in.readUTF() : null;
+            } catch (EOFException e) {
+                return false;
+            }
+            expireAt = in.readLong();
+            data = new byte[in.readInt()];
+            in.readFully(data);
+            return true;
+        }
+
+        @Override
+        Bean bean() {
+            Bean bean = sqlService.decoderRow(new String(data, StandardCharsets.UTF_8));
+            bean.setExpireAt(expireAt);
+            return bean;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 命令行导入：SQLBulkLoader 服务类名 数据库名 表名 数据文件...
+     * 服务类需要有一个接收数据库名的构造方法，数据文件的每一行是服务的encoderRow编码的一行数据，
+     * 表不存在时会先创建，可以通过-Dclap.load.memoryBudget设置内存中最多保存的数据行数量。
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("usage: SQLBulkLoader <service class> <db name> <table> <file>...");
+            System.exit(1);
+        }
+        java.lang.reflect.Constructor<?> constructor = Class.forName(args[0]).getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        SQLService<SQLBean> service = (SQLService<SQLBean>) constructor.newInstance(args[1]);
+        int status = 0;
+        try {
+            String table = args[2];
+            if (!service.createTable(table)) {
+                System.err.println("create table " + table + " failed");
+                status = 2;
+                return;
+            }
+            SQLBulkLoader<SQLBean> loader = new SQLBulkLoader<>(service);
+            String budget = System.getProperty("clap.load.memoryBudget");
+            if (budget != null) loader.setMemoryBudget(Integer.parseInt(budget));
+            for (int i = 3; i < args.length; i++) {
+                long start = System.currentTimeMillis();
+                long count = loader.load(table, new File(args[i]));
+                if (count < 0) {
+                    System.err.println("load " + args[i] + " failed");
+                    status = 2;
+                    return;
+                }
+                System.out.println(args[i] + ": " + count + " rows in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        } finally {
+            service.close();
+            Log.flush();
+            if (status != 0) System.exit(status);
+        }
+    }
+}
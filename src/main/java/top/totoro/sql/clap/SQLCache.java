@@ -1,6 +1,9 @@
 package top.totoro.sql.clap;
 
 import com.google.gson.Gson;
+import top.totoro.sql.clap.metrics.Counter;
+import top.totoro.sql.clap.metrics.MetricsRegistry;
+import top.totoro.sql.clap.metrics.Tracer;
 import top.totoro.sql.clap.uitl.Log;
 
 import java.io.*;
@@ -8,22 +11,30 @@ import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * 处理数据的缓存，避免过多的I/O，使用的算法是LRU最近最久未使用算法。
+ * 每个子表的缓存都是一个不可变的快照{@link ShardSnapshot}，写入时生成新版本的快照整体替换，
+ * 读取拿到的数据集合不会再被修改，遍历时不需要加锁，也不会出现ConcurrentModificationException。
+ * 写回模式下还没有写入子表文件的子表内容保存为脏子表，不受缓存容量的限制，写入子表文件后才移除。
  *
  * @author dargon
  * @version 1.0
  */
 public class SQLCache<Bean extends SQLBean> {
     // 缓存的数据，select时先从这里获取，不存在才去表中拿。
-    private Map<String, List<Bean>> CACHING = new ConcurrentHashMap<>();
+    private Map<String, ShardSnapshot<Bean>> CACHING = new ConcurrentHashMap<>();
     // 用于最久未使用规则的tableFilePath列表表，最久没被访问的tableFile会出现在列表的最后面，清除缓存时优先清除。
     private final LinkedList<String> LRU_KEYS = new LinkedList<>();
     // 允许缓存中bean数量的最大值 2048
     private final int maxCachingSize = 2048;
     // 当前缓存中bean的数量
-    private int currentCachingSize = 0;
+    private final AtomicInteger currentCachingSize = new AtomicInteger();
+    // 生成快照的版本号
+    private final AtomicLong snapshotVersion = new AtomicLong();
     // 持久化缓存的路径
     private final String persistentCacheRootPath
             = System.getProperty("java.io.tmpdir")
@@ -32,6 +43,18 @@ public class SQLCache<Bean extends SQLBean> {
             + File.separator;
     private final String persistentCacheFileName = "cache.json";
     private File cacheFile = new File(persistentCacheRootPath + persistentCacheFileName);
+    // 退出时是否持久化缓存，只读的数据库服务不写入持久化缓存
+    private volatile boolean persistent = true;
+    // 写回模式下还没有写入子表文件的脏子表：子表路径 -> 子表最新的内容
+    private final Map<String, DirtyShard> DIRTY = new ConcurrentHashMap<>();
+    // 所有脏子表的数据行的长度之和
+    private final AtomicLong dirtyBytes = new AtomicLong();
+    // 脏子表的缓存被淘汰时的回调，接收子表路径，用于把脏子表写入子表文件
+    private volatile Consumer<String> dirtyEvictionListener;
+    // 缓存的命中、未命中和淘汰的子表数量
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
 
     /* changed by dragon 2020/07/18 取消不必要的SQLService，解决循环依赖 */
 //    public SQLCache(SQLService<Bean> sqlService) {
@@ -46,7 +69,8 @@ public class SQLCache<Bean extends SQLBean> {
     private void registerPersistentCache() {
         // 退出JVM时处理缓存持久化
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            Log.d(this, "registerPersistentCache() current caching size = " + currentCachingSize);
+            if (!persistent) return;
+            Log.d(this, "registerPersistentCache() current caching size = " + currentCachingSize.get());
             if (!cacheFile.getParentFile().exists()) {
                 cacheFile.getParentFile().mkdirs();
             }
@@ -57,7 +81,8 @@ public class SQLCache<Bean extends SQLBean> {
                 }
                 Gson gson = new Gson();
                 StringBuilder caching = new StringBuilder();
-                CACHING.forEach((file, beans) -> {
+                CACHING.forEach((file, snapshot) -> {
+                    List<Bean> beans = snapshot.getRows();
                     if (beans.isEmpty()) return;
                     // 一行文件路径，一行数据
                     // C:\Users\dragon\AppData\Local\Temp\clap_db\top.totoro.sql.clap.test\db\test1\63.tab
@@ -82,6 +107,15 @@ public class SQLCache<Bean extends SQLBean> {
         }));
     }
 
+    /**
+     * 设置退出程序时是否持久化缓存，默认持久化。
+     *
+     * @param persistent 是否持久化
+     */
+    protected void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
     /**
      * 加载持久化了的缓存
      * 从系统中加载上一次退出时的缓存内容
@@ -96,13 +130,14 @@ public class SQLCache<Bean extends SQLBean> {
         if (!cacheFile.getParentFile().exists()) {
             cacheFile.getParentFile().mkdirs();
         }
-        FileReader reader = null;
+        Reader reader = null;
         BufferedReader bufferedReader = null;
         try {
             if (!cacheFile.exists()) {
                 cacheFile.createNewFile();
             }
-            reader = new FileReader(cacheFile);
+            // 持久化时使用UTF-8写入，读取时也需要使用UTF-8
+            reader = new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8);
             bufferedReader = new BufferedReader(reader);
             String line;
             Gson gson = new Gson();
@@ -118,7 +153,7 @@ public class SQLCache<Bean extends SQLBean> {
                     line = line.substring(1, line.length() - 1);
                     // 根据json的特征切分出每一个bean对应的数据字符串
                     String[] parts = line.split(",\\{");
-                    LinkedList<Bean> list = new LinkedList<>();
+                    List<Bean> list = new ArrayList<>(parts.length);
                     for (int i = 0; i < parts.length; i++) {
                         String part = parts[i];
                         // 恢复在切分字符串时被去除了的部分，否则无法被json正常的解析
@@ -126,16 +161,24 @@ public class SQLCache<Bean extends SQLBean> {
                         part = part.trim();
                         // 生成对应bean类型的数据插入队列中
                         list.add(gson.fromJson(part, beanType));
-                        currentCachingSize++;
+                    }
+                    // 持久化的缓存中没有数据行的过期时间，子表中有会过期的数据行时不使用持久化的缓存
+                    TableFormat.Header header = TableFormat.readHeader(new File(filePath));
+                    if (header != null && header.minExpireAt != 0) {
+                        lineNum++;
+                        continue;
                     }
                     // 同步持久化缓存到内存中
-                    LRU_KEYS.add(filePath);
-                    CACHING.put(filePath, list);
+                    synchronized (this) {
+                        LRU_KEYS.add(filePath);
+                    }
+                    ShardSnapshot<Bean> old = CACHING.put(filePath, ShardSnapshot.of(snapshotVersion.incrementAndGet(), list));
+                    currentCachingSize.addAndGet(list.size() - (old == null ? 0 : old.size()));
                 }
                 lineNum++;
             }
             if (CACHING == null) CACHING = new ConcurrentHashMap<>();
-            Log.d(this, "loadPersistentCache() current caching size = " + currentCachingSize);
+            Log.d(this, "loadPersistentCache() current caching size = " + currentCachingSize.get());
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -154,6 +197,21 @@ public class SQLCache<Bean extends SQLBean> {
     }
 
     public SQLCache() {
+        this(new MetricsRegistry("cache"));
+    }
+
+    /**
+     * @param metrics 记录缓存指标的注册表：cache.hits、cache.misses、cache.evictions、cache.rows、cache.shards，
+     *                以及写回模式的cache.dirtyShards和cache.dirtyBytes
+     */
+    public SQLCache(MetricsRegistry metrics) {
+        hits = metrics.counter("cache.hits");
+        misses = metrics.counter("cache.misses");
+        evictions = metrics.counter("cache.evictions");
+        metrics.gauge("cache.rows", currentCachingSize::get);
+        metrics.gauge("cache.shards", () -> CACHING.size());
+        metrics.gauge("cache.dirtyShards", () -> DIRTY.size());
+        metrics.gauge("cache.dirtyBytes", dirtyBytes::get);
         registerPersistentCache();
     }
 
@@ -165,14 +223,28 @@ public class SQLCache<Bean extends SQLBean> {
      * @return 插入并缓存成功
      */
     protected boolean putToCaching(String tableSubFilePath, Bean beanToCaching) {
-        List<Bean> cachingList = CACHING.computeIfAbsent(tableSubFilePath, key -> new ArrayList<>());
-        if (cachingList.contains(beanToCaching)) return false;
-        cachingList.add(beanToCaching);
-        currentCachingSize++;
-        // 在插入缓存后才去刷新缓存，避免出现超过最大容量的情况
-        refreshLRU(tableSubFilePath);
-//        Log.d("SQLCache", "putToCaching success bean = " + beanToCaching.getKey());
-        return true;
+        long spanStart = Tracer.spanStart();
+        try {
+            boolean[] added = {false};
+            // 在旧快照的基础上生成新快照，正在遍历旧快照的读取不受影响
+            CACHING.compute(tableSubFilePath, (path, snapshot) -> {
+                if (snapshot == null) {
+                    added[0] = true;
+                    return ShardSnapshot.of(snapshotVersion.incrementAndGet(), Collections.singletonList(beanToCaching));
+                }
+                if (snapshot.contains(beanToCaching)) return snapshot;
+                added[0] = true;
+                return snapshot.add(snapshotVersion.incrementAndGet(), beanToCaching);
+            });
+            if (!added[0]) return false;
+            currentCachingSize.incrementAndGet();
+            // 在插入缓存后才去刷新缓存，避免出现超过最大容量的情况
+            refreshLRU(tableSubFilePath);
+//            Log.d("SQLCache", "putToCaching success bean = " + beanToCaching.getKey());
+            return true;
+        } finally {
+            Tracer.spanEnd("cache", spanStart);
+        }
     }
 
     /**
@@ -184,30 +256,25 @@ public class SQLCache<Bean extends SQLBean> {
      */
     protected boolean putToCaching(String tableSubFilePath, List<Bean> listToCaching) {
         assert listToCaching != null && tableSubFilePath != null;
-        List<Bean> cachingList = CACHING.get(tableSubFilePath);
-        if (cachingList == null) {
-            if (!listToCaching.isEmpty()) {
-                CACHING.put(tableSubFilePath, listToCaching);
-            }
-        } else {
-//            for (Bean bean : listToCaching) {
-//                if (cachingList.contains(bean)) continue;
-//                cachingList.add(bean);
-//                currentCachingSize++;
-//            }
-            currentCachingSize -= cachingList.size();
-            if (!listToCaching.isEmpty()) {
-                CACHING.replace(tableSubFilePath, listToCaching);
+        long spanStart = Tracer.spanStart();
+        try {
+            ShardSnapshot<Bean> old;
+            if (listToCaching.isEmpty()) {
+                old = CACHING.remove(tableSubFilePath);
+                removeLRU(tableSubFilePath);
             } else {
-                LRU_KEYS.remove(tableSubFilePath);
-                CACHING.remove(tableSubFilePath);
+                // 复制一份作为新的快照，调用者之后修改listToCaching不会影响缓存
+                old = CACHING.put(tableSubFilePath, ShardSnapshot.of(snapshotVersion.incrementAndGet(), listToCaching));
             }
+            currentCachingSize.addAndGet(listToCaching.size() - (old == null ? 0 : old.size()));
+            if (listToCaching.isEmpty()) return true;
+            // 在插入缓存后才去刷新缓存，避免出现超过最大容量的情况
+            refreshLRU(tableSubFilePath);
+//            Log.d("SQLCache", "putToCaching list size = " + listToCaching.size());
+            return true;
+        } finally {
+            Tracer.spanEnd("cache", spanStart);
         }
-        currentCachingSize += listToCaching.size();
-        // 在插入缓存后才去刷新缓存，避免出现超过最大容量的情况
-        refreshLRU(tableSubFilePath);
-//        Log.d("SQLCache", "putToCaching list size = " + listToCaching.size());
-        return true;
     }
 
     private synchronized void refreshLRU(String tableSubFilePath) {
@@ -217,44 +284,179 @@ public class SQLCache<Bean extends SQLBean> {
         resizeCachingMap();
     }
 
+    private synchronized void removeLRU(String tableSubFilePath) {
+        LRU_KEYS.remove(tableSubFilePath);
+    }
+
     /**
      * 刷新缓存，清除最久未被访问的缓存
      */
     private void resizeCachingMap() {
         // 除了缓存数量超过最大容量 & 缓存的表不小于一张 才执行刷新
-        if (currentCachingSize > maxCachingSize && CACHING.size() > 0) {
+        if (currentCachingSize.get() > maxCachingSize && CACHING.size() > 0) {
             LinkedList<String> copyKeys = new LinkedList<>(LRU_KEYS);
-            for (int i = copyKeys.size() - 1; i >= 0 && currentCachingSize > maxCachingSize; i--) {
+            for (int i = copyKeys.size() - 1; i >= 0 && currentCachingSize.get() > maxCachingSize; i--) {
                 String key = copyKeys.get(i);
                 if (key == null) continue;
-                List<Bean> cachingList = CACHING.get(key);
-                CACHING.remove(key);
+                ShardSnapshot<Bean> cachingList = CACHING.remove(key);
                 LRU_KEYS.remove(key);
                 if (cachingList == null) continue;
-                // 这里将缓存中的数据刷新到表文件中，确保数据已在缓存中但是还没有写入表文件的情况下表文件是稳定的。
-//                sqlService.refreshTable(new File(key), cachingList);
-                currentCachingSize -= cachingList.size();
+                // 脏子表还没有写入表文件，淘汰时通知写入，写入之前仍然可以从脏子表读取
+                Consumer<String> listener = dirtyEvictionListener;
+                if (listener != null && DIRTY.containsKey(key)) listener.accept(key);
+                currentCachingSize.addAndGet(-cachingList.size());
+                evictions.increment();
             }
         }
     }
 
     protected Bean getInCaching(String tableSubFilePath, String key) {
-        List<Bean> caching = getInCaching(tableSubFilePath);
-        if (caching == null) return null;
-        for (Bean bean : caching) {
-            if (key.equals(bean.getKey())) {
-                Log.d("SQLCache", "get from caching success key = " + key);
-                refreshLRU(tableSubFilePath);
-                return bean;
-            }
-        }
-        return null;
+        ShardSnapshot<Bean> snapshot = getSnapshot(tableSubFilePath);
+        if (snapshot == null) return null;
+        Bean bean = snapshot.get(key);
+        if (bean != null) Log.d("SQLCache", () -> "get from caching success key = " + key);
+        return bean;
     }
 
+    /**
+     * 获取子表缓存的数据行。
+     *
+     * @param tableSubFilePath 子表文件的路径
+     * @return 只读的子表数据行，不存在缓存时为null，需要修改时先复制一份
+     */
     protected List<Bean> getInCaching(String tableSubFilePath) {
-        List<Bean> caching = CACHING.get(tableSubFilePath);
-        if (caching == null) return null;
+        ShardSnapshot<Bean> snapshot = getSnapshot(tableSubFilePath);
+        return snapshot == null ? null : snapshot.getRows();
+    }
+
+    /**
+     * 获取子表当前的缓存快照。
+     *
+     * @param tableSubFilePath 子表文件的路径
+     * @return 子表当前的快照，不存在缓存时为null
+     */
+    protected ShardSnapshot<Bean> getSnapshot(String tableSubFilePath) {
+        ShardSnapshot<Bean> snapshot = CACHING.get(tableSubFilePath);
+        if (snapshot == null) {
+            misses.increment();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (snapshot.hasExpired(now)) {
+            snapshot = removeExpired(tableSubFilePath, now);
+            if (snapshot == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        hits.increment();
+        // 刷新LRU需要竞争同一个锁，追踪时记录在cache阶段中
+        long spanStart = Tracer.spanStart();
         refreshLRU(tableSubFilePath);
-        return caching;
+        Tracer.spanEnd("cache", spanStart);
+        return snapshot;
+    }
+
+    /**
+     * 写回模式下还没有写入子表文件的子表内容，创建后不再修改。
+     */
+    static final class DirtyShard {
+        // 编码后的数据行和每个数据行的过期时间（ms），和子表文件中的内容一致
+        final List<String> records;
+        final long[] expireAt;
+        // 数据行的长度之和，加上每行记录长度和过期时间的16字节
+        final long bytes;
+
+        DirtyShard(List<String> records, long[] expireAt) {
+            this.records = records;
+            this.expireAt = expireAt;
+            long bytes = 0;
+            for (String record : records) {
+                bytes += record.length() + 16;
+            }
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return 在now时是否已经存在过期的数据行
+         */
+        boolean hasExpired(long now) {
+            if (expireAt == null) return false;
+            for (long time : expireAt) {
+                if (time != 0 && time <= now) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 标记子表为脏子表，替换之前的脏子表内容，调用时需要持有子表的写入锁。
+     *
+     * @param tableSubFilePath 子表文件的路径
+     * @param shard            子表最新的内容
+     */
+    protected void markDirty(String tableSubFilePath, DirtyShard shard) {
+        DirtyShard old = DIRTY.put(tableSubFilePath, shard);
+        dirtyBytes.addAndGet(shard.bytes - (old == null ? 0 : old.bytes));
+    }
+
+    /**
+     * @return 子表还没有写入子表文件的内容，不是脏子表时为null
+     */
+    protected DirtyShard getDirty(String tableSubFilePath) {
+        return DIRTY.get(tableSubFilePath);
+    }
+
+    /**
+     * 子表写入子表文件之后清除脏子表的标记。
+     *
+     * @param tableSubFilePath 子表文件的路径
+     * @param written          写入了的内容，为null时不管内容直接清除，否则只有脏子表仍然是这个内容时才清除
+     */
+    protected void clearDirty(String tableSubFilePath, DirtyShard written) {
+        DirtyShard old = written == null ? DIRTY.remove(tableSubFilePath)
+                : DIRTY.remove(tableSubFilePath, written) ? written : null;
+        if (old != null) dirtyBytes.addAndGet(-old.bytes);
+    }
+
+    /**
+     * @return 所有脏子表的路径
+     */
+    protected Set<String> getDirtyPaths() {
+        return new HashSet<>(DIRTY.keySet());
+    }
+
+    /**
+     * @return 所有脏子表的数据行的长度之和
+     */
+    protected long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * 设置脏子表的缓存被淘汰时的回调，在持有缓存的锁时调用，不能在回调中直接写入子表。
+     *
+     * @param listener 接收被淘汰的脏子表的路径，为null时不回调
+     */
+    protected void setDirtyEvictionListener(Consumer<String> listener) {
+        dirtyEvictionListener = listener;
+    }
+
+    /**
+     * 去掉子表缓存中已经过期的数据行，全部过期时移除子表的缓存。
+     *
+     * @return 子表新的快照，不存在缓存时为null
+     */
+    private ShardSnapshot<Bean> removeExpired(String tableSubFilePath, long now) {
+        int[] removed = {0};
+        ShardSnapshot<Bean> snapshot = CACHING.computeIfPresent(tableSubFilePath, (path, old) -> {
+            if (!old.hasExpired(now)) return old;
+            ShardSnapshot<Bean> newSnapshot = old.removeExpired(snapshotVersion.incrementAndGet(), now);
+            removed[0] = old.size() - newSnapshot.size();
+            return newSnapshot.size() == 0 ? null : newSnapshot;
+        });
+        currentCachingSize.addAndGet(-removed[0]);
+        if (snapshot == null) removeLRU(tableSubFilePath);
+        return snapshot;
     }
 }
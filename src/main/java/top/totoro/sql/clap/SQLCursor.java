@@ -0,0 +1,195 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 按顺序遍历查找结果的游标，通过{@link SQLService#orderBy}获取。
+ * 查找结果不超过内存预算时在内存中排好序，超过时由多个排好序的临时文件和内存中的数据行归并，
+ * 遍历时每个临时文件只需要在内存中保存一行，所以遍历整个结果也只占用和内存预算相当的内存。
+ * 遍历结束或者调用{@link #close()}时删除临时文件，没有遍历完时需要关闭游标。
+ *
+ * @param <Bean> 数据实体的类型
+ * @author dragon
+ * @version 1.0
+ */
+public final class SQLCursor<Bean extends SQLBean> implements Iterator<Bean>, Closeable {
+    private static final String TAG = "SQLCursor";
+    private final List<Source> sources = new ArrayList<>();
+    private final PriorityQueue<Source> queue;
+    private final List<File> runs;
+    private boolean closed = false;
+
+    /**
+     * @param sqlService 解析临时文件中数据行的数据库服务
+     * @param comparator 数据行的顺序
+     * @param runs       排好序的临时文件，按写入的顺序
+     * @param rows       内存中排好序的数据行，在所有临时文件之后
+     * @throws UncheckedIOException 读取临时文件失败，已经删除了所有临时文件
+     */
+    SQLCursor(SQLService<Bean> sqlService, Comparator<? super Bean> comparator, List<File> runs, List<Bean> rows) {
+        this.runs = runs;
+        // 顺序相同的数据行按写入的先后，和在内存中稳定排序的结果一致
+        queue = new PriorityQueue<>(runs.size() + 1, (a, b) -> {
+            int compare = comparator.compare(a.current, b.current);
+            return compare != 0 ? compare : Integer.compare(a.order, b.order);
+        });
+        try {
+            for (File run : runs) {
+                sources.add(new RunSource(sources.size(), sqlService, run));
+            }
+            sources.add(new MemorySource(sources.size(), rows));
+            for (Source source : sources) {
+                if (source.advance()) queue.add(source);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        if (queue.isEmpty()) close();
+    }
+
+    /**
+     * 把排好序的数据行写入临时文件。
+     *
+     * @return 写入的临时文件
+     */
+    static <Bean extends SQLBean> File writeRun(SQLService<Bean> sqlService, List<Bean> rows, File tempDir) throws IOException {
+        File run = File.createTempFile("clap-sort-", ".run", tempDir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (Bean row : rows) {
+                out.writeLong(row.getExpireAt());
+                byte[] data = sqlService.encoderRow(row).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        } catch (IOException e) {
+            run.delete();
+            throw e;
+        }
+        return run;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Bean next() {
+        Source source = queue.poll();
+        if (source == null) throw new NoSuchElementException();
+        Bean bean = source.current;
+        try {
+            if (source.advance()) queue.add(source);
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        if (queue.isEmpty()) close();
+        return bean;
+    }
+
+    /**
+     * 遍历剩下的数据行，最多取出limit行。
+     *
+     * @param limit 最多取出的数据行数量
+     * @return 取出的数据行，已经遍历结束时size为0
+     */
+    public List<Bean> next(int limit) {
+        List<Bean> rows = new ArrayList<>(Math.min(limit, 1024));
+        while (rows.size() < limit && hasNext()) {
+            rows.add(next());
+        }
+        return rows;
+    }
+
+    /**
+     * 停止遍历并删除临时文件。
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.clear();
+        for (Source source : sources) {
+            source.close();
+        }
+        for (File run : runs) {
+            if (!run.delete()) Log.w(TAG, "delete sorted run " + run + " failed");
+        }
+    }
+
+    // 排好序的一组数据行
+    private abstract class Source {
+        // 写入的顺序，顺序相同的数据行先写入的在前
+        final int order;
+        // 当前的数据行
+        Bean current;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        /**
+         * @return 是否还有数据行
+         */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private final class MemorySource extends Source {
+        private final Iterator<Bean> iterator;
+
+        MemorySource(int order, List<Bean> rows) {
+            super(order);
+            iterator = rows.iterator();
+        }
+
+        @Override
+        boolean advance() {
+            if (!iterator.hasNext()) return false;
+            current = iterator.next();
+            return true;
+        }
+    }
+
+    private final class RunSource extends Source {
+        private final SQLService<Bean> sqlService;
+        private final DataInputStream in;
+
+        RunSource(int order, SQLService<Bean> sqlService, File run) throws IOException {
+            super(order);
+            this.sqlService = sqlService;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            long expireAt;
+            try {
+                expireAt = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            current = sqlService.decoderRow(new String(data, StandardCharsets.UTF_8));
+            current.setExpireAt(expireAt);
+            return true;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package top.totoro.sql.clap;
+
+import com.google.gson.Gson;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 表的二级索引，记录字段值到主键的映射，通过{@link SQLService#createIndex}创建。
+ * 索引按子表维护：子表每次写入时用子表的最新内容重新计算这个子表的索引项，
+ * 所以所有写入子表的方式（同步、批处理、事务）都会自动更新索引。
+ * 索引会持久化到表目录下的索引文件中，并记录每个子表内容的指纹（{@link TableFormat#fingerprint(File)}），
+ * 下次创建索引时只需要重新计算指纹不一致的子表。
+ * 只有主键不为空且字段值不为空的数据行会被索引。
+ *
+ * @param <Bean> 表中数据的类型
+ * @author dragon
+ * @version 1.0
+ */
+public class SQLIndex<Bean extends SQLBean> {
+    private static final String TAG = "SQLIndex";
+    private static final int indexFileVersion = 2;
+    private static final Gson gson = new Gson();
+
+    private final String tableName;
+    private final String name;
+    private final SQLService.Extractor<Bean> extractor;
+    private final boolean sorted;
+    private final File indexFile;
+    // 字段值 -> 主键集合，有序索引按字段值排序
+    private final ConcurrentMap<Object, Set<String>> valueKeys;
+    // 子表文件名 -> 子表中每个主键对应的字段值，用于子表更新时找出过期的索引项
+    private final Map<String, Map<String, Object>> shardEntries = new ConcurrentHashMap<>();
+
+    SQLIndex(String tableName, String name, SQLService.Extractor<Bean> extractor, boolean sorted, File indexFile) {
+        this.tableName = tableName;
+        this.name = name;
+        this.extractor = extractor;
+        this.sorted = sorted;
+        this.indexFile = indexFile;
+        this.valueKeys = sorted ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>();
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 是否是有序索引，有序索引可以按字段值的范围查找
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * @return 索引中不同字段值的数量
+     */
+    public int size() {
+        return valueKeys.size();
+    }
+
+    Object extract(Bean bean) {
+        return extractor.extract(bean);
+    }
+
+    /**
+     * 使用子表的最新内容更新这个子表的索引项，调用时需要持有子表的写入锁。
+     * 先加入新的索引项再移除过期的，查找时不会漏掉没有变化的数据行。
+     *
+     * @param shardName 子表文件名
+     * @param rows      子表的最新内容
+     */
+    void updateShard(String shardName, List<Bean> rows) {
+        Map<String, Object> entries = new HashMap<>(rows.size() * 2);
+        for (Bean row : rows) {
+            if (row == null || row.getKey() == null) continue;
+            Object value = extractor.extract(row);
+            if (value == null) continue;
+            entries.put(row.getKey(), value);
+        }
+        entries.forEach(this::addEntry);
+        Map<String, Object> old = shardEntries.put(shardName, entries);
+        if (old == null) return;
+        old.forEach((key, value) -> {
+            if (!value.equals(entries.get(key))) removeEntry(key, value);
+        });
+    }
+
+    /**
+     * 子表追加了数据行时加入这些数据行的索引项，调用时需要持有子表的写入锁。
+     *
+     * @param shardName 子表文件名
+     * @param rows      追加的数据行，主键都不在子表中
+     */
+    void appendRows(String shardName, List<Bean> rows) {
+        Map<String, Object> entries = new HashMap<>(shardEntries.getOrDefault(shardName, Collections.emptyMap()));
+        for (Bean row : rows) {
+            if (row == null || row.getKey() == null) continue;
+            Object value = extractor.extract(row);
+            if (value == null) continue;
+            addEntry(row.getKey(), value);
+            entries.put(row.getKey(), value);
+        }
+        shardEntries.put(shardName, entries);
+    }
+
+    /**
+     * 子表被删除时移除这个子表的所有索引项。
+     *
+     * @param shardName 子表文件名
+     */
+    void removeShard(String shardName) {
+        Map<String, Object> old = shardEntries.remove(shardName);
+        if (old != null) old.forEach(this::removeEntry);
+    }
+
+    private void addEntry(String key, Object value) {
+        valueKeys.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private void removeEntry(String key, Object value) {
+        valueKeys.computeIfPresent(value, (v, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /**
+     * @param value 字段值
+     * @return 字段值等于value的所有主键
+     */
+    List<String> keysOf(Object value) {
+        Set<String> keys = valueKeys.get(value);
+        return keys == null ? new ArrayList<>() : new ArrayList<>(keys);
+    }
+
+    /**
+     * 按字段值的顺序查找范围内的主键，只能用于有序索引。
+     * 跳表定位到范围的起点是O(log n)，之后只遍历需要返回的k个主键。
+     *
+     * @param from    字段值的下限（包含），null表示不限制
+     * @param to      字段值的上限（包含），null表示不限制
+     * @param limit   最多返回多少个主键，不大于0时不限制
+     * @param reverse 是否按字段值从大到小的顺序
+     * @return 按字段值排序的主键
+     */
+    @SuppressWarnings("unchecked")
+    List<String> keysBetween(Object from, Object to, int limit, boolean reverse) {
+        NavigableMap<Object, Set<String>> range = (NavigableMap<Object, Set<String>>) valueKeys;
+        if (from != null && to != null) {
+            range = range.subMap(from, true, to, true);
+        } else if (from != null) {
+            range = range.tailMap(from, true);
+        } else if (to != null) {
+            range = range.headMap(to, true);
+        }
+        if (reverse) range = range.descendingMap();
+        List<String> keys = new ArrayList<>();
+        for (Set<String> sameValueKeys : range.values()) {
+            for (String key : sameValueKeys) {
+                if (limit > 0 && keys.size() >= limit) return keys;
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 加载持久化了的索引，只加载文件指纹和子表当前一致的子表的索引项。
+     *
+     * @param tableFiles 表中所有的子表文件
+     * @return 加载成功的子表文件名，其它子表需要重新计算
+     */
+    Set<String> load(File[] tableFiles) {
+        Set<String> loaded = new HashSet<>();
+        if (!indexFile.exists()) return loaded;
+        Map<String, File> shards = new HashMap<>();
+        for (File tableFile : tableFiles) {
+            shards.put(tableFile.getName(), tableFile);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != indexFileVersion) return loaded;
+            int shardCount = in.readInt();
+            for (int i = 0; i < shardCount; i++) {
+                String shardName = readString(in);
+                String fingerprint = readString(in);
+                int entryCount = in.readInt();
+                Map<String, Object> entries = new HashMap<>(entryCount * 2);
+                boolean valid = true;
+                for (int j = 0; j < entryCount; j++) {
+                    String key = readString(in);
+                    String type = readString(in);
+                    String json = readString(in);
+                    if (!valid) continue;
+                    try {
+                        entries.put(key, gson.fromJson(json, Class.forName(type)));
+                    } catch (ClassNotFoundException | RuntimeException e) {
+                        // 字段值的类型已经不存在或者变化了，这个子表需要重新计算
+                        valid = false;
+                    }
+                }
+                File tableFile = shards.get(shardName);
+                if (!valid || tableFile == null || !fingerprint.equals(TableFormat.fingerprint(tableFile))) continue;
+                entries.forEach(this::addEntry);
+                shardEntries.put(shardName, entries);
+                loaded.add(shardName);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "load index " + tableName + "." + name + " failed, rebuild it: " + e);
+            shardEntries.keySet().forEach(this::removeShard);
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    /**
+     * 持久化索引，调用时需要持有所有子表的写入锁，保证索引项和记录的文件指纹一致。
+     *
+     * @param tableFiles 表中所有的子表文件
+     */
+    void save(File[] tableFiles) {
+        if (!indexFile.getParentFile().isDirectory()) return;
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)))) {
+            out.writeInt(indexFileVersion);
+            List<File> shards = new ArrayList<>();
+            Map<File, String> fingerprints = new HashMap<>();
+            for (File tableFile : tableFiles) {
+                if (!shardEntries.containsKey(tableFile.getName()) || !tableFile.exists()) continue;
+                // 旧版本格式的子表没有指纹，加载时重新计算
+                String fingerprint = TableFormat.fingerprint(tableFile);
+                if (fingerprint == null) continue;
+                shards.add(tableFile);
+                fingerprints.put(tableFile, fingerprint);
+            }
+            out.writeInt(shards.size());
+            for (File tableFile : shards) {
+                Map<String, Object> entries = shardEntries.get(tableFile.getName());
+                writeString(out, tableFile.getName());
+                writeString(out, fingerprints.get(tableFile));
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue().getClass().getName());
+                    writeString(out, gson.toJson(entry.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "save index " + tableName + "." + name + " failed: " + e);
+            tempFile.delete();
+            return;
+        }
+        if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "save index " + tableName + "." + name + " failed: can not replace " + indexFile);
+        }
+    }
+
+    /**
+     * 删除持久化的索引文件。
+     */
+    void deleteFile() {
+        indexFile.delete();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "SQLIndex{table=" + tableName + ", name=" + name + ", sorted=" + sorted + ", values=" + valueKeys.size() + "}";
+    }
+}
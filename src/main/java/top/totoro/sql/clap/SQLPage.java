@@ -0,0 +1,69 @@
+package top.totoro.sql.clap;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分页查找的一页数据，通过{@link SQLService#selectPage}获取。
+ * 令牌记录了下一页开始的位置：子表的序号和子表中数据行的位置，
+ * 对调用者是不透明的，只需要原样传给下一次查找。
+ *
+ * @param <Bean> 数据实体的类型
+ * @author dragon
+ * @version 1.0
+ */
+public final class SQLPage<Bean extends SQLBean> {
+    private static final char SEPARATOR = '-';
+    private final List<Bean> rows;
+    private final String token;
+
+    SQLPage(List<Bean> rows, String token) {
+        this.rows = Collections.unmodifiableList(rows);
+        this.token = token;
+    }
+
+    /**
+     * @return 这一页的数据行，只读
+     */
+    public List<Bean> getRows() {
+        return rows;
+    }
+
+    /**
+     * @return 查找下一页的令牌，已经是最后一页时为null
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return 是否还有下一页，为true时下一页也可能是空的
+     */
+    public boolean hasMore() {
+        return token != null;
+    }
+
+    // 生成从子表shard的第offset行开始的令牌
+    static String token(int shard, int offset) {
+        return Integer.toString(shard, 36) + SEPARATOR + Integer.toString(offset, 36);
+    }
+
+    /**
+     * 解析令牌。
+     *
+     * @param token 令牌，为null时表示第一页
+     * @return 子表的序号和子表中数据行的位置，令牌无效时为null
+     */
+    static int[] parseToken(String token) {
+        if (token == null) return new int[]{0, 0};
+        int separator = token.indexOf(SEPARATOR);
+        if (separator <= 0) return null;
+        try {
+            int shard = Integer.parseInt(token.substring(0, separator), 36);
+            int offset = Integer.parseInt(token.substring(separator + 1), 36);
+            return shard < 0 || offset < 0 ? null : new int[]{shard, offset};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
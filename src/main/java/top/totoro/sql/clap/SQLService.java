@@ -1,15 +1,45 @@
 package top.totoro.sql.clap;
 
+import top.totoro.sql.clap.batch.BatchContext;
+import top.totoro.sql.clap.batch.ExecutionMode;
+import top.totoro.sql.clap.batch.VirtualThreads;
+import top.totoro.sql.clap.change.ChangeEvent;
+import top.totoro.sql.clap.change.ChangeLog;
+import top.totoro.sql.clap.change.ChangeType;
+import top.totoro.sql.clap.metrics.JmxExporter;
+import top.totoro.sql.clap.metrics.MetricsRegistry;
+import top.totoro.sql.clap.metrics.Tracer;
 import top.totoro.sql.clap.uitl.Base64;
 import top.totoro.sql.clap.uitl.IDKit;
 import top.totoro.sql.clap.uitl.Log;
 
 import java.io.*;
 import java.lang.reflect.ParameterizedType;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * 基本的数据库服务，每个不同的需求都可以通过继承该类实现不同的服务。
@@ -20,7 +50,7 @@ import java.util.List;
  * @version 1.0
  */
 @SuppressWarnings("ALL")
-public abstract class SQLService<Bean extends SQLBean> {
+public abstract class SQLService<Bean extends SQLBean> implements Closeable {
     private static final String TAG = "SQLService";
     // 需要根据具体本地环境设置具体的本地数据库的路径
     private String dbPath
@@ -31,19 +61,634 @@ public abstract class SQLService<Bean extends SQLBean> {
     private static final String tableFileSuffix = ".tab";            // 表的文件后缀
     private static final int maxTableFiles = 0x3f;                   // 一个表中允许最多多少个子表，用于对key进行分表
     // f = 16; 1f = 32; 2f = 32; 3f = 64; 4f = 32; 5f = 64
-    private static final String ROW_END = " ~end";
-    private static final String ROW_SEPARATOR = ROW_END + System.getProperty("line.separator");  // 换行符
+    private static final String ROW_END = " ~end";                   // 旧版本表文件中数据行的结束标记
+    private static final String tempFileSuffix = ".tmp";             // 写入表文件时使用的临时文件后缀
+    private static final String journalFileName = "transaction.journal";  // 多个子表一起写入时的事务日志
+    private static final String writeBehindLogName = "writebehind.log";  // 写回模式下还没有写入子表文件的修改
+    private static final String indexFileSuffix = ".idx";            // 索引文件的后缀
+    private static final String keyIndexName = "_key";              // 有序表的主键索引名
+    private static final String bloomFileSuffix = ".bloom";         // 子表布隆过滤器的文件后缀
+    private static final String snapshotDirPrefix = ".snapshot-";   // 备份时暂存子表链接的目录
+    private static final int sortMemoryBudget = 100000;             // 排序时内存中默认最多保存的数据行数量
+    // 子表的写入锁，按子表路径分段
+    private final ReentrantLock[] shardLocks = new ReentrantLock[maxTableFiles + 1];
+    // 子表的多版本管理，用于事务的快照读
+    private final ShardVersions<Bean> versions = new ShardVersions<>();
+    // 每个表的二级索引：表名 -> 索引名 -> 索引
+    private final Map<String, Map<String, SQLIndex<Bean>>> indexes = new ConcurrentHashMap<>();
+    // 每个子表主键的布隆过滤器：子表路径 -> 布隆过滤器，第一次使用时加载
+    private final Map<String, ShardBloom> blooms = new ConcurrentHashMap<>();
     private final SQLCache<Bean> sqlCache;
+    // 数据库服务的所有指标，默认通过JMX导出
+    private final MetricsRegistry metrics;
+    // 操作的追踪，默认关闭
+    private final Tracer tracer = new Tracer();
+    // 已提交的数据变更日志，默认关闭
+    private final ChangeLog changeLog;
+    // 每个表的数据行存活时间（ms）：表名 -> TTL
+    private final Map<String, Long> tableTTLs = new ConcurrentHashMap<>();
+    // 后台清理过期数据行的间隔（ms），不大于0时没有开启
+    private volatile long expireInterval = 0;
+    private volatile int expirerGeneration = 0;
+    // 写回模式的日志
+    private final WriteBehindLog writeBehindLog;
+    // 写回模式下刷新脏子表的间隔（ms），不大于0时没有开启，写入直接写入子表文件
+    private volatile long writeBehindInterval = 0;
+    // 脏子表的数据行长度之和的上限，超过时提前刷新，超过两倍时直接写入子表文件
+    private volatile long maxDirtyBytes = 0;
+    // 写回日志同步到磁盘的方式，不是NONE时刷新脏子表也同步到磁盘之后才清空日志
+    private volatile WriteBehindSync writeBehindSync = WriteBehindSync.INTERVAL;
+    private int writeBehindGeneration = 0;
+    // 刷新脏子表的线程池，开启写回模式时获取，以及是否已经提交了一次刷新
+    private volatile Executor flushExecutor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
     private String tableName;
+    private final String dbName;
+    // 访问数据库目录的方式，其它进程已经在写入时只能只读
+    private final AccessMode accessMode;
+    // 和其它进程协调访问数据库目录，创建失败时为null，不再协调
+    private final DatabaseLock dbLock;
+    // 只读时上次同步子表修改时数据库的版本号，和每个子表文件的状态：子表路径 -> 文件标识、大小和修改时间
+    private long syncedGeneration = -1;
+    private final Map<String, String> shardStamps = new HashMap<>();
+    // 批处理的执行环境，使用批处理时才创建
+    private BatchContext batchContext;
+    // 批处理任务的执行方式
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
 
     public SQLService(String dbName) {
+        this(dbName, AccessMode.READ_WRITE);
+    }
+
+    /**
+     * 多个进程可以同时访问同一个数据库，但同时只能有一个进程写入：
+     * 以{@link AccessMode#READ_WRITE}打开时获取数据库的写入锁，其它进程已经持有时以只读方式打开；
+     * 以{@link AccessMode#READ_ONLY}打开时所有写入操作都返回失败，不会恢复事务日志和持久化缓存，
+     * 每次操作开始时如果写入进程提交过修改，重新加载修改了的子表。
+     * 写入进程提交时只读进程的操作在开始时等待提交完成，每个子表都是整体替换或者在追加完成后才更新文件头，
+     * 所以读取到的每个子表都是完整的。
+     * 同一个进程中访问同一个数据库的多个服务共享写入锁。
+     *
+     * @param dbName 数据库名
+     * @param mode   访问方式
+     */
+    public SQLService(String dbName, AccessMode mode) {
+        assert mode != null;
+        this.dbName = dbName;
         this.dbPath += File.separator + dbName;
-        sqlCache = new SQLCache();
-        // 通过getGenericSuperclass获取service的类型，包含了
-        sqlCache.loadPersistentCache(dbPath, ((ParameterizedType) this.getClass().getGenericSuperclass()).getActualTypeArguments()[0]);
+        for (int i = 0; i < shardLocks.length; i++) {
+            shardLocks[i] = new ReentrantLock();
+        }
+        DatabaseLock lock = null;
+        try {
+            lock = DatabaseLock.open(new File(dbPath));
+        } catch (IOException e) {
+            Log.w(TAG, "open database lock of " + dbPath + " failed, access will not be coordinated: " + e);
+        }
+        dbLock = lock;
+        if (mode == AccessMode.READ_WRITE && dbLock != null && !dbLock.acquireWrite()) {
+            Log.w(TAG, "database " + dbPath + " is written by another process, open as read only");
+            mode = AccessMode.READ_ONLY;
+        }
+        accessMode = mode;
+        writeBehindLog = new WriteBehindLog(new File(dbPath + File.separator + writeBehindLogName));
+        // 完成上次没有完成的多子表写入和写回模式下没有写入子表文件的修改，只读时由写入进程恢复
+        List<String> recovered = new ArrayList<>();
+        if (accessMode == AccessMode.READ_WRITE) {
+            recovered.addAll(recoverJournal());
+            recovered.addAll(replayWriteBehind());
+        }
+        if (!recovered.isEmpty()) {
+            beginCommit();
+            endCommit();
+        }
+        changeLog = new ChangeLog(new File(dbPath));
+        metrics = new MetricsRegistry(getClass().getSimpleName() + "." + dbName);
+        // 设置-Dclap.metrics.jmx=false时不注册MBean，没有JMX的运行环境（例如Android）也不会注册
+        if (Boolean.parseBoolean(System.getProperty("clap.metrics.jmx", "true"))) {
+            try {
+                metrics.setExporter(JmxExporter.getInstance());
+            } catch (LinkageError e) {
+                Log.w(TAG, "jmx is not supported, metrics will not be exported");
+            }
+        }
+        sqlCache = new SQLCache<>(metrics);
+        if (accessMode == AccessMode.READ_ONLY) {
+            // 持久化的缓存可能已经被写入进程修改了
+            sqlCache.setPersistent(false);
+        } else {
+            // 通过getGenericSuperclass获取service的类型，包含了
+            sqlCache.loadPersistentCache(dbPath, ((ParameterizedType) this.getClass().getGenericSuperclass()).getActualTypeArguments()[0]);
+        }
+        // 根据事务日志和写回日志恢复了的子表，持久化的缓存已经过期了
+        for (String path : recovered) {
+            sqlCache.putToCaching(path, Collections.emptyList());
+        }
         Log.d(this, "db path = " + dbPath);
     }
 
+    /**
+     * @return 数据库服务实际的访问方式，以读写方式打开但其它进程已经在写入时为{@link AccessMode#READ_ONLY}
+     */
+    public AccessMode getAccessMode() {
+        return accessMode;
+    }
+
+    /**
+     * 获取当前数据库服务的批处理执行环境，同一个服务的所有{@link SQLBatch}共享。
+     *
+     * @return 批处理执行环境
+     */
+    protected synchronized BatchContext getBatchContext() {
+        if (batchContext == null) {
+            batchContext = new BatchContext(dbName, executionMode, metrics);
+        }
+        return batchContext;
+    }
+
+    /**
+     * 设置批处理任务的执行方式，默认使用平台线程池。
+     * 使用{@link ExecutionMode#VIRTUAL}时每个批处理任务和子表任务都在一个虚拟线程中执行，
+     * 大量并发的表操作等待文件I/O时不需要调整线程池大小，需要JDK 21以上，否则仍然使用平台线程池。
+     *
+     * @param mode 执行方式
+     */
+    public synchronized void setExecutionMode(ExecutionMode mode) {
+        assert mode != null;
+        executionMode = mode;
+        if (batchContext != null) {
+            batchContext.setMode(mode);
+        }
+    }
+
+    /**
+     * @return 批处理任务实际使用的执行方式
+     */
+    public synchronized ExecutionMode getExecutionMode() {
+        if (batchContext != null) return batchContext.getMode();
+        return executionMode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported() ? ExecutionMode.PLATFORM : executionMode;
+    }
+
+    /**
+     * 关闭数据库服务，等待已经提交的批处理执行结束。
+     */
+    @Override
+    public synchronized void close() {
+        expireInterval = 0;
+        writeBehindInterval = 0;
+        if (batchContext != null) {
+            batchContext.shutdown(30 * 1000);
+            batchContext = null;
+        }
+        flushExecutor = null;
+        // 写回模式下还没有写入的子表，写入失败时下次启动根据写回日志恢复
+        flush();
+        writeBehindLog.close();
+        // 批处理结束后再持久化索引，保证索引和子表的内容一致
+        indexes.forEach((table, tableIndexes) -> tableIndexes.values().forEach(this::saveIndex));
+        blooms.forEach((path, bloom) -> {
+            if (bloom.isDirty()) saveBloom(new File(path));
+        });
+        changeLog.close();
+        metrics.close();
+        if (dbLock != null) {
+            if (accessMode == AccessMode.READ_WRITE) dbLock.releaseWrite();
+            dbLock.close();
+        }
+    }
+
+    /**
+     * 获取数据库服务的指标，包括：
+     * <ul>
+     * <li>sql.*：每种操作的耗时分布，sql.readRetries是只读时读取期间写入进程提交了修改而重新读取的次数</li>
+     * <li>shard.read、shard.write：读取和写入一个子表文件的耗时分布</li>
+     * <li>shard.defer：写回模式下延迟写入一个子表的耗时分布</li>
+     * <li>table.表名.*：读取和写入的字节数、子表文件的数量和总大小</li>
+     * <li>cache.*：缓存的命中、未命中和淘汰次数</li>
+     * <li>batch.*：每种批处理的耗时分布，每个表的提交队列的深度和等待时间</li>
+     * </ul>
+     * 默认通过JMX导出，可以通过{@link MetricsRegistry#setExporter}换成其它的导出方式。
+     *
+     * @return 指标的注册表
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 获取数据库服务的操作追踪，默认关闭，开启后记录每个操作在以下阶段的耗时：
+     * <ul>
+     * <li>list：列出表的子表文件</li>
+     * <li>read：读取子表文件和校验数据行</li>
+     * <li>decode：把数据行解析成Bean</li>
+     * <li>filter：执行查询条件</li>
+     * <li>cache：读取和更新缓存，包括等待LRU的锁</li>
+     * <li>lock：等待子表的写入锁</li>
+     * <li>write：编码并写入子表文件</li>
+     * </ul>
+     * 可以通过{@link Tracer#addListener}接收每个操作的追踪记录，
+     * 耗时超过{@link Tracer#setSlowThreshold}的操作会输出每个阶段的耗时。
+     *
+     * @return 操作的追踪
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * 获取数据库服务的变更日志，默认关闭，通过{@link ChangeLog#setEnabled}开启后，
+     * 所有写入（包括{@link SQLBatch}和事务）提交之后都会按顺序记录插入、更新和删除的数据行，
+     * 可以通过{@link ChangeLog#subscribe}从保存的位置继续订阅，不需要反复读取整个表来发现变化。
+     * 开启时子表整体写入需要读取写入前的子表文件比较，才能得到每一行的变化。
+     * 变更日志属于写入进程，只读的数据库服务没有变更日志。
+     *
+     * @return 变更日志，只读时为null
+     */
+    public ChangeLog getChangeLog() {
+        return accessMode == AccessMode.READ_ONLY ? null : changeLog;
+    }
+
+    /**
+     * 设置表的数据行存活时间，之后写入的没有设置过期时间（{@link SQLBean#setExpireAt}）的数据行，
+     * 会在写入时记录过期时间为写入时间加上TTL，已经写入的数据行不受影响。
+     * 和索引一样只保存在内存中，每次启动后需要重新设置。
+     *
+     * @param tableName 表名
+     * @param ttl       存活时间（ms），不大于0时取消表的TTL
+     */
+    public void setTableTTL(String tableName, long ttl) {
+        assert tableName != null;
+        if (ttl > 0) {
+            tableTTLs.put(tableName, ttl);
+        } else {
+            tableTTLs.remove(tableName);
+        }
+    }
+
+    /**
+     * @return 表的数据行存活时间（ms），没有设置时为0
+     */
+    public long getTableTTL(String tableName) {
+        Long ttl = tableTTLs.get(tableName);
+        return ttl == null ? 0 : ttl;
+    }
+
+    /**
+     * 清理表中过期的数据行。
+     * 查询时过期的数据行已经被过滤掉了，清理只是为了释放空间：
+     * 根据子表文件头中记录的最早过期时间判断，只重写存在过期数据行的子表。
+     *
+     * @param tableName 清理的表名
+     * @return 清理的数据行数量
+     */
+    public int expire(String tableName) {
+        // 只读时由写入进程清理
+        if (accessMode == AccessMode.READ_ONLY) return 0;
+        begin("expire", tableName);
+        long start = System.nanoTime();
+        try {
+            File[] tableFiles = getAllSubTableFile(tableName);
+            if (tableFiles == null) return 0;
+            int removed = 0;
+            for (File tableFile : tableFiles) {
+                if (!hasExpiredRows(tableFile)) continue;
+                ReentrantLock lock = lockShard(tableFile);
+                try {
+                    if (!hasExpiredRows(tableFile)) continue;
+                    int rowCount = storedRowCount(tableFile);
+                    // 读取时已经去掉了过期的数据行，重写子表即可
+                    List<Bean> beans = getShardRows(tableFile).toList();
+                    if (!writeShards(Collections.singletonMap(tableFile, beans), false)) continue;
+                    sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+                    removed += rowCount - beans.size();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (removed > 0) {
+                int count = removed;
+                Log.d(TAG, () -> "expire " + tableName + " removed " + count + " rows");
+            }
+            return removed;
+        } finally {
+            metrics.histogram("sql.expire").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 开启后台清理，每隔interval清理一次数据库中所有表的过期数据行（{@link #expire(String)}），
+     * 在批处理的线程池中执行，关闭数据库服务时停止。
+     *
+     * @param interval 清理的间隔（ms）
+     */
+    public synchronized void startExpirer(long interval) {
+        assert interval > 0;
+        boolean running = expireInterval > 0;
+        expireInterval = interval;
+        if (running) return;
+        // 停止后重新开启时，之前还没有执行的清理不再继续调度
+        int generation = ++expirerGeneration;
+        getBatchContext().scheduleTimer(() -> expireAll(generation), interval);
+    }
+
+    /**
+     * 停止后台清理，正在执行的清理会执行完。
+     */
+    public synchronized void stopExpirer() {
+        expireInterval = 0;
+    }
+
+    private void expireAll(int generation) {
+        if (generation != expirerGeneration || expireInterval <= 0) return;
+        try {
+            for (String table : listTables()) {
+                if (expireInterval <= 0) break;
+                expire(table);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "expireAll() failed: " + e);
+        } finally {
+            synchronized (this) {
+                long interval = expireInterval;
+                if (generation == expirerGeneration && interval > 0 && batchContext != null) {
+                    batchContext.scheduleTimer(() -> expireAll(generation), interval);
+                }
+            }
+        }
+    }
+
+    /**
+     * 开启写回模式：普通的写入只修改缓存并标记为脏子表，每隔interval把脏子表写入子表文件，
+     * 频繁修改同一个子表时每个间隔只写入一次子表文件。
+     * 脏子表的缓存被淘汰、脏子表的数据行长度之和超过maxDirtyBytes、调用{@link #flush()}和关闭数据库服务时也会写入；
+     * 超过maxDirtyBytes的两倍时新的写入直接写入子表文件。
+     * 每次写入和之前内容的差别记录在写回日志中，进程异常退出后下次启动时恢复。
+     * 写回日志每个间隔最多同步到磁盘一次（{@link WriteBehindSync#INTERVAL}），系统崩溃时最多丢失最近一个间隔内的修改。
+     * 需要确保持久性的写入（事务、批量导入等）仍然直接写入子表文件。
+     * 写回模式下其它进程只能读到已经写入子表文件的内容。
+     *
+     * @param interval      写入脏子表的间隔（ms）
+     * @param maxDirtyBytes 脏子表的数据行长度之和的上限
+     */
+    public void startWriteBehind(long interval, long maxDirtyBytes) {
+        startWriteBehind(interval, maxDirtyBytes, WriteBehindSync.INTERVAL);
+    }
+
+    /**
+     * 开启写回模式，并指定写回日志同步到磁盘的方式，已经开启时只修改参数。
+     *
+     * @param interval      写入脏子表的间隔（ms），也是{@link WriteBehindSync#INTERVAL}同步写回日志的间隔
+     * @param maxDirtyBytes 脏子表的数据行长度之和的上限
+     * @param sync          写回日志同步到磁盘的方式
+     * @see #startWriteBehind(long, long)
+     */
+    public synchronized void startWriteBehind(long interval, long maxDirtyBytes, WriteBehindSync sync) {
+        assert interval > 0 && maxDirtyBytes > 0 && sync != null;
+        if (!checkWritable("startWriteBehind")) return;
+        boolean running = writeBehindInterval > 0;
+        this.maxDirtyBytes = maxDirtyBytes;
+        writeBehindInterval = interval;
+        writeBehindSync = sync;
+        writeBehindLog.setSync(sync, interval);
+        if (running) return;
+        flushExecutor = getBatchContext().getExecutor();
+        sqlCache.setDirtyEvictionListener(path -> {
+            Executor executor = flushExecutor;
+            if (executor == null) return;
+            try {
+                executor.execute(() -> flushShard(new File(path)));
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "flush evicted " + path + " rejected, it will be flushed later");
+            }
+        });
+        // 停止后重新开启时，之前还没有执行的刷新不再继续调度
+        int generation = ++writeBehindGeneration;
+        getBatchContext().scheduleTimer(() -> flushPeriodically(generation), interval);
+    }
+
+    /**
+     * 关闭写回模式并写入所有的脏子表，之后的写入直接写入子表文件。
+     *
+     * @return 脏子表是否全部写入成功
+     */
+    public boolean stopWriteBehind() {
+        synchronized (this) {
+            writeBehindInterval = 0;
+            flushExecutor = null;
+            sqlCache.setDirtyEvictionListener(null);
+        }
+        return flush();
+    }
+
+    /**
+     * @return 是否开启了写回模式
+     */
+    public boolean isWriteBehind() {
+        return writeBehindInterval > 0;
+    }
+
+    /**
+     * 把写回模式下所有的脏子表写入子表文件，全部写入后清空写回日志。
+     *
+     * @return 是否全部写入成功
+     */
+    public boolean flush() {
+        // 只读时没有脏子表，写回日志属于写入进程
+        if (accessMode == AccessMode.READ_ONLY) return true;
+        if (sqlCache.getDirtyPaths().isEmpty() && writeBehindLog.size() == 0) return true;
+        begin("flush", null);
+        long start = System.nanoTime();
+        try {
+            boolean success = true;
+            for (String path : sqlCache.getDirtyPaths()) {
+                success &= flushShard(new File(path));
+            }
+            if (!success) return false;
+            // 持有所有子表的写入锁时不会产生新的脏子表，写入刷新期间新产生的脏子表后才能清空日志
+            List<ReentrantLock> locks = Arrays.asList(shardLocks);
+            for (ReentrantLock lock : locks) {
+                lock.lock();
+            }
+            try {
+                for (String path : sqlCache.getDirtyPaths()) {
+                    success &= flushShard(new File(path));
+                }
+                if (success) writeBehindLog.reset();
+            } catch (IOException e) {
+                Log.w(TAG, "reset write-behind log failed: " + e);
+            } finally {
+                unlockShards(locks);
+            }
+            return success;
+        } finally {
+            metrics.histogram("sql.flush").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    private void flushPeriodically(int generation) {
+        if (generation != writeBehindGeneration || writeBehindInterval <= 0) return;
+        try {
+            flush();
+            // 刷新失败或者刷新期间又有新的修改时，日志中留下的记录在间隔结束时同步
+            if (writeBehindSync == WriteBehindSync.INTERVAL) writeBehindLog.sync();
+        } catch (IOException e) {
+            Log.w(TAG, "sync write-behind log failed: " + e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "flushPeriodically() failed: " + e);
+        } finally {
+            synchronized (this) {
+                long interval = writeBehindInterval;
+                if (generation == writeBehindGeneration && interval > 0 && batchContext != null) {
+                    batchContext.scheduleTimer(() -> flushPeriodically(generation), interval);
+                }
+            }
+        }
+    }
+
+    // 脏子表超过上限时在线程池中提前刷新，同时只提交一次
+    private void scheduleFlush() {
+        Executor executor = flushExecutor;
+        if (executor == null || !flushScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    flush();
+                } finally {
+                    flushScheduled.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            flushScheduled.set(false);
+        }
+    }
+
+    // 开始一个操作的追踪，只读时先同步写入进程提交的修改
+    private void begin(String operation, String tableName) {
+        tracer.begin(operation, tableName);
+        if (accessMode == AccessMode.READ_ONLY) syncShared();
+    }
+
+    private boolean checkWritable(String operation) {
+        if (accessMode == AccessMode.READ_WRITE) return true;
+        Log.e(TAG, operation + "() failed: database " + dbName + " is opened as read only");
+        return false;
+    }
+
+    // 写入进程修改子表文件前后调用，只读进程在中间开始的操作会等待修改完成
+    private void beginCommit() {
+        if (dbLock != null) dbLock.beginCommit();
+    }
+
+    private void endCommit() {
+        if (dbLock != null) dbLock.endCommit();
+    }
+
+    /**
+     * 只读时同步写入进程提交的修改：等待正在进行的提交完成，数据库的版本号变化后，
+     * 比较每个子表文件的标识、大小和修改时间，重新加载替换、追加、创建和删除了的子表。
+     * 版本号没有变化时只需要读取一次版本号。
+     *
+     * @return 同步到的数据库版本号
+     */
+    private long syncShared() {
+        if (dbLock == null) return 0;
+        long generation = dbLock.awaitGeneration();
+        synchronized (shardStamps) {
+            if (generation == syncedGeneration) return generation;
+            boolean first = syncedGeneration < 0;
+            syncedGeneration = generation;
+            Set<String> removed = new HashSet<>(shardStamps.keySet());
+            for (String table : listTables()) {
+                File[] tableFiles = new File(dbPath + File.separator + table).listFiles(
+                        file -> file.getName().endsWith(tableFileSuffix));
+                if (tableFiles == null) continue;
+                for (File tableFile : tableFiles) {
+                    String path = tableFile.getAbsolutePath();
+                    removed.remove(path);
+                    String stamp = fileStamp(tableFile);
+                    if (stamp == null) continue;
+                    String old = shardStamps.put(path, stamp);
+                    if (!first && !stamp.equals(old)) reloadShard(tableFile);
+                }
+            }
+            for (String path : removed) {
+                shardStamps.remove(path);
+                reloadShard(new File(path));
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * 执行一个读取多个子表的操作，只读时保证读到的是写入进程某次提交之后的完整状态：
+     * 读取前后数据库的版本号不同时，说明读取期间写入进程提交了修改，可能读到了多个子表一起提交的中间状态，
+     * 这时同步修改后重新读取。写入进程中的读取不需要重试。
+     */
+    private <T> T readConsistent(Supplier<T> read) {
+        if (accessMode != AccessMode.READ_ONLY || dbLock == null) return read.get();
+        while (true) {
+            long generation = syncShared();
+            T result = read.get();
+            if (dbLock.generation() == generation) return result;
+            metrics.counter("sql.readRetries").add(1);
+        }
+    }
+
+    // 子表文件的标识（替换后会变化）、大小和修改时间，文件不存在时为null
+    private static String fileStamp(File tableFile) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(tableFile.toPath(), BasicFileAttributes.class);
+            return attributes.fileKey() + ":" + attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // 丢弃子表的缓存和布隆过滤器，下次使用时重新读取，子表所在的表有索引时重新计算子表在索引中的内容
+    private void reloadShard(File tableFile) {
+        String path = tableFile.getAbsolutePath();
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            sqlCache.putToCaching(path, Collections.emptyList());
+            blooms.remove(path);
+            Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableFile.getParentFile().getName());
+            if (tableIndexes == null) return;
+            if (tableFile.exists()) {
+                updateIndexes(Collections.singletonMap(tableFile, getTableFileBeans(tableFile)));
+            } else {
+                for (SQLIndex<Bean> index : tableIndexes.values()) {
+                    index.removeShard(tableFile.getName());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 根据子表文件头中记录的最早过期时间判断子表中是否存在过期的数据行，脏子表检查最新的内容
+    private boolean hasExpiredRows(File tableFile) {
+        long now = System.currentTimeMillis();
+        SQLCache.DirtyShard dirty = sqlCache.getDirty(tableFile.getAbsolutePath());
+        if (dirty != null) return dirty.hasExpired(now);
+        TableFormat.Header header = TableFormat.readHeader(tableFile);
+        return header != null && header.hasExpired(now);
+    }
+
+    // 子表中包括过期数据行在内的所有数据行的数量
+    private int storedRowCount(File tableFile) {
+        SQLCache.DirtyShard dirty = sqlCache.getDirty(tableFile.getAbsolutePath());
+        if (dirty != null) return dirty.records.size();
+        TableFormat.Header header = TableFormat.readHeader(tableFile);
+        return header == null ? 0 : header.rowCount;
+    }
+
+    // 表的指标名
+    private static String tableMetric(File tableFile, String name) {
+        return "table." + tableFile.getParentFile().getName() + "." + name;
+    }
+
     /**
      * 需要不同的需求指定将Bean处理成一个可被存储的字符串，
      * 这个字符串必须是可以在获取数据时被解析的。
@@ -61,6 +706,19 @@ public abstract class SQLService<Bean extends SQLBean> {
      */
     public abstract Bean decoderRow(String line);
 
+    /**
+     * 复制一行数据，更新缓存中的数据时在副本上修改，不影响正在读取缓存快照的线程。
+     * 默认通过{@link #encoderRow(SQLBean)}和{@link #decoderRow(String)}复制，可以重写成更高效的方式。
+     *
+     * @param bean 需要复制的数据
+     * @return 数据的副本
+     */
+    protected Bean copyRow(Bean bean) {
+        Bean copy = decoderRow(encoderRow(bean));
+        copy.setExpireAt(bean.getExpireAt());
+        return copy;
+    }
+
     /**
      * 创建一个表，如果表已经存在则不会重复创建。
      *
@@ -79,12 +737,78 @@ public abstract class SQLService<Bean extends SQLBean> {
                 tableRootFile.mkdirs();
                 Log.d(TAG, "createTable mkdirs() path = " + tableRootPath);
             }
+            upgradeTable(tableRootFile);
+            registerTableMetrics(tableName);
         } catch (Exception e) {
             return false;
         }
         return true;
     }
 
+    // 子表文件的数量和总大小，读取指标时才遍历表目录
+    private void registerTableMetrics(String tableName) {
+        String prefix = "table." + tableName + ".";
+        metrics.gauge(prefix + "shards", () -> {
+            File[] tableFiles = getAllSubTableFile(tableName);
+            return tableFiles == null ? 0 : tableFiles.length;
+        });
+        metrics.gauge(prefix + "fileBytes", () -> {
+            File[] tableFiles = getAllSubTableFile(tableName);
+            long bytes = 0;
+            if (tableFiles != null) {
+                for (File tableFile : tableFiles) {
+                    bytes += tableFile.length();
+                }
+            }
+            return bytes;
+        });
+    }
+
+    /**
+     * 把表中旧版本格式的子表转换成当前格式（{@link TableFormat}），数据行不变，转换后的子表可以直接追加。
+     * 每个子表只需要读取文件头判断格式，已经是当前格式的子表不会被读取。
+     *
+     * @param tableRootFile 表目录
+     */
+    private void upgradeTable(File tableRootFile) {
+        File[] tableFiles = tableRootFile.listFiles((dir, name) -> name.endsWith(tableFileSuffix));
+        if (tableFiles == null) return;
+        int upgraded = 0;
+        for (File tableFile : tableFiles) {
+            if (!TableFormat.isLegacy(tableFile)) continue;
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                if (!TableFormat.isLegacy(tableFile)) continue;
+                Map<File, List<Bean>> shard = Collections.singletonMap(tableFile, getTableFileBeans(tableFile));
+                if (writeShards(shard, true)) upgraded++;
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (upgraded > 0) Log.i(TAG, "upgradeTable " + tableRootFile.getName() + " upgraded " + upgraded + " table files");
+    }
+
+    /**
+     * 创建一个有序表，如果表已经存在则不会重复创建。
+     * 有序表的数据仍然按主键的哈希分表存储，同时维护一个按主键排序的有序索引，
+     * 可以通过{@link #selectRange}按主键的范围正序或者倒序查找，不需要遍历所有子表再排序。
+     * 主键按字符串的自然顺序排序，长度相同的数字主键（例如{@link IDKit#getUniqueIDWithTime}生成的id）也就是按数值排序。
+     * 和其它索引一样，每次启动后都需要重新调用，只会重新计算上次之后被修改过的子表。
+     *
+     * @param tableName 创建的表名
+     * @return 是否创建成功或者是否已经存在。
+     */
+    public boolean createOrderedTable(String tableName) {
+        return createTable(tableName) && createIndex(tableName, keyIndexName, SQLBean::getKey, true);
+    }
+
+    /**
+     * @return 表是否是有序表
+     */
+    public boolean isOrderedTable(String tableName) {
+        return getIndex(tableName, keyIndexName) != null;
+    }
+
     /**
      * 获取一个表文件中的所有数据行。
      *
@@ -97,20 +821,63 @@ public abstract class SQLService<Bean extends SQLBean> {
             Log.e(TAG, "getTableFileBeans(tableFile: null) please sure table has created!");
             return beanLines;
         }
-        try (FileReader reader = new FileReader(tableFile); BufferedReader bufferedReader = new BufferedReader(reader)) {
-            String line, row = "";
-            // 一行一行的读取数据
-            while ((line = bufferedReader.readLine()) != null) {
-                row += line;
-                if (line.endsWith(ROW_END)) {
-                    beanLines.add(decoderRow(Base64.decode(row.replace(ROW_END, ""))));
-                    row = "";
-                }
+        readTableFile(tableFile, beanLines::add);
+        return beanLines;
+    }
+
+    /**
+     * 逐行读取并解析子表文件中的数据行，不保存读取到的数据行。
+     *
+     * @param tableFile 子表文件
+     * @param consumer  按顺序接收每一个数据行
+     */
+    private void readTableFile(File tableFile, Consumer<Bean> consumer) {
+        SQLCache.DirtyShard dirty = sqlCache.getDirty(tableFile.getAbsolutePath());
+        if (dirty != null) {
+            // 写回模式下还没有写入子表文件的内容
+            long spanStart = Tracer.spanStart();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < dirty.records.size(); i++) {
+                long expireAt = dirty.expireAt == null ? 0 : dirty.expireAt[i];
+                if (expireAt != 0 && expireAt <= now) continue;
+                Bean bean = decoderRow(Base64.decode(dirty.records.get(i)));
+                bean.setExpireAt(expireAt);
+                consumer.accept(bean);
+            }
+            Tracer.spanEnd("decode", spanStart);
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            long spanStart = Tracer.spanStart();
+            // 过期的数据行不需要解析，直接跳过
+            long now = System.currentTimeMillis();
+            if (Tracer.isTracing()) {
+                // 追踪时单独计算解析数据行的耗时
+                long[] decodeNanos = {0};
+                TableFileReader.readRows(tableFile, ROW_END, (row, expireAt) -> {
+                    if (expireAt != 0 && expireAt <= now) return;
+                    long decodeStart = System.nanoTime();
+                    Bean bean = decoderRow(Base64.decode(row));
+                    bean.setExpireAt(expireAt);
+                    decodeNanos[0] += System.nanoTime() - decodeStart;
+                    consumer.accept(bean);
+                });
+                Tracer.record("decode", decodeNanos[0]);
+            } else {
+                TableFileReader.readRows(tableFile, ROW_END, (row, expireAt) -> {
+                    if (expireAt != 0 && expireAt <= now) return;
+                    Bean bean = decoderRow(Base64.decode(row));
+                    bean.setExpireAt(expireAt);
+                    consumer.accept(bean);
+                });
             }
+            Tracer.spanEnd("read", spanStart);
+            metrics.histogram("shard.read").recordSince(start);
+            metrics.counter(tableMetric(tableFile, "bytesRead")).add(tableFile.length());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return beanLines;
     }
 
     /**
@@ -191,6 +958,29 @@ public abstract class SQLService<Bean extends SQLBean> {
         return tableFile;
     }
 
+    /**
+     * 按子表对主键分组，表目录只检查一次，每个子表只检查一次是否存在，不存在的子表中的主键被忽略。
+     *
+     * @param table 表名
+     * @param keys  主键，null会被忽略
+     * @return 子表文件 -> 子表中的主键，按主键第一次出现的顺序排列；表不存在时为null
+     */
+    protected Map<File, Set<String>> groupKeysByShard(String table, Collection<String> keys) {
+        File tableRootFile = new File(dbPath + File.separator + table);
+        if (!tableRootFile.isDirectory()) return null;
+        Map<Long, Set<String>> nameKeys = new LinkedHashMap<>();
+        for (String key : keys) {
+            if (key == null) continue;
+            nameKeys.computeIfAbsent(hash(getKeyId(key)), name -> new LinkedHashSet<>()).add(key);
+        }
+        Map<File, Set<String>> shardKeys = new LinkedHashMap<>();
+        nameKeys.forEach((name, shardKeySet) -> {
+            File tableFile = new File(tableRootFile, name + tableFileSuffix);
+            if (tableFile.exists()) shardKeys.put(tableFile, shardKeySet);
+        });
+        return shardKeys;
+    }
+
     /**
      * 获取存在的子表，子表名由关键字段的唯一id决定
      * 如果id为null，则说明不使用分表的规则获取表文件，默认表文件名为'0.tab'
@@ -207,12 +997,14 @@ public abstract class SQLService<Bean extends SQLBean> {
             return null;
         }
 
+        long spanStart = Tracer.spanStart();
         File[] subTableFiles = tableRootFile.listFiles(new FileFilter() {
             @Override
             public boolean accept(File pathname) {
                 return pathname.getAbsolutePath().endsWith(tableFileSuffix);
             }
         });
+        Tracer.spanEnd("list", spanStart);
         if (subTableFiles == null) {
             Log.e(TAG, "getAllSubTableFile(table: " + table + ") failed: sub table file not exist.");
             return null;
@@ -225,471 +1017,2533 @@ public abstract class SQLService<Bean extends SQLBean> {
      *
      * @param tableFile    表文件
      * @param beansInTable 表的最新内容
+     * @return 是否写入成功，只读或写入失败时为false，这时不能把新的内容放入缓存
      */
-    protected void refreshTable(File tableFile, List<Bean> beansInTable) {
-        StringBuilder newTableInfo = new StringBuilder();
-        beansInTable.forEach(b -> {
-            if (b == null) return;
-            newTableInfo.append(Base64.encode(encoderRow(b)) + ROW_SEPARATOR);
-        });
-        try (FileWriter fileWriter = new FileWriter(tableFile, false)) {
-            fileWriter.write(newTableInfo.toString());
-//            Log.d(TAG, "refreshTable tableFile = " + tableFile.getAbsolutePath());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    protected boolean refreshTable(File tableFile, List<Bean> beansInTable) {
+        return writeShards(Collections.singletonMap(tableFile, beansInTable), false);
     }
 
     /**
-     * 使用同步的方式插入一行数据。
+     * 将多个子表的最新内容写入表文件，所有子表的新内容在同一个版本上生效。
+     * 每个子表都先写入临时文件再替换原文件，读取子表时不会读到写了一半的内容；
+     * durable为true且写入多个子表时，会先把所有子表的新内容写入事务日志，
+     * 事务日志写入完成就是提交成功，即使之后替换子表的过程中出现异常，下次启动时也会根据事务日志恢复。
      *
-     * @param tableName 插入的表名
-     * @param row       插入的数据
-     * @return 是否成功插入
+     * @param shards  子表文件和子表的最新内容
+     * @param durable 是否需要确保写入的持久性和原子性
+     * @return 是否写入成功
      */
-    public synchronized boolean insert(String tableName, Bean row) {
-        assert row != null;
-        File tableFile;
-        if (row.getKey() == null) {
-            // 不采用分表模式
-            tableFile = getSubTableFileOrCreate(tableName, null);
-        } else {
-            tableFile = getSubTableFileOrCreate(tableName, getKeyId(row.getKey()));
-        }
-        if (tableFile == null) {
-            Log.e(TAG, "insert into " + tableName + " failed," +
-                    " please ensure table has created!");
-            return false;
+    protected boolean writeShards(Map<File, List<Bean>> shards, boolean durable) {
+        if (shards.isEmpty()) return true;
+        if (!checkWritable("writeShards")) return false;
+        // 写回模式下延迟写入，脏子表太多时直接写入，不再增加脏子表
+        if (!durable && writeBehindInterval > 0 && sqlCache.getDirtyBytes() < maxDirtyBytes * 2) {
+            return deferShards(shards);
         }
-        List<Bean> beans = getTableFileBeans(tableFile);
-        if (!beans.contains(row)) {
-            beans.add(row);
-            refreshTable(tableFile, beans);
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-        } else {
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-            return false;
+        long start = System.nanoTime();
+        List<ReentrantLock> locks = lockShards(shards.keySet());
+        long spanStart = Tracer.spanStart();
+        Map<File, File> tempFiles = new LinkedHashMap<>();
+        File journal = null;
+        try {
+            Map<String, byte[]> contents = new LinkedHashMap<>();
+            // 开启了变更日志时和写入前的内容比较得到变更，子表被替换之后就读不到了
+            List<ChangeEvent> changes = changeLog.isEnabled() ? new ArrayList<>() : null;
+            for (Map.Entry<File, List<Bean>> shard : shards.entrySet()) {
+                List<String> records = encodeRows(shard.getValue());
+                byte[] content = TableFormat.encode(records, expireAts(shard.getKey(), shard.getValue()));
+                if (changes != null) changes.addAll(diffShard(shard.getKey(), shard.getValue(), records));
+                File tempFile = new File(shard.getKey().getPath() + tempFileSuffix);
+                writeFile(tempFile, content, durable);
+                tempFiles.put(shard.getKey(), tempFile);
+                contents.put(shard.getKey().getAbsolutePath(), content);
+            }
+            if (durable && shards.size() > 1) {
+                journal = writeJournal(contents);
+            }
+            // 写回模式下的脏子表被新的内容整体替换，替换后读取子表文件
+            List<File> superseded = new ArrayList<>();
+            for (File tableFile : shards.keySet()) {
+                if (sqlCache.getDirty(tableFile.getAbsolutePath()) != null) superseded.add(tableFile);
+            }
+            beginCommit();
+            try {
+                versions.publish(contents.keySet(), null, path -> getTableFileBeans(new File(path)), () -> {
+                    for (Map.Entry<File, File> temp : tempFiles.entrySet()) {
+                        try {
+                            replaceFile(temp.getValue(), temp.getKey());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        sqlCache.clearDirty(temp.getKey().getAbsolutePath(), null);
+                    }
+                });
+            } finally {
+                endCommit();
+            }
+            for (File tableFile : superseded) {
+                logBase(tableFile, contents.get(tableFile.getAbsolutePath()));
+            }
+            if (journal != null && !journal.delete()) {
+                Log.w(TAG, "writeShards() delete journal failed, it will be replayed next time");
+            }
+            if (changes != null) changeLog.append(changes, durable);
+            contents.forEach((path, content) -> metrics.counter(tableMetric(new File(path), "bytesWritten")).add(content.length));
+            updateIndexes(shards);
+            // 子表整体写入时按最新的数据量重新计算布隆过滤器，删除了的主键也会被移除
+            shards.forEach((tableFile, beans) -> blooms.put(tableFile.getAbsolutePath(), ShardBloom.of(beans)));
+            return true;
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            // 事务日志已经写入时不能删除，下次启动时会根据日志完成写入
+            if (journal == null) {
+                for (File tempFile : tempFiles.values()) {
+                    tempFile.delete();
+                }
+            }
+            return false;
+        } finally {
+            Tracer.spanEnd("write", spanStart);
+            unlockShards(locks);
+            metrics.histogram("shard.write").recordSince(start);
+        }
+    }
+
+    /**
+     * 向子表的末尾追加数据行，不需要读取和重写子表中已有的数据，调用时需要持有子表的写入锁。
+     * 数据行写入之后才更新文件头中的有效长度，追加的过程中出现异常时，没有完成的数据行在有效长度之外，
+     * 读取时会被忽略，下次追加时被覆盖。
+     *
+     * @param tableFile 子表文件
+     * @param rows      追加的数据行，主键都不在子表中
+     * @param durable   是否同步到磁盘，确保系统崩溃后不会丢失
+     * @return 是否追加成功
+     */
+    private boolean appendRows(File tableFile, List<Bean> rows, boolean durable) {
+        if (!checkWritable("appendRows")) return false;
+        String path = tableFile.getAbsolutePath();
+        long spanStart = Tracer.spanStart();
+        List<String> records = encodeRows(rows);
+        long[] expireAt = expireAts(tableFile, rows);
+        beginCommit();
+        try {
+            versions.publish(Collections.singleton(path), null, p -> getTableFileBeans(new File(p)), () -> {
+                try {
+                    metrics.counter(tableMetric(tableFile, "bytesWritten")).add(TableFormat.append(tableFile, records, expireAt, durable));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            endCommit();
+            Tracer.spanEnd("write", spanStart);
+        }
+        if (changeLog.isEnabled()) {
+            String table = tableFile.getParentFile().getName();
+            List<ChangeEvent> changes = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                changes.add(new ChangeEvent(ChangeType.INSERT, table, rows.get(i).getKey(), Base64.decode(records.get(i))));
+            }
+            changeLog.append(changes, false);
+        }
+        ShardBloom bloom = blooms.get(path);
+        for (Bean row : rows) {
+            bloom.add(row.getKey());
+        }
+        Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableFile.getParentFile().getName());
+        if (tableIndexes != null) {
+            for (SQLIndex<Bean> index : tableIndexes.values()) {
+                index.appendRows(tableFile.getName(), rows);
+            }
+        }
+        // 只有已经缓存了的子表才需要更新缓存，没有缓存的子表不需要为此读取
+        List<Bean> caching = sqlCache.getInCaching(path);
+        if (caching != null && !caching.isEmpty()) {
+            List<Bean> beans = new ArrayList<>(caching.size() + rows.size());
+            beans.addAll(caching);
+            beans.addAll(rows);
+            sqlCache.putToCaching(path, beans);
+        }
+        return true;
+    }
+
+    /**
+     * 写回模式下延迟写入多个子表：子表最新的内容保存为脏子表，和之前内容的差别写入写回日志，
+     * 版本、索引、布隆过滤器和变更日志和直接写入时一样立即更新，子表文件在刷新时才写入。
+     *
+     * @param shards 子表文件和子表的最新内容
+     * @return 是否写入成功
+     */
+    private boolean deferShards(Map<File, List<Bean>> shards) {
+        long start = System.nanoTime();
+        List<ReentrantLock> locks = lockShards(shards.keySet());
+        long spanStart = Tracer.spanStart();
+        try {
+            Map<File, SQLCache.DirtyShard> dirty = new LinkedHashMap<>();
+            List<ChangeEvent> changes = changeLog.isEnabled() ? new ArrayList<>() : null;
+            for (Map.Entry<File, List<Bean>> shard : shards.entrySet()) {
+                List<String> records = encodeRows(shard.getValue());
+                dirty.put(shard.getKey(), new SQLCache.DirtyShard(records, expireAts(shard.getKey(), shard.getValue())));
+                if (changes != null) changes.addAll(diffShard(shard.getKey(), shard.getValue(), records));
+            }
+            Set<String> paths = new LinkedHashSet<>();
+            dirty.keySet().forEach(tableFile -> paths.add(tableFile.getAbsolutePath()));
+            versions.publish(paths, null, path -> getTableFileBeans(new File(path)), () -> {
+                for (Map.Entry<File, SQLCache.DirtyShard> shard : dirty.entrySet()) {
+                    try {
+                        markDirty(shard.getKey(), shard.getValue());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            if (changes != null) changeLog.append(changes, false);
+            updateIndexes(shards);
+            shards.forEach((tableFile, beans) -> blooms.put(tableFile.getAbsolutePath(), ShardBloom.of(beans)));
+            if (sqlCache.getDirtyBytes() > maxDirtyBytes) scheduleFlush();
+            return true;
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            Tracer.spanEnd("write", spanStart);
+            unlockShards(locks);
+            metrics.histogram("shard.defer").recordSince(start);
+        }
+    }
+
+    /**
+     * 把子表新的内容和之前内容的差别写入写回日志，并标记为脏子表，调用时持有子表的写入锁。
+     * 子表第一次成为脏子表时先记录子表文件作为基准，差别是删除的数据行和加入的数据行，恢复时在基准内容上重做。
+     */
+    private void markDirty(File tableFile, SQLCache.DirtyShard next) throws IOException {
+        String path = tableFile.getAbsolutePath();
+        boolean first = sqlCache.getDirty(path) == null;
+        // 编码后的数据行和过期时间 -> 数量
+        Map<String, Integer> old = new HashMap<>();
+        readStoredRows(tableFile, (row, expireAt) -> old.merge(expireAt + ":" + row, 1, Integer::sum));
+        List<WriteBehindLog.Change> changes = new ArrayList<>();
+        List<WriteBehindLog.Change> added = new ArrayList<>();
+        for (int i = 0; i < next.records.size(); i++) {
+            long expireAt = next.expireAt == null ? 0 : next.expireAt[i];
+            String record = next.records.get(i);
+            String key = expireAt + ":" + record;
+            Integer count = old.get(key);
+            if (count == null) {
+                added.add(new WriteBehindLog.Change(true, record, expireAt));
+            } else if (count == 1) {
+                old.remove(key);
+            } else {
+                old.put(key, count - 1);
+            }
+        }
+        old.forEach((key, count) -> {
+            int separator = key.indexOf(':');
+            long expireAt = Long.parseLong(key.substring(0, separator));
+            for (int n = 0; n < count; n++) {
+                changes.add(new WriteBehindLog.Change(false, key.substring(separator + 1), expireAt));
+            }
+        });
+        changes.addAll(added);
+        String name = tableFile.getParentFile().getName() + File.separator + tableFile.getName();
+        long length = first ? tableFile.length() : 0;
+        int crc = first ? WriteBehindLog.checksum(tableFile) : 0;
+        // 日志和脏子表一起更新，清空日志时不会漏掉新的脏子表
+        synchronized (writeBehindLog) {
+            if (first) writeBehindLog.base(name, length, crc);
+            if (!changes.isEmpty()) writeBehindLog.changes(name, changes);
+            sqlCache.markDirty(path, next);
+        }
+    }
+
+    // 子表文件被整体写入后记录新的基准，之前的修改不再需要重做
+    private void logBase(File tableFile, byte[] content) {
+        String name = tableFile.getParentFile().getName() + File.separator + tableFile.getName();
+        try {
+            writeBehindLog.base(name, content.length, WriteBehindLog.checksum(content));
+        } catch (IOException e) {
+            Log.w(TAG, "log base of " + tableFile + " failed: " + e);
+        }
+    }
+
+    /**
+     * 把脏子表写入子表文件，不是脏子表时不需要写入。
+     *
+     * @return 是否写入成功
+     */
+    private boolean flushShard(File tableFile) {
+        String path = tableFile.getAbsolutePath();
+        ReentrantLock lock = lockShard(tableFile);
+        long spanStart = Tracer.spanStart();
+        try {
+            SQLCache.DirtyShard dirty = sqlCache.getDirty(path);
+            if (dirty == null) return true;
+            byte[] content = TableFormat.encode(dirty.records, dirty.expireAt);
+            File tempFile = new File(tableFile.getPath() + tempFileSuffix);
+            try {
+                // 刷新后会清空写回日志，日志同步到磁盘时子表文件也需要先同步到磁盘
+                writeFile(tempFile, content, writeBehindSync != WriteBehindSync.NONE);
+                beginCommit();
+                try {
+                    replaceFile(tempFile, tableFile);
+                } finally {
+                    endCommit();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "flush " + tableFile + " failed: " + e);
+                tempFile.delete();
+                return false;
+            }
+            sqlCache.clearDirty(path, dirty);
+            logBase(tableFile, content);
+            metrics.counter(tableMetric(tableFile, "bytesWritten")).add(content.length);
+            return true;
+        } finally {
+            Tracer.spanEnd("write", spanStart);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 子表是否可以直接追加数据行：布隆过滤器还没有超过容量，并且子表是当前格式的，旧版本格式的子表需要整体写入一次。
+     */
+    private boolean canAppend(File tableFile) {
+        // 写回模式下子表文件可能不是最新的内容，修改都在脏子表上进行
+        if (writeBehindInterval > 0 || sqlCache.getDirty(tableFile.getAbsolutePath()) != null) return false;
+        ShardBloom bloom = getBloom(tableFile);
+        if (bloom == null || bloom.isSaturated()) return false;
+        return TableFormat.isAppendable(tableFile);
+    }
+
+    /**
+     * 子表中是否可能存在主键为key的数据行，返回false时可以不读取子表。
+     *
+     * @param tableFile 子表文件
+     * @param key       主键，为null时返回false，因为没有主键的数据行不会和其它数据行相同
+     */
+    protected boolean mightContainKey(File tableFile, String key) {
+        if (key == null) return false;
+        ShardBloom bloom = getBloom(tableFile);
+        return bloom == null || bloom.mightContain(key);
+    }
+
+    /**
+     * 获取子表的布隆过滤器，第一次使用时从文件加载，文件不存在或者已经过期时读取子表重新计算。
+     * 加载和计算需要持有子表的写入锁，避免覆盖掉并发写入后的布隆过滤器。
+     *
+     * @return 子表的布隆过滤器，子表不存在时为null
+     */
+    private ShardBloom getBloom(File tableFile) {
+        String path = tableFile.getAbsolutePath();
+        ShardBloom bloom = blooms.get(path);
+        if (bloom != null) return bloom;
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            bloom = blooms.get(path);
+            if (bloom != null) return bloom;
+            if (!tableFile.exists()) return null;
+            bloom = ShardBloom.load(bloomFile(tableFile), tableFile);
+            if (bloom == null) {
+                bloom = ShardBloom.of(getTableFileBeans(tableFile));
+                blooms.put(path, bloom);
+                saveBloom(tableFile);
+            } else {
+                blooms.put(path, bloom);
+            }
+            return bloom;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void saveBloom(File tableFile) {
+        if (accessMode == AccessMode.READ_ONLY) return;
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            ShardBloom bloom = blooms.get(tableFile.getAbsolutePath());
+            if (bloom == null || !tableFile.exists()) return;
+            bloom.save(bloomFile(tableFile), tableFile);
+        } catch (IOException e) {
+            Log.w(TAG, "save bloom filter of " + tableFile + " failed: " + e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static File bloomFile(File tableFile) {
+        String name = tableFile.getName();
+        return new File(tableFile.getParentFile(), name.substring(0, name.length() - tableFileSuffix.length()) + bloomFileSuffix);
+    }
+
+    private List<String> encodeRows(List<Bean> beans) {
+        List<String> rows = new ArrayList<>(beans.size());
+        for (Bean b : beans) {
+            if (b != null) rows.add(Base64.encode(encoderRow(b)));
+        }
+        return rows;
+    }
+
+    /**
+     * 每个数据行的过期时间，和{@link #encodeRows(List)}的结果一一对应。
+     * 没有设置过期时间的数据行在写入时使用表的TTL，并记录到数据行中。
+     *
+     * @return 每个数据行的过期时间，都不过期时为null
+     */
+    private long[] expireAts(File tableFile, List<Bean> beans) {
+        Long ttl = tableTTLs.get(tableFile.getParentFile().getName());
+        long now = System.currentTimeMillis();
+        long[] expireAt = null;
+        int i = 0;
+        for (Bean b : beans) {
+            if (b == null) continue;
+            long time = b.getExpireAt();
+            if (time == 0 && ttl != null) {
+                time = now + ttl;
+                b.setExpireAt(time);
+            }
+            if (time != 0) {
+                if (expireAt == null) expireAt = new long[beans.size()];
+                expireAt[i] = time;
+            }
+            i++;
+        }
+        return expireAt;
+    }
+
+    /**
+     * 比较子表写入前后的内容，得到每一行的变更，调用时需要持有子表的写入锁。
+     * 先按编码后的内容去掉没有变化的数据行，只需要解析有变化的旧数据行，再按主键和新数据行对应：
+     * 主键相同的是更新，只在写入后存在的是插入，只在写入前存在的（包括已经过期被去掉的）是删除。
+     *
+     * @param beans   子表写入的所有数据行
+     * @param records 和beans中不为null的数据行一一对应的编码后的内容
+     */
+    private List<ChangeEvent> diffShard(File tableFile, List<Bean> beans, List<String> records) {
+        String table = tableFile.getParentFile().getName();
+        Map<String, Integer> oldRecords = new HashMap<>();
+        try {
+            readStoredRows(tableFile, (row, expireAt) -> oldRecords.merge(row, 1, Integer::sum));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        List<Bean> added = new ArrayList<>();
+        List<String> addedRecords = new ArrayList<>();
+        int i = 0;
+        for (Bean bean : beans) {
+            if (bean == null) continue;
+            String record = records.get(i++);
+            Integer count = oldRecords.get(record);
+            if (count == null) {
+                added.add(bean);
+                addedRecords.add(record);
+            } else if (count == 1) {
+                oldRecords.remove(record);
+            } else {
+                oldRecords.put(record, count - 1);
+            }
+        }
+        Map<String, LinkedList<String>> removed = new LinkedHashMap<>();
+        oldRecords.forEach((record, count) -> {
+            String row = Base64.decode(record);
+            LinkedList<String> sameKey = removed.computeIfAbsent(decoderRow(row).getKey(), key -> new LinkedList<>());
+            for (int n = 0; n < count; n++) {
+                sameKey.add(row);
+            }
+        });
+        List<ChangeEvent> changes = new ArrayList<>(added.size() + removed.size());
+        for (int n = 0; n < added.size(); n++) {
+            String key = added.get(n).getKey();
+            LinkedList<String> sameKey = removed.get(key);
+            ChangeType type = sameKey != null && sameKey.pollFirst() != null ? ChangeType.UPDATE : ChangeType.INSERT;
+            changes.add(new ChangeEvent(type, table, key, Base64.decode(addedRecords.get(n))));
+        }
+        removed.forEach((key, rows) -> {
+            for (String row : rows) {
+                changes.add(new ChangeEvent(ChangeType.DELETE, table, key, row));
+            }
+        });
+        return changes;
+    }
+
+    // 读取子表当前编码后的所有数据行，包括过期的数据行，写回模式下的脏子表读取还没有写入子表文件的内容
+    private void readStoredRows(File tableFile, TableFileReader.RowConsumer consumer) throws IOException {
+        SQLCache.DirtyShard dirty = sqlCache.getDirty(tableFile.getAbsolutePath());
+        if (dirty != null) {
+            for (int i = 0; i < dirty.records.size(); i++) {
+                consumer.accept(dirty.records.get(i), dirty.expireAt == null ? 0 : dirty.expireAt[i]);
+            }
+        } else if (tableFile.exists()) {
+            TableFileReader.readRows(tableFile, ROW_END, consumer);
+        }
+    }
+
+    private static void writeFile(File file, byte[] content, boolean sync) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, false)) {
+            out.write(content);
+            if (sync) out.getFD().sync();
+        }
+    }
+
+    private static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 写入事务日志，日志中保存了每个子表相对数据库的路径和新的内容。
+     * 先写入临时文件并同步到磁盘，再重命名为事务日志，重命名完成即为提交成功。
+     */
+    private File writeJournal(Map<String, byte[]> contents) throws IOException {
+        File journal = new File(dbPath, journalFileName);
+        File tempJournal = new File(dbPath, journalFileName + tempFileSuffix);
+        String root = new File(dbPath).getAbsolutePath() + File.separator;
+        try (FileOutputStream fileOut = new FileOutputStream(tempJournal, false);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(contents.size());
+            for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+                byte[] path = content.getKey().substring(root.length()).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(path.length);
+                out.write(path);
+                out.writeInt(content.getValue().length);
+                out.write(content.getValue());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        replaceFile(tempJournal, journal);
+        return journal;
+    }
+
+    /**
+     * 启动时检查是否存在上次没有完成的事务日志，存在则根据日志完成子表的写入。
+     *
+     * @return 根据日志恢复了的子表文件路径
+     */
+    private List<String> recoverJournal() {
+        List<String> recovered = new ArrayList<>();
+        new File(dbPath, journalFileName + tempFileSuffix).delete();
+        File journal = new File(dbPath, journalFileName);
+        if (!journal.exists()) return recovered;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[in.readInt()];
+                in.readFully(path);
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                File tableFile = new File(dbPath, new String(path, StandardCharsets.UTF_8));
+                File tempFile = new File(tableFile.getPath() + tempFileSuffix);
+                writeFile(tempFile, content, true);
+                replaceFile(tempFile, tableFile);
+                recovered.add(tableFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return recovered;
+        }
+        journal.delete();
+        Log.i(TAG, "recoverJournal() recover " + recovered.size() + " sub tables from journal");
+        return recovered;
+    }
+
+    /**
+     * 根据写回日志恢复上次没有写入子表文件的修改：子表文件仍然是日志中记录的基准内容时，在基准内容上重做修改。
+     * 已经写入了的子表不再是基准内容，不会重复修改。恢复后数据行的内容和写入时一致，但顺序可能不同。
+     *
+     * @return 恢复了的子表路径
+     */
+    private List<String> replayWriteBehind() {
+        List<String> recovered = new ArrayList<>();
+        boolean success = true;
+        for (Map.Entry<String, WriteBehindLog.Pending> shard : writeBehindLog.read().entrySet()) {
+            WriteBehindLog.Pending pending = shard.getValue();
+            File tableFile = new File(dbPath, shard.getKey());
+            if (pending.changes.isEmpty() || !tableFile.exists()) continue;
+            try {
+                if (tableFile.length() != pending.length || WriteBehindLog.checksum(tableFile) != pending.crc) continue;
+                List<String> records = new ArrayList<>();
+                List<Long> expireAts = new ArrayList<>();
+                TableFileReader.readRows(tableFile, ROW_END, (row, expireAt) -> {
+                    records.add(row);
+                    expireAts.add(expireAt);
+                });
+                for (WriteBehindLog.Change change : pending.changes) {
+                    if (change.add) {
+                        records.add(change.record);
+                        expireAts.add(change.expireAt);
+                        continue;
+                    }
+                    for (int i = 0; i < records.size(); i++) {
+                        if (records.get(i).equals(change.record) && expireAts.get(i) == change.expireAt) {
+                            records.remove(i);
+                            expireAts.remove(i);
+                            break;
+                        }
+                    }
+                }
+                long[] expireAt = new long[expireAts.size()];
+                for (int i = 0; i < expireAt.length; i++) {
+                    expireAt[i] = expireAts.get(i);
+                }
+                File tempFile = new File(tableFile.getPath() + tempFileSuffix);
+                writeFile(tempFile, TableFormat.encode(records, expireAt), true);
+                replaceFile(tempFile, tableFile);
+                recovered.add(tableFile.getAbsolutePath());
+            } catch (IOException e) {
+                e.printStackTrace();
+                success = false;
+            }
+        }
+        // 恢复失败时保留日志，下次启动时继续恢复
+        if (success) {
+            try {
+                writeBehindLog.reset();
+            } catch (IOException e) {
+                Log.w(TAG, "reset write-behind log failed: " + e);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            Log.i(TAG, "replayWriteBehind() recover " + recovered.size() + " sub tables from write-behind log");
+        }
+        return recovered;
+    }
+
+    // 子表的写入锁，同一个子表的读取-修改-写入过程需要持有锁，读取不需要加锁
+    private ReentrantLock shardLock(File tableFile) {
+        return shardLocks[(tableFile.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % shardLocks.length];
+    }
+
+    // 获取子表的写入锁，等待锁的耗时记录在追踪的lock阶段中
+    private ReentrantLock lockShard(File tableFile) {
+        ReentrantLock lock = shardLock(tableFile);
+        long spanStart = Tracer.spanStart();
+        lock.lock();
+        Tracer.spanEnd("lock", spanStart);
+        return lock;
+    }
+
+    /**
+     * 按固定的顺序获取多个子表的写入锁，避免死锁。
+     *
+     * @return 获取到的锁，需要使用{@link #unlockShards(List)}释放
+     */
+    protected List<ReentrantLock> lockShards(Collection<File> tableFiles) {
+        TreeMap<Integer, ReentrantLock> locks = new TreeMap<>();
+        for (File tableFile : tableFiles) {
+            if (tableFile == null) continue;
+            int index = (tableFile.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % shardLocks.length;
+            locks.put(index, shardLocks[index]);
+        }
+        List<ReentrantLock> locked = new ArrayList<>(locks.values());
+        long spanStart = Tracer.spanStart();
+        for (ReentrantLock lock : locked) {
+            lock.lock();
+        }
+        Tracer.spanEnd("lock", spanStart);
+        return locked;
+    }
+
+    protected void unlockShards(List<ReentrantLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * 读取子表在快照版本上的所有数据行，用于事务的快照读。
+     * 子表在快照之后被修改过时读取保留着的历史版本，否则读取子表文件当前的内容。
+     *
+     * @param tableFile 子表文件
+     * @param snapshot  快照的版本号
+     * @return 快照版本上子表的所有数据行
+     */
+    protected List<Bean> getTableFileBeansAt(File tableFile, long snapshot) {
+        String path = tableFile.getAbsolutePath();
+        while (true) {
+            List<Bean> rows = versions.find(path, snapshot);
+            if (rows != null) return new ArrayList<>(rows);
+            if (versions.lastWrite(path) > snapshot) {
+                // 历史版本和最后写入的版本号一起记录，再查找一次就能确定
+                rows = versions.find(path, snapshot);
+                if (rows != null) return new ArrayList<>(rows);
+                Log.w(TAG, "no version of " + path + " at snapshot " + snapshot + ", read current rows");
+                return getTableFileBeans(tableFile);
+            }
+            LinkedList<Bean> beans = getTableFileBeans(tableFile);
+            // 读取的过程中子表被替换了，读到的可能是新的内容，这时历史版本一定已经保留了
+            if (versions.lastWrite(path) <= snapshot) return beans;
+        }
+    }
+
+    /**
+     * 开始一个事务。
+     * 事务中的写入先缓存在事务中，提交时所有表的修改作为一个整体写入；
+     * 事务中的读取都在事务开始时的快照上进行，不会读到其它写入的中间状态，也不会阻塞其它写入。
+     *
+     * @return 事务，使用结束后需要提交或者回滚
+     */
+    public SQLTransaction<Bean> beginTransaction() {
+        return new SQLTransaction<>(this, versions.begin());
+    }
+
+    void endTransaction(long snapshot) {
+        versions.end(snapshot);
+    }
+
+    /**
+     * 提交事务中的修改。
+     * 只要事务修改了的子表在事务开始后被其它写入修改过，就认为存在冲突，提交失败。
+     *
+     * @param snapshot 事务的快照版本号
+     * @param changes  每个子表中按主键修改的数据，值为null说明删除
+     * @return 是否提交成功
+     */
+    boolean commitTransaction(long snapshot, Map<File, Map<String, Bean>> changes) {
+        begin("commit", null);
+        long start = System.nanoTime();
+        try {
+            List<ReentrantLock> locks = lockShards(changes.keySet());
+            try {
+                for (File tableFile : changes.keySet()) {
+                    if (versions.lastWrite(tableFile.getAbsolutePath()) > snapshot) {
+                        Log.e(TAG, "commit transaction failed, because of sub table " + tableFile.getPath()
+                                + " has been changed by others after transaction begin");
+                        return false;
+                    }
+                }
+                Map<File, List<Bean>> shards = new LinkedHashMap<>();
+                changes.forEach((tableFile, rows) -> {
+                    List<Bean> beans = getTableFileBeans(tableFile);
+                    Map<String, Bean> remain = new LinkedHashMap<>(rows);
+                    ListIterator<Bean> iterator = beans.listIterator();
+                    while (iterator.hasNext()) {
+                        String key = iterator.next().getKey();
+                        if (key == null || !remain.containsKey(key)) continue;
+                        Bean row = remain.remove(key);
+                        if (row == null) {
+                            iterator.remove();
+                        } else {
+                            iterator.set(row);
+                        }
+                    }
+                    remain.forEach((key, row) -> {
+                        if (row != null) beans.add(row);
+                    });
+                    shards.put(tableFile, beans);
+                });
+                if (!writeShards(shards, true)) return false;
+                shards.forEach((tableFile, beans) -> sqlCache.putToCaching(tableFile.getAbsolutePath(), beans));
+                return true;
+            } finally {
+                unlockShards(locks);
+            }
+        } finally {
+            metrics.histogram("sql.commit").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 使用同步的方式插入一行数据。
+     *
+     * @param tableName 插入的表名
+     * @param row       插入的数据
+     * @return 是否成功插入
+     */
+    public boolean insert(String tableName, Bean row) {
+        begin("insert", tableName);
+        long start = System.nanoTime();
+        try {
+            assert row != null;
+            File tableFile;
+            if (row.getKey() == null) {
+                // 不采用分表模式
+                tableFile = getSubTableFileOrCreate(tableName, null);
+            } else {
+                tableFile = getSubTableFileOrCreate(tableName, getKeyId(row.getKey()));
+            }
+            if (tableFile == null) {
+                Log.e(TAG, "insert into " + tableName + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                // 主键一定不在子表中时直接追加，不需要读取子表判断重复
+                if (!mightContainKey(tableFile, row.getKey()) && canAppend(tableFile)) {
+                    return appendRows(tableFile, Collections.singletonList(row), false);
+                }
+                ShardRows<Bean> shardRows = getShardRows(tableFile);
+                if (!shardRows.add(row)) return false;
+                List<Bean> beans = shardRows.toList();
+                if (!refreshTable(tableFile, beans)) return false;
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.insert").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 获取子表的数据行用于修改，优先使用缓存，调用时需要持有子表的写入锁。
+     * 返回的是一个新的集合，修改它不会影响缓存，写入表文件之后再放入缓存。
+     */
+    private ShardRows<Bean> getShardRows(File tableFile) {
+        List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
+        return new ShardRows<>(caching != null && !caching.isEmpty() ? caching : getTableFileBeans(tableFile));
+    }
+
+    /**
+     * 用导入的数据生成子表新的内容并整体写入，用于批量导入{@link SQLBulkLoader}，子表只读取和写入一次。
+     * 导入的子表通常很大，写入后移除子表的缓存，而不是把整个子表放入缓存。
+     *
+     * @param tableFile 导入的子表
+     * @param merge     在子表的写入锁中执行，接收子表已有的数据行，返回子表新的内容
+     * @return 是否写入成功
+     */
+    protected boolean load(String tableName, File tableFile, UnaryOperator<List<Bean>> merge) {
+        begin("loadRows", tableName);
+        long start = System.nanoTime();
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            List<Bean> exists = tableFile.length() == 0 && sqlCache.getDirty(tableFile.getAbsolutePath()) == null
+                    ? new ArrayList<>() : getTableFileBeans(tableFile);
+            if (!writeShards(Collections.singletonMap(tableFile, merge.apply(exists)), true)) return false;
+            sqlCache.putToCaching(tableFile.getAbsolutePath(), Collections.emptyList());
+            return true;
+        } finally {
+            lock.unlock();
+            metrics.histogram("sql.loadRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 向确定的表文件中插入数据，用于批处理任务。
+     *
+     * @param tableFile
+     * @param rows
+     * @return
+     */
+    protected boolean insert(String tableName, File tableFile, List<Bean> rows) {
+        begin("insertRows", tableName);
+        long start = System.nanoTime();
+        try {
+            if (tableFile == null) {
+                Log.e(TAG, "insert into " + tableName + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            assert !rows.isEmpty();
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                if (canAppend(tableFile)) {
+                    // 所有主键都一定不在子表中时直接追加，只需要排除这一批数据之间的重复
+                    ShardRows<Bean> newRows = new ShardRows<>(rows.size());
+                    for (Bean row : rows) {
+                        if (mightContainKey(tableFile, row.getKey())) {
+                            newRows = null;
+                            break;
+                        }
+                        newRows.add(row);
+                    }
+                    if (newRows != null) return appendRows(tableFile, newRows.toList(), true);
+                }
+                ShardRows<Bean> shardRows = getShardRows(tableFile);
+                for (Bean row : rows) {
+                    shardRows.add(row);
+                }
+                List<Bean> beans = shardRows.toList();
+                if (!refreshTable(tableFile, beans)) return false;
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.insertRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 以主键为查找条件，使用同步的方式查找对应的一行数据。
+     *
+     * @param tableName 查找的表名
+     * @param key       查找的主键
+     * @return 一行数据或不存在null
+     */
+    public Bean selectByKey(String tableName, String key) {
+        begin("selectByKey", tableName);
+        long start = System.nanoTime();
+        try {
+            assert key != null;
+            File tableFile = getSubTableFile(tableName, getKeyId(key));
+            if (tableFile == null) {
+                Log.e(TAG, "select from " + tableName + " by key = " + key + " failed," +
+                        " because of table " + tableName + " has not created," +
+                        " please ensure table has created!");
+                return null;
+            }
+            Bean caching = sqlCache.getInCaching(tableFile.getAbsolutePath(), key);
+            if (caching == null) {
+                // 布隆过滤器确定主键不存在时不需要读取子表
+                if (!mightContainKey(tableFile, key)) return null;
+                List<Bean> beans = getTableFileBeans(tableFile);
+                for (Bean tableFileBean : beans) {
+                    if (key.equals(tableFileBean.getKey())) {
+                        sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+                        return tableFileBean;
+                    }
+                }
+            }
+            return caching;
+        } finally {
+            metrics.histogram("sql.selectByKey").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 按主键查找多行数据，主键按子表分组，每个子表只查找一次，不同的子表并行查找。
+     *
+     * @param tableName 查找的表名
+     * @param keys      查找的主键
+     * @return 存在的数据行，按keys的顺序排列，不存在的主键没有对应的数据行
+     */
+    public List<Bean> selectByKeys(String tableName, List<String> keys) {
+        begin("selectByKeys", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                assert keys != null;
+                return selectByKeysInOrder(tableName, keys, bean -> true);
+            });
+        } finally {
+            metrics.histogram("sql.selectByKeys").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 使用自定义的查询条件查找数据集合。
+     *
+     * @param tableName 查找的表名
+     * @param condition 自定义的查询条件
+     * @return 符合查询条件的数据集，不存在则size为0
+     */
+    public ArrayList<Bean> selectByCondition(String tableName, Condition<Bean> condition) {
+        begin("selectByCondition", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                assert condition != null;
+                File[] tableFiles = getAllSubTableFile(tableName);
+                ArrayList<Bean> allBeans = new ArrayList<>();
+                if (tableFiles == null) {
+                    Log.e(TAG, "select from " + tableName + " by condition failed," +
+                            " because of no target table exist!");
+                    return allBeans;
+                }
+                for (File tableFile : tableFiles) {
+                    List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
+                    // changed by dragon on 2020/7/23
+                    // 如果是由于delete后清除缓存导致caching不为空但是数据量为0时，会导致获取不到数据
+                    // 所以这里需要添加isEmpty的判断，其它方法也要注意这个问题
+                    if (caching != null && !caching.isEmpty()) {
+                        long spanStart = Tracer.spanStart();
+                        for (Bean tableFileBean : caching) {
+                            if (condition.accept(tableFileBean)) {
+                                allBeans.add(tableFileBean);
+                            }
+                        }
+                        Tracer.spanEnd("filter", spanStart);
+                        continue;
+                    }
+                    // 需要一个一个子表的去查找
+                    List<Bean> beans = getTableFileBeans(tableFile);
+                    boolean hasAccepted = false;
+                    long spanStart = Tracer.spanStart();
+                    for (Bean tableFileBean : beans) {
+                        if (condition.accept(tableFileBean)) {
+                            allBeans.add(tableFileBean);
+                            hasAccepted = true;
+                        }
+                    }
+                    Tracer.spanEnd("filter", spanStart);
+                    if (hasAccepted) {
+                        sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+                    }
+                }
+                return allBeans;
+            });
+        } finally {
+            metrics.histogram("sql.selectByCondition").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 分页查找符合条件的数据行，每一页只读取需要的子表，不需要为了一页数据扫描整个表。
+     * 按子表的序号和子表中数据行的位置遍历，返回的令牌记录了下一页开始的位置，传入令牌继续查找下一页。
+     * 读取的子表会放入缓存，连续翻页时同一个子表只读取一次，所以翻页的代价和页的大小有关，和翻到第几页无关。
+     * 两次翻页之间的写入可能使子表中数据行的位置发生变化，翻页时可能重复或者跳过这些子表中的少量数据行。
+     *
+     * @param tableName 查找的表名
+     * @param condition 查询条件，为null时查找所有数据行
+     * @param pageSize  每页最多多少行
+     * @param token     上一页返回的令牌（{@link SQLPage#getToken()}），为null时查找第一页
+     * @return 一页数据行和下一页的令牌，表不存在或者令牌无效时是没有下一页的空页
+     */
+    public SQLPage<Bean> selectPage(String tableName, Condition<Bean> condition, int pageSize, String token) {
+        begin("selectPage", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                assert pageSize > 0;
+                int[] position = SQLPage.parseToken(token);
+                if (position == null) {
+                    Log.e(TAG, "select page from " + tableName + " failed, because of invalid token " + token);
+                    return new SQLPage<>(new ArrayList<>(), null);
+                }
+                File[] tableFiles = getAllSubTableFile(tableName);
+                if (tableFiles == null) {
+                    Log.e(TAG, "select page from " + tableName + " failed," +
+                            " because of no target table exist!");
+                    return new SQLPage<>(new ArrayList<>(), null);
+                }
+                // 按子表的序号排序，翻页之间子表的顺序不会变化
+                TreeMap<Integer, File> shards = new TreeMap<>();
+                for (File tableFile : tableFiles) {
+                    String name = tableFile.getName();
+                    try {
+                        shards.put(Integer.parseInt(name.substring(0, name.length() - tableFileSuffix.length())), tableFile);
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                List<Bean> rows = new ArrayList<>(Math.min(pageSize, 1024));
+                for (Map.Entry<Integer, File> shard : shards.tailMap(position[0], true).entrySet()) {
+                    int offset = shard.getKey() == position[0] ? position[1] : 0;
+                    List<Bean> beans = getCachedTableFileBeans(shard.getValue());
+                    long spanStart = Tracer.spanStart();
+                    try {
+                        for (int i = offset; i < beans.size(); i++) {
+                            Bean bean = beans.get(i);
+                            if (condition != null && !condition.accept(bean)) continue;
+                            rows.add(bean);
+                            if (rows.size() == pageSize) return new SQLPage<>(rows, SQLPage.token(shard.getKey(), i + 1));
+                        }
+                    } finally {
+                        Tracer.spanEnd("filter", spanStart);
+                    }
+                }
+                return new SQLPage<>(rows, null);
+            });
+        } finally {
+            metrics.histogram("sql.selectPage").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 使用同步的方式查找整张表的数据集合
+     *
+     * @param tableName 查找的表名
+     * @return 整张表的数据集，或者size为0
+     */
+    public List<Bean> selectAll(String tableName) {
+        begin("selectAll", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                File[] tableFiles = getAllSubTableFile(tableName);
+                List<Bean> allBeans = new ArrayList<>();
+                if (tableFiles == null) {
+                    Log.e(TAG, "select all from " + tableName + " failed, because of no target table exist!");
+                    return allBeans;
+                }
+                for (File tableFile : tableFiles) {
+                    List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
+                    if (caching != null && !caching.isEmpty()) {
+                        allBeans.addAll(caching);
+                        continue;
+                    }
+                    // 获取全部时，不能在缓存中拿了，因为可能缓存中并不包含一个表的所有内容
+                    List<Bean> beans = getTableFileBeans(tableFile);
+                    sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+                    allBeans.addAll(beans);
+                }
+                return allBeans;
+            });
+        } finally {
+            metrics.histogram("sql.selectAll").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 同步方式的不同表之间的嵌套查询，
+     * 在上一个表的查询结果中继续匹配当前表中存在的结果并返回。
+     * 可以将此次的嵌套查询结果作为下一个表的嵌套查询的基础。
+     *
+     * @param tableName  当前嵌套的表名
+     * @param condition  当前嵌套的表的查询条件
+     * @param lastResult 上一个表的查询结果，可以使用其它的查询结果作为输入，不能为空
+     * @return 当前嵌套的查询结果
+     */
+    public List<Bean> selectNest(String tableName, Condition<Bean> condition, List<Bean> lastResult) {
+        begin("selectNest", tableName);
+        long start = System.nanoTime();
+        try {
+            List<Bean> allBeans = new ArrayList<>();
+            List<Bean> nestResult = selectByCondition(tableName, condition);
+            // 匹配结果的最大数据量，也就是上一个结果集lastResult和当前表查询结果集nestResult数量的最小值
+            // 可以匹配到该数量的结果时结束剩余部分的匹配，避免其它不必要的匹配过程，提高匹配效率。
+            int maxResultSize;
+            if (nestResult.size() > lastResult.size()) {
+                maxResultSize = lastResult.size();
+                for (Bean nest : nestResult) {
+                    for (Bean last : lastResult) {
+                        if (nest.equals(last)) {
+                            allBeans.add(nest);
+                            // 已经达到最大返回结果的数量，不需要继续查找了
+                            if (maxResultSize == allBeans.size()) {
+                                return allBeans;
+                            }
+                        }
+                    }
+                }
+            } else {
+                maxResultSize = nestResult.size();
+                for (Bean nest : lastResult) {
+                    for (Bean last : nestResult) {
+                        if (nest.equals(last)) {
+                            allBeans.add(nest);
+                            // 已经达到最大返回结果的数量，不需要继续查找了
+                            if (maxResultSize == allBeans.size()) {
+                                return allBeans;
+                            }
+                        }
+                    }
+                }
+            }
+            return allBeans;
+        } finally {
+            metrics.histogram("sql.selectNest").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 确定子表文件时直接更新表，批处理任务可用。
+     * 在子表的写入锁中重新读取子表并执行条件和更新操作，不会覆盖批处理任务等待期间其它线程写入的数据。
+     *
+     * @param tableName 表名
+     * @param tableFile 子表文件
+     * @param condition 自定义条件
+     * @param operation 对匹配条件的数据进行的操作
+     * @return 是否更新成功
+     */
+    protected boolean update(String tableName, File tableFile, Condition<Bean> condition, Operation<Bean> operation) {
+        begin("updateRows", tableName);
+        long start = System.nanoTime();
+        try {
+            if (tableFile == null) {
+                Log.e(TAG, "update " + tableName + " by batch failed," +
+                        " because of table " + tableName + " has not created, please ensure table has created!");
+                return false;
+            }
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                List<Bean> beans = sqlCache.getInCaching(tableFile.getAbsolutePath());
+                if (beans == null || beans.isEmpty()) {
+                    beans = getTableFileBeans(tableFile);
+                }
+                List<Bean> newBeans = new ArrayList<>(beans.size());
+                boolean hasAccepted = false;
+                for (Bean bean : beans) {
+                    if (condition.accept(bean)) {
+                        // 缓存快照中的数据可能正在被其它线程读取，在副本上执行更新操作
+                        newBeans.add(operation.operate(copyRow(bean)));
+                        hasAccepted = true;
+                    } else {
+                        newBeans.add(bean);
+                    }
+                }
+                // 等待期间匹配的数据已经被修改或删除了
+                if (!hasAccepted) return true;
+                if (!writeShards(Collections.singletonMap(tableFile, newBeans), false)) return false;
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), newBeans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.updateRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 以主键为为更新条件，同步的方式更新新的数据。
+     *
+     * @param tableName 更新的表名
+     * @param update    更新后的数据，需要包含正确的主键
+     * @return 是否更新成功
+     */
+    public boolean updateByKey(String tableName, Bean update) {
+        begin("updateByKey", tableName);
+        long start = System.nanoTime();
+        try {
+            // 根据主键更新时，bean的key必须确保存在
+            assert update != null && update.getKey() != null;
+            if (update == null || update.getKey() == null) {
+                Log.e(TAG, "update " + tableName + " by key failed," +
+                        " because of update bean or bean's key must not be null!");
+                return false;
+            }
+            File tableFile = getSubTableFile(tableName, getKeyId(update.getKey()));
+            if (tableFile == null) {
+                Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
+                        " because of table " + tableName + " has not created, please ensure table has created!");
+                return false;
+            }
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                if (!mightContainKey(tableFile, update.getKey())) {
+                    Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
+                            " because of the table has not this bean " + update);
+                    return false;
+                }
+                ShardRows<Bean> shardRows = getShardRows(tableFile);
+                if (!shardRows.replace(update)) {
+                    // 表中不存在要更新的主键
+                    Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
+                            " because of the table has not this bean " + update);
+                    return false;
+                }
+                List<Bean> beans = shardRows.toList();
+                if (!refreshTable(tableFile, beans)) return false;
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.updateByKey").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 插入或更新一行数据：主键不存在时插入，存在时替换主键相同的第一行数据。
+     * 只需要一次查找和一次写入，主键一定不在子表中时直接追加。
+     *
+     * @param tableName 表名
+     * @param row       插入或更新的数据
+     * @return 是否写入成功
+     */
+    public boolean upsert(String tableName, Bean row) {
+        begin("upsert", tableName);
+        long start = System.nanoTime();
+        try {
+            assert row != null;
+            File tableFile = getSubTableFileOrCreate(tableName, row.getKey() == null ? null : getKeyId(row.getKey()));
+            if (tableFile == null) {
+                Log.e(TAG, "upsert into " + tableName + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            return upsertRows(tableFile, Collections.singletonList(row));
+        } finally {
+            metrics.histogram("sql.upsert").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 按主键原子地读取、修改并写入一行数据，主键不存在时operation收到null，可以创建新的数据行，
+     * 例如计数：{@code upsert(table, key, old -> old == null ? new Counter(key, 1) : old.increase())}。
+     *
+     * @param tableName 表名
+     * @param key       主键
+     * @param operation 接收当前数据行的副本（不存在时为null），返回新的数据行，主键必须不变，返回null时不修改
+     * @return 是否修改了数据行并写入成功
+     */
+    public boolean upsert(String tableName, String key, Operation<Bean> operation) {
+        begin("upsert", tableName);
+        long start = System.nanoTime();
+        try {
+            assert key != null && operation != null;
+            File tableFile = getSubTableFileOrCreate(tableName, getKeyId(key));
+            if (tableFile == null) {
+                Log.e(TAG, "upsert into " + tableName + " by key = " + key + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            return mergeRows(tableFile, Collections.singleton(key), operation, true) > 0;
+        } finally {
+            metrics.histogram("sql.upsert").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 按主键修改一行数据的部分字段，只需要一次查找和一次写入，不需要先查询出完整的数据再按主键更新。
+     *
+     * @param tableName 表名
+     * @param key       主键
+     * @param operation 接收当前数据行的副本，返回修改后的数据行，主键必须不变，返回null时不修改
+     * @return 是否修改成功，表中不存在该主键时返回false
+     */
+    public boolean patch(String tableName, String key, Operation<Bean> operation) {
+        begin("patch", tableName);
+        long start = System.nanoTime();
+        try {
+            assert key != null && operation != null;
+            File tableFile = getSubTableFile(tableName, getKeyId(key));
+            if (tableFile == null) {
+                Log.e(TAG, "patch " + tableName + " by key = " + key + " failed," +
+                        " because of table " + tableName + " has not created, please ensure table has created!");
+                return false;
+            }
+            return mergeRows(tableFile, Collections.singleton(key), operation, false) > 0;
+        } finally {
+            metrics.histogram("sql.patch").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 向确定的表文件中插入或更新多行数据，用于批处理任务。
+     * 这一批数据中主键相同的以最后一行为准。
+     *
+     * @param tableName 表名
+     * @param tableFile 子表文件
+     * @param rows      插入或更新的数据，都属于这个子表
+     * @return 是否写入成功
+     */
+    protected boolean upsert(String tableName, File tableFile, List<Bean> rows) {
+        begin("upsertRows", tableName);
+        long start = System.nanoTime();
+        try {
+            if (tableFile == null) {
+                Log.e(TAG, "upsert into " + tableName + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            return upsertRows(tableFile, rows);
+        } finally {
+            metrics.histogram("sql.upsertRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 按主键修改确定的表文件中的多行数据，用于批处理任务。
+     *
+     * @param tableName 表名
+     * @param tableFile 子表文件
+     * @param keys      主键，都属于这个子表
+     * @param operation 接收当前数据行的副本，返回修改后的数据行
+     * @param create    主键不存在时是否以null调用operation创建数据行
+     * @return 是否写入成功，不存在的主键不算失败
+     */
+    protected boolean patch(String tableName, File tableFile, Collection<String> keys, Operation<Bean> operation, boolean create) {
+        begin("patchRows", tableName);
+        long start = System.nanoTime();
+        try {
+            if (tableFile == null) {
+                Log.e(TAG, "patch " + tableName + " failed," +
+                        " please ensure table has created!");
+                return false;
+            }
+            return mergeRows(tableFile, keys, operation, create) >= 0;
+        } finally {
+            metrics.histogram("sql.patchRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    // 插入或更新子表中的多行数据
+    private boolean upsertRows(File tableFile, List<Bean> rows) {
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            if (canAppend(tableFile)) {
+                // 所有主键都一定不在子表中时直接追加，只需要合并这一批数据中主键相同的
+                ShardRows<Bean> newRows = new ShardRows<>(rows.size());
+                for (Bean row : rows) {
+                    if (mightContainKey(tableFile, row.getKey())) {
+                        newRows = null;
+                        break;
+                    }
+                    newRows.put(row);
+                }
+                if (newRows != null) return appendRows(tableFile, newRows.toList(), false);
+            }
+            ShardRows<Bean> shardRows = getShardRows(tableFile);
+            for (Bean row : rows) {
+                shardRows.put(row);
+            }
+            List<Bean> beans = shardRows.toList();
+            if (!writeShards(Collections.singletonMap(tableFile, beans), false)) return false;
+            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按主键修改子表中的多行数据，所有修改只写入一次。
+     *
+     * @return 修改了的数据行数量，写入失败时为-1
+     */
+    private int mergeRows(File tableFile, Collection<String> keys, Operation<Bean> operation, boolean create) {
+        ReentrantLock lock = lockShard(tableFile);
+        try {
+            List<Bean> merged = new ArrayList<>(keys.size());
+            boolean mightContain = false;
+            for (String key : keys) {
+                if (mightContainKey(tableFile, key)) {
+                    mightContain = true;
+                    break;
+                }
+            }
+            // 所有主键都一定不在子表中时不需要读取子表
+            if (!mightContain && !create) return 0;
+            if (!mightContain && canAppend(tableFile)) {
+                // 创建的数据行直接追加
+                for (String key : keys) {
+                    Bean row = checkMerged(key, operation.operate(null));
+                    if (row != null) merged.add(row);
+                }
+                if (merged.isEmpty()) return 0;
+                return appendRows(tableFile, merged, false) ? merged.size() : -1;
+            }
+            ShardRows<Bean> shardRows = getShardRows(tableFile);
+            for (String key : keys) {
+                Bean origin = shardRows.get(key);
+                if (origin == null && !create) continue;
+                // 缓存快照中的数据可能正在被其它线程读取，在副本上执行修改
+                Bean row = checkMerged(key, operation.operate(origin == null ? null : copyRow(origin)));
+                if (row == null) continue;
+                shardRows.put(row);
+                merged.add(row);
+            }
+            if (merged.isEmpty()) return 0;
+            List<Bean> beans = shardRows.toList();
+            if (!writeShards(Collections.singletonMap(tableFile, beans), false)) return -1;
+            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            return merged.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 修改后的数据行必须保持主键不变，否则会被写入错误的子表
+    private Bean checkMerged(String key, Bean row) {
+        if (row == null) return null;
+        if (!key.equals(row.getKey())) {
+            Log.e(TAG, "merge row by key = " + key + " failed, because of the operation changed the key to " + row.getKey());
+            return null;
+        }
+        return row;
+    }
+
+    /**
+     * 自定义更新条件和对匹配条件的数据进行的操作。
+     * 所有子表的更新作为一个整体写入，不会出现部分子表已经更新、部分子表没有更新的情况。
+     *
+     * @param tableName 更新的表名
+     * @param condition 自定义条件
+     * @param operation 更新操作
+     * @return 是否全部更新成功
+     */
+    public boolean updateByCondition(String tableName, Condition<Bean> condition, Operation<Bean> operation) {
+        begin("updateByCondition", tableName);
+        long start = System.nanoTime();
+        try {
+            assert condition != null && operation != null;
+            File[] tableFiles = getAllSubTableFile(tableName);
+            if (tableFiles == null) {
+                Log.e(TAG, "update " + tableName + " by condition failed," +
+                        " because of no target table exist!");
+                return false;
+            }
+            List<ReentrantLock> locks = lockShards(Arrays.asList(tableFiles));
+            try {
+                Map<File, List<Bean>> changedTables = new LinkedHashMap<>();
+                for (File tableFile : tableFiles) {
+                    List<Bean> beans = sqlCache.getInCaching(tableFile.getAbsolutePath());
+                    if (beans == null || beans.isEmpty()) {
+                        // 缓存中没有这个子表的数据，需要去子表中查找
+                        beans = getTableFileBeans(tableFile);
+                    }
+                    List<Bean> newBeans = new ArrayList<>(beans.size());
+                    boolean hasAccepted = false;
+                    long spanStart = Tracer.spanStart();
+                    for (Bean tableFileBean : beans) {
+                        if (condition.accept(tableFileBean)) {
+                            // 缓存快照中的数据可能正在被其它线程读取，在副本上执行更新操作
+                            newBeans.add(operation.operate(copyRow(tableFileBean)));
+                            hasAccepted = true;
+                        } else {
+                            newBeans.add(tableFileBean);
+                        }
+                    }
+                    Tracer.spanEnd("filter", spanStart);
+                    // 查找的这张表没有匹配的项，查找下一张子表
+                    if (hasAccepted) changedTables.put(tableFile, newBeans);
+                }
+                if (!writeShards(changedTables, true)) return false;
+                changedTables.forEach((tableFile, beans) -> sqlCache.putToCaching(tableFile.getAbsolutePath(), beans));
+            } finally {
+                unlockShards(locks);
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.updateByCondition").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 确定子表文件时直接删除匹配条件的数据，批处理任务可用。
+     * 在子表的写入锁中重新读取子表并执行条件，不会覆盖批处理任务等待期间其它线程写入的数据。
+     *
+     * @param tableName 表名
+     * @param tableFile 子表文件
+     * @param condition 自定义删除条件
+     * @return 是否删除成功
+     */
+    protected boolean delete(String tableName, File tableFile, Condition<Bean> condition) {
+        begin("deleteRows", tableName);
+        long start = System.nanoTime();
+        try {
+            if (tableFile == null) {
+                Log.e(TAG, "delete " + tableName + " by batch failed," +
+                        " because of table " + tableName + " has not created," +
+                        " please ensure table has created!");
+                return false;
+            }
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                List<Bean> beans = sqlCache.getInCaching(tableFile.getAbsolutePath());
+                if (beans == null || beans.isEmpty()) {
+                    beans = getTableFileBeans(tableFile);
+                }
+                // 一次遍历分出需要保留的bean，不需要逐个从集合中删除
+                List<Bean> keptBeans = new ArrayList<>(beans.size());
+                for (Bean bean : beans) {
+                    if (!condition.accept(bean)) keptBeans.add(bean);
+                }
+                // 等待期间匹配的数据已经被删除了
+                if (keptBeans.size() == beans.size()) return true;
+                if (!writeShards(Collections.singletonMap(tableFile, keptBeans), false)) return false;
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), keptBeans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.deleteRows").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 以主键为条件删除指定的一行数据。
+     *
+     * @param tableName 删除数据的表名
+     * @param key       数据的主键值
+     * @return 是否删除成功，表中不存在该主键时返回false
+     */
+    public boolean deleteByKey(String tableName, String key) {
+        begin("deleteByKey", tableName);
+        long start = System.nanoTime();
+        try {
+            assert key != null;
+            File tableFile = getSubTableFile(tableName, getKeyId(key));
+            if (tableFile == null) {
+                Log.e(TAG, "delete " + tableName + " by key = " + key + " failed," +
+                        " because of table " + tableName + " has not created," +
+                        " please ensure table has created!");
+                return false;
+            }
+            ReentrantLock lock = lockShard(tableFile);
+            try {
+                if (!mightContainKey(tableFile, key)) return false;
+                ShardRows<Bean> shardRows = getShardRows(tableFile);
+                if (shardRows.removeKey(key) == null) return false;
+                List<Bean> beans = shardRows.toList();
+                if (!refreshTable(tableFile, beans)) return false;
+                // 需要删除缓存中的这些匹配删除条件的bean
+                sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            metrics.histogram("sql.deleteByKey").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 按主键删除多行数据，主键按子表分组，每个子表只读取和写入一次，所有子表的删除作为一个整体写入。
+     *
+     * @param tableName 要删除数据的表名
+     * @param keys      数据的主键值
+     * @return 被删除的数据行，按keys的顺序排列，写入失败时为空
+     */
+    public List<Bean> deleteByKeys(String tableName, Collection<String> keys) {
+        begin("deleteByKeys", tableName);
+        long start = System.nanoTime();
+        try {
+            assert keys != null;
+            List<Bean> deleted = new ArrayList<>();
+            Map<File, Set<String>> shardKeys = groupKeysByShard(tableName, keys);
+            if (shardKeys == null) {
+                Log.e(TAG, "delete " + tableName + " by keys failed," +
+                        " because of table " + tableName + " has not created," +
+                        " please ensure table has created!");
+                return deleted;
+            }
+            // 在获取写入锁之前用布隆过滤器排除一定不存在的主键，加载布隆过滤器时需要获取子表的写入锁
+            shardKeys.entrySet().removeIf(shard -> {
+                shard.getValue().removeIf(key -> !mightContainKey(shard.getKey(), key));
+                return shard.getValue().isEmpty();
+            });
+            if (shardKeys.isEmpty()) return deleted;
+            List<File> tableFiles = new ArrayList<>(shardKeys.keySet());
+            List<ReentrantLock> locks = lockShards(tableFiles);
+            try {
+                Map<String, Bean> removed = new ConcurrentHashMap<>();
+                AtomicReferenceArray<List<Bean>> remains = new AtomicReferenceArray<>(tableFiles.size());
+                forEachShardParallel(tableFiles.size(), i -> {
+                    ShardRows<Bean> shardRows = getShardRows(tableFiles.get(i));
+                    boolean changed = false;
+                    for (String key : shardKeys.get(tableFiles.get(i))) {
+                        Bean bean = shardRows.removeKey(key);
+                        if (bean == null) continue;
+                        removed.put(key, bean);
+                        changed = true;
+                    }
+                    // 没有删除任何数据行的子表不需要写入
+                    if (changed) remains.set(i, shardRows.toList());
+                });
+                Map<File, List<Bean>> changedTables = new LinkedHashMap<>();
+                for (int i = 0; i < tableFiles.size(); i++) {
+                    if (remains.get(i) != null) changedTables.put(tableFiles.get(i), remains.get(i));
+                }
+                if (!writeShards(changedTables, true)) return deleted;
+                changedTables.forEach((tableFile, beans) -> sqlCache.putToCaching(tableFile.getAbsolutePath(), beans));
+                for (String key : keys) {
+                    Bean bean = key == null ? null : removed.remove(key);
+                    if (bean != null) deleted.add(bean);
+                }
+                return deleted;
+            } finally {
+                unlockShards(locks);
+            }
+        } finally {
+            metrics.histogram("sql.deleteByKeys").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 自定义删除条件，对匹配的数据行执行删除操作。
+     * 所有子表的删除作为一个整体写入。
+     *
+     * @param tableName 要删除数据的表名
+     * @param condition 自定义删除条件
+     * @return 正确删除的数据集合
+     */
+    public List<Bean> deleteByCondition(String tableName, Condition<Bean> condition) {
+        begin("deleteByCondition", tableName);
+        long start = System.nanoTime();
+        try {
+            assert condition != null;
+            return deleteFromAllSubTables(tableName, condition, "delete " + tableName + " by condition");
+        } finally {
+            metrics.histogram("sql.deleteByCondition").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 删除指定的整张表的数据。
+     *
+     * @param tableName 删除的表名
+     * @return 删除了的数据集合
+     */
+    public List<Bean> deleteAll(String tableName) {
+        begin("deleteAll", tableName);
+        long start = System.nanoTime();
+        try {
+            return deleteFromAllSubTables(tableName, bean -> true, "delete all from " + tableName);
+        } finally {
+            metrics.histogram("sql.deleteAll").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    private List<Bean> deleteFromAllSubTables(String tableName, Condition<Bean> condition, String operation) {
+        File[] tableFiles = getAllSubTableFile(tableName);
+        List<Bean> allAcceptBeans = new ArrayList<>();
+        if (tableFiles == null) {
+            Log.e(TAG, operation + " failed," +
+                    " because of table " + tableName + " has not created," +
+                    " please ensure table has created!");
+            return allAcceptBeans;
+        }
+        List<ReentrantLock> locks = lockShards(Arrays.asList(tableFiles));
+        try {
+            Map<File, List<Bean>> changedTables = new LinkedHashMap<>();
+            for (File tableFile : tableFiles) {
+                // 需要一个一个子表的去查找
+                List<Bean> beans = getTableFileBeans(tableFile);
+                List<Bean> remainBeans = new ArrayList<>(beans.size());
+                long spanStart = Tracer.spanStart();
+                for (Bean tableFileBean : beans) {
+                    if (condition.accept(tableFileBean)) {
+                        allAcceptBeans.add(tableFileBean);
+                    } else {
+                        remainBeans.add(tableFileBean);
+                    }
+                }
+                Tracer.spanEnd("filter", spanStart);
+                if (remainBeans.size() < beans.size()) changedTables.put(tableFile, remainBeans);
+            }
+            if (!writeShards(changedTables, true)) return new ArrayList<>();
+            // 需要删除缓存中的这些匹配删除条件的bean
+            changedTables.forEach((tableFile, beans) -> sqlCache.putToCaching(tableFile.getAbsolutePath(), beans));
+        } finally {
+            unlockShards(locks);
+        }
+        return allAcceptBeans;
+    }
+
+    /**
+     * 为表创建一个哈希索引，用于按字段值查找，不需要遍历所有子表。
+     *
+     * @param tableName 表名
+     * @param indexName 索引名，同一个表中唯一，也是索引文件的文件名
+     * @param extractor 获取数据行中被索引的字段值
+     * @return 是否创建成功
+     * @see #createIndex(String, String, Extractor, boolean)
+     */
+    public boolean createIndex(String tableName, String indexName, Extractor<Bean> extractor) {
+        return createIndex(tableName, indexName, extractor, false);
+    }
+
+    /**
+     * 为表创建一个二级索引，索引由数据库服务在每次写入子表时自动维护。
+     * 索引的定义不会被持久化，每次启动后需要重新创建；索引的内容会持久化到表目录下，
+     * 重新创建时只需要重新计算上次持久化之后被修改过的子表。
+     * 字段值需要正确实现equals和hashCode，并且能被Gson序列化；有序索引的字段值还需要实现Comparable。
+     *
+     * @param tableName 表名
+     * @param indexName 索引名，同一个表中唯一，也是索引文件的文件名
+     * @param extractor 获取数据行中被索引的字段值，返回null的数据行不会被索引
+     * @param sorted    是否是有序索引，有序索引可以按字段值的范围查找
+     * @return 是否创建成功
+     */
+    public boolean createIndex(String tableName, String indexName, Extractor<Bean> extractor, boolean sorted) {
+        assert indexName != null && extractor != null;
+        File tableRootFile = new File(dbPath + File.separator + tableName);
+        if (!tableRootFile.isDirectory()) {
+            Log.e(TAG, "create index " + indexName + " on " + tableName + " failed," +
+                    " because of table " + tableName + " has not created, please ensure table has created!");
+            return false;
+        }
+        SQLIndex<Bean> index = new SQLIndex<>(tableName, indexName, extractor, sorted,
+                new File(tableRootFile, indexName + indexFileSuffix));
+        // 先登记索引再计算，计算过程中完成的写入也会更新索引
+        Map<String, SQLIndex<Bean>> tableIndexes = indexes.computeIfAbsent(tableName, key -> new ConcurrentHashMap<>());
+        if (tableIndexes.putIfAbsent(indexName, index) != null) {
+            Log.d(TAG, "index " + indexName + " on " + tableName + " already exists");
+            return true;
+        }
+        File[] tableFiles = getAllSubTableFile(tableName);
+        if (tableFiles == null) tableFiles = new File[0];
+        List<ReentrantLock> locks = lockShards(Arrays.asList(tableFiles));
+        try {
+            Set<String> loaded = index.load(tableFiles);
+            for (File tableFile : tableFiles) {
+                if (!loaded.contains(tableFile.getName())) {
+                    index.updateShard(tableFile.getName(), getTableFileBeans(tableFile));
+                }
+            }
+            if (loaded.size() < tableFiles.length) index.save(tableFiles);
+            Log.d(TAG, "create index " + index + ", rebuild " + (tableFiles.length - loaded.size()) + " sub tables");
+        } finally {
+            unlockShards(locks);
         }
         return true;
     }
 
     /**
-     * 向确定的表文件中插入数据，用于批处理任务。
+     * 删除表的一个二级索引以及索引文件。
+     *
+     * @param tableName 表名
+     * @param indexName 索引名
+     * @return 索引是否存在
+     */
+    public boolean dropIndex(String tableName, String indexName) {
+        Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableName);
+        SQLIndex<Bean> index = tableIndexes == null ? null : tableIndexes.remove(indexName);
+        if (index == null) return false;
+        index.deleteFile();
+        return true;
+    }
+
+    /**
+     * @return 表的二级索引，不存在时为null
+     */
+    public SQLIndex<Bean> getIndex(String tableName, String indexName) {
+        Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableName);
+        return tableIndexes == null ? null : tableIndexes.get(indexName);
+    }
+
+    /**
+     * 通过二级索引查找字段值等于value的所有数据行，只需要读取包含这些数据行的子表。
+     *
+     * @param tableName 查找的表名
+     * @param indexName 索引名
+     * @param value     字段值
+     * @return 符合条件的数据集，不存在则size为0
+     */
+    public List<Bean> selectByIndex(String tableName, String indexName, Object value) {
+        begin("selectByIndex", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                SQLIndex<Bean> index = getIndex(tableName, indexName);
+                if (index == null) {
+                    Log.e(TAG, "select from " + tableName + " by index " + indexName + " failed, because of index not exist!");
+                    return new ArrayList<>();
+                }
+                if (value == null) return new ArrayList<>();
+                return selectByKeysInOrder(tableName, index.keysOf(value), bean -> value.equals(index.extract(bean)));
+            });
+        } finally {
+            metrics.histogram("sql.selectByIndex").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 通过有序索引查找字段值在[from, to]范围内的所有数据行，结果按字段值排序。
+     *
+     * @param tableName 查找的表名
+     * @param indexName 有序索引的索引名
+     * @param from      字段值的下限（包含），null表示不限制
+     * @param to        字段值的上限（包含），null表示不限制
+     * @return 符合条件的数据集，不存在则size为0
+     */
+    public List<Bean> selectByIndexRange(String tableName, String indexName, Object from, Object to) {
+        return selectByIndexRange(tableName, indexName, from, to, 0, false);
+    }
+
+    /**
+     * 通过有序索引查找字段值在[from, to]范围内的数据行，结果按字段值排序。
+     *
+     * @param tableName 查找的表名
+     * @param indexName 有序索引的索引名
+     * @param from      字段值的下限（包含），null表示不限制
+     * @param to        字段值的上限（包含），null表示不限制
+     * @param limit     最多返回多少行，不大于0时不限制
+     * @param reverse   是否按字段值从大到小的顺序返回
+     * @return 符合条件的数据集，不存在则size为0
+     */
+    @SuppressWarnings("unchecked")
+    public List<Bean> selectByIndexRange(String tableName, String indexName, Object from, Object to,
+                                         int limit, boolean reverse) {
+        begin("selectByIndexRange", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                SQLIndex<Bean> index = getIndex(tableName, indexName);
+                if (index == null || !index.isSorted()) {
+                    Log.e(TAG, "select from " + tableName + " by index range " + indexName + " failed," +
+                            " because of sorted index not exist!");
+                    return new ArrayList<>();
+                }
+                return selectByKeysInOrder(tableName, index.keysBetween(from, to, limit, reverse), bean -> {
+                    Object value = index.extract(bean);
+                    if (value == null) return false;
+                    return (from == null || ((Comparable<Object>) value).compareTo(from) >= 0)
+                            && (to == null || ((Comparable<Object>) value).compareTo(to) <= 0);
+                });
+            });
+        } finally {
+            metrics.histogram("sql.selectByIndexRange").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 在有序表中按主键的范围查找数据行，结果按主键排序。
+     *
+     * @param tableName 有序表的表名
+     * @param fromKey   主键的下限（包含），null表示不限制
+     * @param toKey     主键的上限（包含），null表示不限制
+     * @param limit     最多返回多少行，不大于0时不限制
+     * @return 符合条件的数据集，不存在则size为0
+     */
+    public List<Bean> selectRange(String tableName, String fromKey, String toKey, int limit) {
+        return selectRange(tableName, fromKey, toKey, limit, false);
+    }
+
+    /**
+     * 在有序表中按主键的范围查找数据行，例如查找时间序列表中最新的100条数据：
+     * {@code selectRange(table, null, null, 100, true)}。
+     *
+     * @param tableName 有序表的表名
+     * @param fromKey   主键的下限（包含），null表示不限制
+     * @param toKey     主键的上限（包含），null表示不限制
+     * @param limit     最多返回多少行，不大于0时不限制
+     * @param reverse   是否按主键从大到小的顺序返回
+     * @return 符合条件的数据集，不存在则size为0
+     */
+    public List<Bean> selectRange(String tableName, String fromKey, String toKey, int limit, boolean reverse) {
+        begin("selectRange", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                if (!isOrderedTable(tableName)) {
+                    Log.e(TAG, "select range from " + tableName + " failed," +
+                            " because of table " + tableName + " is not ordered, please create it by createOrderedTable!");
+                    return new ArrayList<>();
+                }
+                return selectByIndexRange(tableName, keyIndexName, fromKey, toKey, limit, reverse);
+            });
+        } finally {
+            metrics.histogram("sql.selectRange").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 统计表中数据行的数量，直接使用每个子表文件头中记录的数据行数量，不需要读取和解析数据行。
+     * 旧版本格式的子表没有记录数量，需要逐行统计，但不会解析数据行。
+     *
+     * @param tableName 统计的表名
+     * @return 数据行的数量，表不存在时为0
+     */
+    public long count(String tableName) {
+        begin("count", tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                File[] tableFiles = getAllSubTableFile(tableName);
+                if (tableFiles == null) {
+                    Log.e(TAG, "count " + tableName + " failed, because of no target table exist!");
+                    return 0L;
+                }
+                long count = 0;
+                for (File tableFile : tableFiles) {
+                    count += countRows(tableFile);
+                }
+                return count;
+            });
+        } finally {
+            metrics.histogram("sql.count").recordSince(start);
+            tracer.end();
+        }
+    }
+
+    /**
+     * 统计表中满足条件的数据行的数量。
+     *
+     * @param tableName 统计的表名
+     * @param condition 统计的条件，为null时统计所有数据行，等同于{@link #count(String)}
+     * @return 满足条件的数据行的数量
+     */
+    public long count(String tableName, Condition<Bean> condition) {
+        if (condition == null) return count(tableName);
+        return aggregateShards("count", tableName, condition, Collectors.counting());
+    }
+
+    /**
+     * 计算表中满足条件的数据行的字段值之和。
+     *
+     * @param tableName 统计的表名
+     * @param condition 统计的条件，为null时统计所有数据行
+     * @param extractor 获取数据行中需要求和的字段值
+     * @return 字段值之和，没有数据行时为0
+     */
+    public double sum(String tableName, Condition<Bean> condition, ToDoubleFunction<? super Bean> extractor) {
+        assert extractor != null;
+        return aggregateShards("sum", tableName, condition, Collectors.summingDouble(extractor));
+    }
+
+    /**
+     * 查找表中满足条件的数据行的字段值的最小值，字段值为null的数据行不参与比较。
+     *
+     * @param tableName 统计的表名
+     * @param condition 统计的条件，为null时统计所有数据行
+     * @param extractor 获取数据行中需要比较的字段值
+     * @return 最小的字段值，没有数据行时为null
+     */
+    public <V extends Comparable<? super V>> V min(String tableName, Condition<Bean> condition, Function<? super Bean, ? extends V> extractor) {
+        assert extractor != null;
+        return aggregateShards("min", tableName, condition, extreme(extractor, false));
+    }
+
+    /**
+     * 查找表中满足条件的数据行的字段值的最大值，字段值为null的数据行不参与比较。
+     *
+     * @param tableName 统计的表名
+     * @param condition 统计的条件，为null时统计所有数据行
+     * @param extractor 获取数据行中需要比较的字段值
+     * @return 最大的字段值，没有数据行时为null
+     */
+    public <V extends Comparable<? super V>> V max(String tableName, Condition<Bean> condition, Function<? super Bean, ? extends V> extractor) {
+        assert extractor != null;
+        return aggregateShards("max", tableName, condition, extreme(extractor, true));
+    }
+
+    /**
+     * 按字段值分组统计表中满足条件的数据行，例如统计每个城市的用户数：
+     * {@code groupBy(table, null, User::getCity, Collectors.counting())}。
+     *
+     * @param tableName  统计的表名
+     * @param condition  统计的条件，为null时统计所有数据行
+     * @param classifier 获取数据行的分组，不能为null
+     * @param downstream 每个分组中数据行的统计方式，例如{@link Collectors#counting()}、{@link Collectors#reducing}
+     * @return 每个分组的统计结果
+     */
+    public <K, R> Map<K, R> groupBy(String tableName, Condition<Bean> condition,
+                                    Function<? super Bean, ? extends K> classifier, Collector<? super Bean, ?, R> downstream) {
+        assert classifier != null && downstream != null;
+        return aggregateShards("groupBy", tableName, condition, Collectors.groupingBy(classifier, downstream));
+    }
+
+    /**
+     * 使用自定义的统计方式统计表中满足条件的数据行。
+     * 每个子表在批处理的线程池中并行统计，数据行逐行读取后交给collector，不会保存下来，也不会放入缓存，
+     * 最后按子表的顺序合并每个子表的统计结果，所以collector的累加和合并需要满足结合律。
+     *
+     * @param tableName 统计的表名
+     * @param condition 统计的条件，为null时统计所有数据行
+     * @param collector 统计方式
+     * @return 统计结果
+     */
+    public <R> R aggregate(String tableName, Condition<Bean> condition, Collector<? super Bean, ?, R> collector) {
+        assert collector != null;
+        return aggregateShards("aggregate", tableName, condition, collector);
+    }
+
+    /**
+     * 查找表中满足条件的前k行数据，例如查找分数最高的20个用户：
+     * {@code selectTopK(table, null, Comparator.comparingInt(User::getScore).reversed(), 20)}。
+     * 每个子表并行查找，只保留子表中的前k行，最后合并每个子表的结果，不需要保存和排序所有满足条件的数据行。
      *
-     * @param tableFile
-     * @param rows
-     * @return
+     * @param tableName  查找的表名
+     * @param condition  查询条件，为null时查找所有数据行
+     * @param comparator 数据行的顺序，排在前面的优先
+     * @param k          最多返回多少行
+     * @return 按comparator排好序的前k行数据，不存在则size为0
      */
-    protected synchronized boolean insert(String tableName, File tableFile, List<Bean> rows) {
-        if (tableFile == null) {
-            Log.e(TAG, "insert into " + tableName + " failed," +
-                    " please ensure table has created!");
-            return false;
-        }
-        assert !rows.isEmpty();
-        List<Bean> beans = sqlCache.getInCaching(tableFile.getAbsolutePath());
-        if (beans == null || beans.isEmpty()) {
-            beans = getTableFileBeans(tableFile);
-        }
-        for (Bean row : rows) {
-            if (!beans.contains(row)) {
-                beans.add(row);
-            }
-        }
-        refreshTable(tableFile, beans);
-        sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-        return true;
+    public List<Bean> selectTopK(String tableName, Condition<Bean> condition, Comparator<? super Bean> comparator, int k) {
+        assert comparator != null && k > 0;
+        return aggregateShards("selectTopK", tableName, condition, topK(comparator, k));
     }
 
     /**
-     * 以主键为查找条件，使用同步的方式查找对应的一行数据。
+     * 按顺序遍历表中满足条件的数据行，使用默认的内存预算{@value #sortMemoryBudget}行。
      *
-     * @param tableName 查找的表名
-     * @param key       查找的主键
-     * @return 一行数据或不存在null
+     * @see #orderBy(String, Condition, Comparator, int)
      */
-    public Bean selectByKey(String tableName, String key) {
-        assert key != null;
-        File tableFile = getSubTableFile(tableName, getKeyId(key));
-        if (tableFile == null) {
-            Log.e(TAG, "select from " + tableName + " by key = " + key + " failed," +
-                    " because of table " + tableName + " has not created," +
-                    " please ensure table has created!");
-            return null;
-        }
-        Bean caching = sqlCache.getInCaching(tableFile.getAbsolutePath(), key);
-        if (caching == null) {
-            List<Bean> beans = getTableFileBeans(tableFile);
-            for (Bean tableFileBean : beans) {
-                if (key.equals(tableFileBean.getKey())) {
-                    sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-                    return tableFileBean;
-                }
-            }
-        }
-        return caching;
+    public SQLCursor<Bean> orderBy(String tableName, Condition<Bean> condition, Comparator<? super Bean> comparator) {
+        return orderBy(tableName, condition, comparator, sortMemoryBudget);
     }
 
     /**
-     * 使用自定义的查询条件查找数据集合。
+     * 按顺序遍历表中满足条件的数据行，顺序相同的数据行保持在表中的顺序。
+     * 逐个子表读取数据行，满足条件的数据行超过内存预算时排序后写入临时文件，
+     * 遍历时再归并临时文件和内存中的数据行，所以结果再多也只占用和内存预算相当的内存。
+     * 只需要前几行时使用{@link #selectTopK}。
      *
-     * @param tableName 查找的表名
-     * @param condition 自定义的查询条件
-     * @return 符合查询条件的数据集，不存在则size为0
+     * @param tableName    查找的表名
+     * @param condition    查询条件，为null时查找所有数据行
+     * @param comparator   数据行的顺序
+     * @param memoryBudget 内存中最多保存的数据行数量
+     * @return 按顺序遍历结果的游标，没有遍历完时需要关闭；表不存在或者写入临时文件失败时没有数据行
      */
-    public ArrayList<Bean> selectByCondition(String tableName, Condition<Bean> condition) {
-        assert condition != null;
-        File[] tableFiles = getAllSubTableFile(tableName);
-        ArrayList<Bean> allBeans = new ArrayList<>();
-        if (tableFiles == null) {
-            Log.e(TAG, "select from " + tableName + " by condition failed," +
-                    " because of no target table exist!");
-            return allBeans;
-        }
-        for (File tableFile : tableFiles) {
-            List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
-            // changed by dragon on 2020/7/23
-            // 如果是由于delete后清除缓存导致caching不为空但是数据量为0时，会导致获取不到数据
-            // 所以这里需要添加isEmpty的判断，其它方法也要注意这个问题
-            if (caching != null && !caching.isEmpty()) {
-                for (Bean tableFileBean : caching) {
-                    if (condition.accept(tableFileBean)) {
-                        allBeans.add(tableFileBean);
-                    }
-                }
-                continue;
+    public SQLCursor<Bean> orderBy(String tableName, Condition<Bean> condition, Comparator<? super Bean> comparator, int memoryBudget) {
+        begin("orderBy", tableName);
+        long start = System.nanoTime();
+        List<File> runs = new ArrayList<>();
+        try {
+            assert comparator != null && memoryBudget > 0;
+            File[] tableFiles = getAllSubTableFile(tableName);
+            if (tableFiles == null) {
+                Log.e(TAG, "order " + tableName + " failed, because of no target table exist!");
+                tableFiles = new File[0];
             }
-            // 需要一个一个子表的去查找
-            List<Bean> beans = getTableFileBeans(tableFile);
-            boolean hasAccepted = false;
-            for (Bean tableFileBean : beans) {
-                if (condition.accept(tableFileBean)) {
-                    allBeans.add(tableFileBean);
-                    hasAccepted = true;
+            File tempDir = new File(System.getProperty("java.io.tmpdir"));
+            File[] shards = tableFiles;
+            List<Bean> rows = new ArrayList<>();
+            readConsistent(() -> {
+                // 重新读取时丢弃上次写入的临时文件
+                for (File run : runs) {
+                    run.delete();
                 }
+                runs.clear();
+                rows.clear();
+                for (File tableFile : shards) {
+                    forEachRow(tableFile, bean -> {
+                        if (condition != null && !condition.accept(bean)) return;
+                        rows.add(bean);
+                        if (rows.size() < memoryBudget) return;
+                        rows.sort(comparator);
+                        try {
+                            runs.add(SQLCursor.writeRun(this, rows, tempDir));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        rows.clear();
+                    });
+                }
+                return null;
+            });
+            rows.sort(comparator);
+            return new SQLCursor<>(this, comparator, runs, rows);
+        } catch (UncheckedIOException e) {
+            Log.e(TAG, "order " + tableName + " failed: " + e.getCause());
+            for (File run : runs) {
+                run.delete();
             }
-            if (hasAccepted) {
-                sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-            }
+            return new SQLCursor<>(this, comparator, Collections.emptyList(), Collections.emptyList());
+        } finally {
+            metrics.histogram("sql.orderBy").recordSince(start);
+            tracer.end();
         }
-        return allBeans;
     }
 
-    /**
-     * 使用同步的方式查找整张表的数据集合
-     *
-     * @param tableName 查找的表名
-     * @return 整张表的数据集，或者size为0
-     */
-    public List<Bean> selectAll(String tableName) {
-        File[] tableFiles = getAllSubTableFile(tableName);
-        List<Bean> allBeans = new ArrayList<>();
-        if (tableFiles == null) {
-            Log.e(TAG, "select all from " + tableName + " failed, because of no target table exist!");
-            return allBeans;
+    @SuppressWarnings("unchecked")
+    private <A, R> R aggregateShards(String operation, String tableName, Condition<Bean> condition, Collector<? super Bean, A, R> collector) {
+        begin(operation, tableName);
+        long start = System.nanoTime();
+        try {
+            return readConsistent(() -> {
+                File[] tableFiles = getAllSubTableFile(tableName);
+                if (tableFiles == null) {
+                    Log.e(TAG, operation + " " + tableName + " failed, because of no target table exist!");
+                    tableFiles = new File[0];
+                }
+                File[] shards = tableFiles;
+                Object[] partials = new Object[shards.length];
+                BiConsumer<A, ? super Bean> accumulator = collector.accumulator();
+                forEachShardParallel(shards.length, i -> {
+                    A container = collector.supplier().get();
+                    forEachRow(shards[i], bean -> {
+                        if (condition == null || condition.accept(bean)) accumulator.accept(container, bean);
+                    });
+                    partials[i] = container;
+                });
+                A result = collector.supplier().get();
+                for (Object partial : partials) {
+                    result = collector.combiner().apply(result, (A) partial);
+                }
+                return collector.finisher().apply(result);
+            });
+        } finally {
+            metrics.histogram("sql." + operation).recordSince(start);
+            tracer.end();
         }
-        for (File tableFile : tableFiles) {
-            List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
-            if (caching != null && !caching.isEmpty()) {
-                allBeans.addAll(caching);
-                continue;
+    }
+
+    // 按comparator排在最前面的k个元素，累加时用堆顶是当前第k个元素的堆，只保留k个
+    private static <T> Collector<T, ?, List<T>> topK(Comparator<? super T> comparator, int k) {
+        class TopK {
+            final PriorityQueue<T> heap = new PriorityQueue<>(Math.min(k, 1024) + 1, comparator.reversed());
+
+            void accept(T t) {
+                if (heap.size() < k) {
+                    heap.add(t);
+                } else if (comparator.compare(t, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(t);
+                }
             }
-            // 获取全部时，不能在缓存中拿了，因为可能缓存中并不包含一个表的所有内容
-            List<Bean> beans = getTableFileBeans(tableFile);
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-            allBeans.addAll(beans);
         }
-        return allBeans;
+        return Collector.of(TopK::new, TopK::accept, (a, b) -> {
+            b.heap.forEach(a::accept);
+            return a;
+        }, topK -> {
+            List<T> result = new ArrayList<>(topK.heap);
+            result.sort(comparator);
+            return result;
+        });
     }
 
-    /**
-     * 同步方式的不同表之间的嵌套查询，
-     * 在上一个表的查询结果中继续匹配当前表中存在的结果并返回。
-     * 可以将此次的嵌套查询结果作为下一个表的嵌套查询的基础。
-     *
-     * @param tableName  当前嵌套的表名
-     * @param condition  当前嵌套的表的查询条件
-     * @param lastResult 上一个表的查询结果，可以使用其它的查询结果作为输入，不能为空
-     * @return 当前嵌套的查询结果
-     */
-    public List<Bean> selectNest(String tableName, Condition<Bean> condition, List<Bean> lastResult) {
-        List<Bean> allBeans = new ArrayList<>();
-        List<Bean> nestResult = selectByCondition(tableName, condition);
-        // 匹配结果的最大数据量，也就是上一个结果集lastResult和当前表查询结果集nestResult数量的最小值
-        // 可以匹配到该数量的结果时结束剩余部分的匹配，避免其它不必要的匹配过程，提高匹配效率。
-        int maxResultSize;
-        if (nestResult.size() > lastResult.size()) {
-            maxResultSize = lastResult.size();
-            for (Bean nest : nestResult) {
-                for (Bean last : lastResult) {
-                    if (nest.equals(last)) {
-                        allBeans.add(nest);
-                        // 已经达到最大返回结果的数量，不需要继续查找了
-                        if (maxResultSize == allBeans.size()) {
-                            return allBeans;
-                        }
-                    }
+    // 字段值的最小值或最大值，字段值为null的数据行不参与比较
+    private static <T, V extends Comparable<? super V>> Collector<T, ?, V> extreme(Function<? super T, ? extends V> extractor, boolean max) {
+        class Extreme {
+            V value;
+
+            void accept(V v) {
+                if (v == null) return;
+                if (value == null) {
+                    value = v;
+                    return;
                 }
+                int compare = v.compareTo(value);
+                if (max ? compare > 0 : compare < 0) value = v;
             }
-        } else {
-            maxResultSize = nestResult.size();
-            for (Bean nest : lastResult) {
-                for (Bean last : nestResult) {
-                    if (nest.equals(last)) {
-                        allBeans.add(nest);
-                        // 已经达到最大返回结果的数量，不需要继续查找了
-                        if (maxResultSize == allBeans.size()) {
-                            return allBeans;
-                        }
-                    }
-                }
+        }
+        return Collector.of(Extreme::new, (extreme, t) -> extreme.accept(extractor.apply(t)), (a, b) -> {
+            a.accept(b.value);
+            return a;
+        }, extreme -> extreme.value);
+    }
+
+    // 子表中数据行的数量，当前格式并且没有过期数据行的子表使用文件头中记录的数量
+    private long countRows(File tableFile) {
+        long now = System.currentTimeMillis();
+        SQLCache.DirtyShard dirty = sqlCache.getDirty(tableFile.getAbsolutePath());
+        if (dirty != null) {
+            long count = 0;
+            for (int i = 0; i < dirty.records.size(); i++) {
+                long expireAt = dirty.expireAt == null ? 0 : dirty.expireAt[i];
+                if (expireAt == 0 || expireAt > now) count++;
             }
+            return count;
+        }
+        TableFormat.Header header = TableFormat.readHeader(tableFile);
+        if (header != null && !header.hasExpired(now)) return header.rowCount;
+        if (tableFile.length() == 0) return 0;
+        long[] count = {0};
+        try {
+            TableFileReader.readRows(tableFile, ROW_END, (row, expireAt) -> {
+                if (expireAt == 0 || expireAt > now) count[0]++;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return count[0];
+    }
+
+    // 遍历子表的所有数据行，优先使用缓存，缓存中不存在时逐行读取子表文件，读取到的数据行不放入缓存
+    private void forEachRow(File tableFile, Consumer<Bean> consumer) {
+        List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
+        if (caching != null && !caching.isEmpty()) {
+            caching.forEach(consumer);
+            return;
         }
-        return allBeans;
+        readTableFile(tableFile, consumer);
     }
 
     /**
-     * 确定子表文件时直接更新表，批处理任务可用。
+     * 并行执行每个子表的任务，子表任务在批处理的线程池中执行，调用的线程也会领取子表任务。
+     * 子表任务按序号领取，调用的线程只等待已经被领取的任务，所以在批处理任务中调用、线程池中的线程都在等待时也不会死锁。
      *
-     * @param tableFile
-     * @param allBeans
-     * @param acceptBeans
-     * @return 是否更新成功
+     * @param shards 子表的数量
+     * @param task   接收子表的序号
      */
-    protected boolean update(String tableName, File tableFile, List<Bean> allBeans, List<Bean> acceptBeans) {
-        if (tableFile == null) {
-            Log.e(TAG, "update " + tableName + " by batch failed," +
-                    " because of table " + tableName + " has not created, please ensure table has created!");
-            return false;
+    protected void forEachShardParallel(int shards, IntConsumer task) {
+        if (shards == 0) return;
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(shards);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int shard;
+            while ((shard = next.getAndIncrement()) < shards) {
+                try {
+                    // 已经失败时剩下的子表不需要再执行
+                    if (failure.get() == null) task.accept(shard);
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int helpers = Math.min(shards, Runtime.getRuntime().availableProcessors()) - 1;
+        if (helpers > 0) {
+            Executor executor = getBatchContext().getExecutor();
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException e) {
+                // 服务正在关闭，剩下的子表由调用的线程执行
+            }
         }
-        refreshTable(tableFile, allBeans);
-        List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
-        if (caching != null && !caching.isEmpty()) {
-            // 需要更新缓存中的这些匹配更新条件的bean
-            for (Bean acceptBean : acceptBeans) {
-                caching.remove(acceptBean);
+        worker.run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
-            caching.addAll(acceptBeans);
-        } else {
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), allBeans);
         }
-        return true;
+        if (interrupted) Thread.currentThread().interrupt();
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
     }
 
     /**
-     * 以主键为为更新条件，同步的方式更新新的数据。
-     *
-     * @param tableName 更新的表名
-     * @param update    更新后的数据，需要包含正确的主键
-     * @return 是否更新成功
+     * 按主键查找多行数据，同一个子表的主键只读取一次子表，不同的子表并行查找，结果按keys的顺序排列。
+     * 索引和子表的内容可能存在短暂的不一致，所以需要用check再次确认数据行满足条件。
      */
-    public boolean updateByKey(String tableName, Bean update) {
-        // 根据主键更新时，bean的key必须确保存在
-        assert update != null && update.getKey() != null;
-        if (update == null || update.getKey() == null) {
-            Log.e(TAG, "update " + tableName + " by key failed," +
-                    " because of update bean or bean's key must not be null!");
-            return false;
-        }
-        File tableFile = getSubTableFile(tableName, getKeyId(update.getKey()));
-        if (tableFile == null) {
-            Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
-                    " because of table " + tableName + " has not created, please ensure table has created!");
-            return false;
+    private List<Bean> selectByKeysInOrder(String tableName, List<String> keys, Condition<Bean> check) {
+        List<Bean> result = new ArrayList<>(keys.size());
+        if (keys.isEmpty()) return result;
+        Map<File, Set<String>> shardKeys = groupKeysByShard(tableName, keys);
+        if (shardKeys == null) {
+            Log.e(TAG, "select from " + tableName + " by keys failed," +
+                    " because of table " + tableName + " has not created," +
+                    " please ensure table has created!");
+            return result;
         }
-        List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
-        if (caching != null && !caching.isEmpty()) {
-            int index = caching.indexOf(update);
-            if (index < 0) {
-                // 表中不存在要更新的主键
-                Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
-                        " because of the table has not this bean " + update);
-                return false;
+        List<Map.Entry<File, Set<String>>> shards = new ArrayList<>(shardKeys.entrySet());
+        Map<String, Bean> found = new ConcurrentHashMap<>(keys.size() * 2);
+        forEachShardParallel(shards.size(), i -> {
+            File tableFile = shards.get(i).getKey();
+            Set<String> wanted = shards.get(i).getValue();
+            ShardSnapshot<Bean> snapshot = sqlCache.getSnapshot(tableFile.getAbsolutePath());
+            if (snapshot != null && snapshot.size() > 0) {
+                for (String key : wanted) {
+                    Bean bean = snapshot.get(key);
+                    if (bean != null && check.accept(bean)) found.put(key, bean);
+                }
+                return;
             }
-            Bean old = caching.remove(index);
-            // 需要更新缓存中的这个bean
-            caching.remove(old);
-            caching.add(update);
-            refreshTable(tableFile, caching);
-        } else {
+            // 布隆过滤器确定所有主键都不存在时不需要读取子表
+            if (wanted.stream().noneMatch(key -> mightContainKey(tableFile, key))) return;
             List<Bean> beans = getTableFileBeans(tableFile);
-            int index = beans.indexOf(update);
-            if (index < 0) {
-                // 表中不存在要更新的主键
-                Log.e(TAG, "update " + tableName + " by key = " + update.getKey() + " failed," +
-                        " because of the table has not this bean " + update);
-                return false;
-            }
-            Bean old = beans.remove(index);
-            beans.add(update);
-            refreshTable(tableFile, beans);
             sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            for (Bean bean : beans) {
+                // 和selectByKey一致，主键相同的数据行取第一行
+                if (bean.getKey() != null && wanted.contains(bean.getKey()) && check.accept(bean)) {
+                    found.putIfAbsent(bean.getKey(), bean);
+                }
+            }
+        });
+        for (String key : keys) {
+            Bean bean = found.get(key);
+            if (bean != null) result.add(bean);
         }
-        return true;
+        return result;
     }
 
     /**
-     * 自定义更新条件和对匹配条件的数据进行的操作。
+     * 优先从缓存中获取子表的所有数据行，缓存中不存在时读取子表并放入缓存。
      *
-     * @param tableName 更新的表名
-     * @param condition 自定义条件
-     * @param operation 更新操作
-     * @return 是否全部更新成功
+     * @return 子表的所有数据行，只读
      */
-    public boolean updateByCondition(String tableName, Condition<Bean> condition, Operation<Bean> operation) {
-        assert condition != null && operation != null;
-        File[] tableFiles = getAllSubTableFile(tableName);
-        if (tableFiles == null) {
-            Log.e(TAG, "update " + tableName + " by condition failed," +
-                    " because of no target table exist!");
-            return false;
-        }
-        for (File tableFile : tableFiles) {
-            List<Bean> allAcceptBeans = new ArrayList<>();
-            List<Bean> beans = sqlCache.getInCaching(tableFile.getAbsolutePath());
-            if (beans == null || beans.isEmpty()) {
-                // 缓存中没有这个子表的数据，需要去子表中查找
-                beans = getTableFileBeans(tableFile);
-            }
-            for (Bean tableFileBean : beans) {
-                if (condition.accept(tableFileBean)) {
-                    allAcceptBeans.add(tableFileBean);
-                }
-            }
-            // 查找的这张表没有匹配的项，查找下一张子表
-            if (allAcceptBeans.isEmpty()) continue;
-            for (Bean acceptBean : allAcceptBeans) {
-                beans.remove(acceptBean);
-                beans.add(operation.operate(acceptBean));
-                List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
-                if (caching != null) {
-                    int index = caching.indexOf(acceptBean);
-                    if (index < 0) continue;
-                    // 需要更新缓存中的这个bean
-                    caching.remove(index);
-                    caching.add(acceptBean);
-                } else {
-                    sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-                }
+    protected List<Bean> getCachedTableFileBeans(File tableFile) {
+        List<Bean> caching = sqlCache.getInCaching(tableFile.getAbsolutePath());
+        if (caching != null && !caching.isEmpty()) return caching;
+        List<Bean> beans = getTableFileBeans(tableFile);
+        sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+        return beans;
+    }
+
+    // 子表写入生效后更新子表所在表的所有索引，调用时持有子表的写入锁
+    private void updateIndexes(Map<File, List<Bean>> shards) {
+        if (indexes.isEmpty()) return;
+        shards.forEach((tableFile, beans) -> {
+            Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableFile.getParentFile().getName());
+            if (tableIndexes == null) return;
+            for (SQLIndex<Bean> index : tableIndexes.values()) {
+                index.updateShard(tableFile.getName(), beans);
             }
-            refreshTable(tableFile, beans);
+        });
+    }
+
+    // 持有表的所有子表的写入锁持久化索引
+    private void saveIndex(SQLIndex<Bean> index) {
+        if (accessMode == AccessMode.READ_ONLY) return;
+        File[] tableFiles = new File(dbPath + File.separator + index.getTableName()).listFiles(
+                file -> file.getName().endsWith(tableFileSuffix));
+        if (tableFiles == null) return;
+        List<ReentrantLock> locks = lockShards(Arrays.asList(tableFiles));
+        try {
+            index.save(tableFiles);
+        } finally {
+            unlockShards(locks);
         }
-        return true;
     }
 
-    protected boolean delete(File tableFile, List<Bean> subTableBeans, List<Bean> acceptBeans) {
-        if (tableFile == null) {
-            Log.e(TAG, "delete " + tableName + " by batch failed," +
-                    " because of table " + tableName + " has not created," +
-                    " please ensure table has created!");
-            return false;
+    // 数据库中所有的表名，不包括以"."开头的目录（备份时暂存子表链接的目录）
+    private List<String> listTables() {
+        List<String> tables = new ArrayList<>();
+        File[] dirs = new File(dbPath).listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        if (dirs != null) {
+            for (File dir : dirs) {
+                tables.add(dir.getName());
+            }
         }
-        refreshTable(tableFile, subTableBeans);
-        // 需要删除缓存中的这些匹配删除条件的bean
-        sqlCache.putToCaching(tableFile.getAbsolutePath(), subTableBeans);
-        return true;
+        return tables;
     }
 
     /**
-     * 以主键为条件删除指定的一行数据。
+     * 在线备份数据库中所有的表，不需要停止服务，写入只会在创建链接时短暂等待。
+     * 持有所有子表的写入锁时为每个子表创建硬链接，所有子表在同一时刻的内容构成一致的备份：
+     * 子表整体写入时替换文件，不会修改链接的内容；追加会修改原文件，所以同时记录文件头，
+     * 释放锁之后按记录的文件头复制链接的内容，之后追加的数据行不会出现在备份中。
+     * 不支持硬链接的文件系统上在持有锁时直接复制子表。
+     * 只备份子表文件，索引和布隆过滤器在使用时会重新创建。
      *
-     * @param tableName 删除数据的表名
-     * @param key       数据的主键值
-     * @return 是否删除成功
+     * @param target 备份目录，每个表是其中的一个目录，恢复时复制到数据库目录即可
+     * @return 是否备份成功
      */
-    public boolean deleteByKey(String tableName, String key) {
-        assert key != null;
-        File tableFile = getSubTableFile(tableName, getKeyId(key));
-        if (tableFile == null) {
-            Log.e(TAG, "delete " + tableName + " by key = " + key + " failed," +
-                    " because of table " + tableName + " has not created," +
-                    " please ensure table has created!");
+    public boolean snapshot(File target) {
+        begin("snapshot", null);
+        long start = System.nanoTime();
+        File staging = new File(dbPath, snapshotDirPrefix + System.nanoTime());
+        // 子表在备份中的相对路径 -> 链接和链接时的文件头
+        Map<String, File> links = new LinkedHashMap<>();
+        Map<String, TableFormat.Header> headers = new HashMap<>();
+        try {
+            List<File> tableFiles = new ArrayList<>();
+            for (String table : listTables()) {
+                File[] files = getAllSubTableFile(table);
+                if (files != null) tableFiles.addAll(Arrays.asList(files));
+                File tableDir = new File(target, table);
+                if (!tableDir.isDirectory() && !tableDir.mkdirs()) throw new IOException("can not create " + tableDir);
+            }
+            List<ReentrantLock> locks = lockShards(tableFiles);
+            try {
+                // 写回模式下先写入脏子表，备份中包含所有已经生效的写入
+                for (String path : sqlCache.getDirtyPaths()) {
+                    if (!flushShard(new File(path))) throw new IOException("flush " + path + " failed");
+                }
+                for (File tableFile : tableFiles) {
+                    // 空的子表追加时也会修改原文件，不需要链接
+                    if (!tableFile.exists() || tableFile.length() == 0) continue;
+                    String name = tableFile.getParentFile().getName() + File.separator + tableFile.getName();
+                    File link = new File(staging, name);
+                    if (!link.getParentFile().isDirectory() && !link.getParentFile().mkdirs()) {
+                        throw new IOException("can not create " + link.getParentFile());
+                    }
+                    try {
+                        Files.createLink(link.toPath(), tableFile.toPath());
+                    } catch (IOException | UnsupportedOperationException e) {
+                        Files.copy(tableFile.toPath(), link.toPath());
+                    }
+                    links.put(name, link);
+                    headers.put(name, TableFormat.readHeader(tableFile));
+                }
+            } finally {
+                unlockShards(locks);
+            }
+            for (File tableFile : tableFiles) {
+                String name = tableFile.getParentFile().getName() + File.separator + tableFile.getName();
+                File copy = new File(target, name);
+                File link = links.get(name);
+                if (link == null) {
+                    if (!copy.exists() && !copy.createNewFile()) throw new IOException("can not create " + copy);
+                } else {
+                    TableFormat.copy(link, copy, headers.get(name));
+                }
+            }
+            Log.d(TAG, () -> "snapshot " + links.size() + " sub tables to " + target);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "snapshot to " + target + " failed: " + e);
             return false;
-        }
-        List<Bean> beans = getTableFileBeans(tableFile);
-        Bean deleteBean = null; // 查找需要删除掉的项
-        for (int i = 0; i < beans.size(); i++) {
-            deleteBean = beans.get(i);
-            if (key.equals(deleteBean.getKey())) {
-                break;
+        } finally {
+            for (File link : links.values()) {
+                link.delete();
             }
+            File[] dirs = staging.listFiles();
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    dir.delete();
+                }
+            }
+            staging.delete();
+            metrics.histogram("sql.snapshot").recordSince(start);
+            tracer.end();
         }
-        beans.remove(deleteBean);
-
-        refreshTable(tableFile, beans);
-        // 需要删除缓存中的这些匹配删除条件的bean
-        sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
-        return true;
     }
 
     /**
-     * 自定义删除条件，对匹配的数据行执行删除操作。
+     * 把表中的所有数据行导出到输出流，每一行是{@link #encoderRow}编码的一行数据，可以通过{@link SQLBulkLoader}导入。
+     * 逐个子表流式读取，读取的数据行不会放入缓存，内存中最多只有一个子表的数据行。
+     * 每个子表导出的是同一个版本的内容，但不同子表之间不是同一时刻的，需要一致的内容时使用{@link #snapshot(File)}。
+     * 过期的数据行不会导出，数据行的过期时间也不会导出。
      *
-     * @param tableName 要删除数据的表名
-     * @param condition 自定义删除条件
-     * @return 正确删除的数据集合
+     * @param tableName 导出的表名
+     * @param out       输出流，导出后不会关闭
+     * @return 导出的数据行数量，失败时为-1
      */
-    public List<Bean> deleteByCondition(String tableName, Condition<Bean> condition) {
-        assert condition != null;
-        File[] tableFiles = getAllSubTableFile(tableName);
-        List<Bean> allAcceptBeans = new ArrayList<>();
-        if (tableFiles == null) {
-            Log.e(TAG, "delete " + tableName + " by condition failed," +
-                    " because of table " + tableName + " has not created," +
-                    " please ensure table has created!");
-            return allAcceptBeans;
-        }
-        for (File tableFile : tableFiles) {
-            // tableFile子表中存在的所有匹配的bean
-            List<Bean> acceptBeans = new ArrayList<>();
-            // 需要一个一个子表的去查找
-            List<Bean> beans = getTableFileBeans(tableFile);
-            for (Bean tableFileBean : beans) {
-                if (condition.accept(tableFileBean)) {
-                    acceptBeans.add(tableFileBean);
-                    beans.remove(tableFileBean);
-                }
+    public long export(String tableName, OutputStream out) {
+        begin("export", tableName);
+        long start = System.nanoTime();
+        try {
+            File[] tableFiles = getAllSubTableFile(tableName);
+            if (tableFiles == null) {
+                Log.e(TAG, "export " + tableName + " failed, because of no target table exist!");
+                return -1;
             }
-            if (acceptBeans.isEmpty()) continue;
-            refreshTable(tableFile, beans);
-            allAcceptBeans.addAll(acceptBeans);
-            // 需要删除缓存中的这些匹配删除条件的bean
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            long[] count = {0};
+            for (File tableFile : tableFiles) {
+                forEachRow(tableFile, bean -> {
+                    String row = encoderRow(bean);
+                    if (row.indexOf('\n') >= 0 || row.indexOf('\r') >= 0) {
+                        throw new IllegalArgumentException("encoded row of " + bean.getKey() + " contains line separator");
+                    }
+                    try {
+                        writer.write(row);
+                        writer.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                });
+            }
+            writer.flush();
+            return count[0];
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            Log.e(TAG, "export " + tableName + " failed: " + e);
+            return -1;
+        } finally {
+            metrics.histogram("sql.export").recordSince(start);
+            tracer.end();
         }
-        return allAcceptBeans;
     }
 
     /**
-     * 删除指定的整张表的数据。
+     * 把表中的所有数据行导出到文件，文件名以".gz"结尾时使用gzip压缩。
      *
-     * @param tableName 删除的表名
-     * @return 删除了的数据集合
+     * @see #export(String, OutputStream)
      */
-    public List<Bean> deleteAll(String tableName) {
-        File[] tableFiles = getAllSubTableFile(tableName);
-        List<Bean> allAcceptBeans = new ArrayList<>();
-        if (tableFiles == null) {
-            Log.e(TAG, "delete all from " + tableName + " failed," +
-                    " because of table " + tableName + " has not created," +
-                    " please ensure table has created!");
-            return allAcceptBeans;
-        }
-        for (File tableFile : tableFiles) {
-            // tableFile子表中存在的所有匹配的bean
-            List<Bean> acceptBeans = new ArrayList<>();
-            // 需要一个一个子表的去查找
-            List<Bean> beans = getTableFileBeans(tableFile);
-            for (Bean tableFileBean : beans) {
-                acceptBeans.add(tableFileBean);
-                beans.remove(tableFileBean);
-            }
-            if (acceptBeans.isEmpty()) continue;
-            refreshTable(tableFile, beans);
-            allAcceptBeans.addAll(acceptBeans);
-            // 需要删除缓存中的这些匹配删除条件的bean
-            sqlCache.putToCaching(tableFile.getAbsolutePath(), beans);
+    public long export(String tableName, File file) {
+        long count;
+        try (OutputStream fileOut = new FileOutputStream(file);
+             OutputStream out = file.getName().endsWith(".gz")
+                     ? new GZIPOutputStream(fileOut, 64 * 1024) : new BufferedOutputStream(fileOut, 64 * 1024)) {
+            count = export(tableName, out);
+        } catch (IOException e) {
+            Log.e(TAG, "export " + tableName + " to " + file + " failed: " + e);
+            count = -1;
         }
-        return allAcceptBeans;
+        if (count < 0) file.delete();
+        return count;
     }
 
     /**
@@ -700,6 +3554,7 @@ public abstract class SQLService<Bean extends SQLBean> {
      * 如果目录不存在其他类型文件，则整个目录删除，返回true。
      */
     public boolean dropTable(String tableName) {
+        if (!checkWritable("dropTable")) return false;
         System.gc();
         File table = new File(dbPath + File.separator + tableName + File.separator);
         // 删除所有的子表
@@ -710,14 +3565,40 @@ public abstract class SQLService<Bean extends SQLBean> {
                     " please ensure table has created!");
             return false;
         }
-        if (tableFiles != null) {
+        beginCommit();
+        try {
             for (File tableFile : tableFiles) {
                 if (tableFile.delete()) {
                     // 需要删除缓存中的bean
                     sqlCache.putToCaching(tableFile.getAbsolutePath(), Collections.emptyList());
                 }
+                sqlCache.clearDirty(tableFile.getAbsolutePath(), null);
+                blooms.remove(tableFile.getAbsolutePath());
+                bloomFile(tableFile).delete();
+            }
+        } finally {
+            endCommit();
+        }
+        // 索引仍然保留，重新创建表后继续生效，但索引文件需要删除
+        Map<String, SQLIndex<Bean>> tableIndexes = indexes.get(tableName);
+        if (tableIndexes != null) {
+            for (SQLIndex<Bean> index : tableIndexes.values()) {
+                for (File tableFile : tableFiles) {
+                    index.removeShard(tableFile.getName());
+                }
+                index.deleteFile();
+            }
+        }
+        // 索引文件和布隆过滤器文件属于表，一起删除
+        File[] tableMetaFiles = table.listFiles(file -> file.getName().endsWith(indexFileSuffix)
+                || file.getName().endsWith(bloomFileSuffix));
+        if (tableMetaFiles != null) {
+            for (File metaFile : tableMetaFiles) {
+                metaFile.delete();
             }
         }
+        metrics.removeAll("table." + tableName + ".");
+        changeLog.append(Collections.singletonList(new ChangeEvent(ChangeType.DROP, tableName, null, null)), false);
         // 如果目录中存在不是表的文件的话，目录不会被删除
         if (table.exists() && table.isDirectory()) {
             Log.d(TAG, "drop table name =" + table.getAbsolutePath());
@@ -732,6 +3613,16 @@ public abstract class SQLService<Bean extends SQLBean> {
         return (id ^ (id >>> 16)) & maxTableFiles;
     }
 
+    /**
+     * 获取主键所在的子表的序号，和子表的文件名一致，没有主键时为0。
+     *
+     * @param key 主键的值
+     * @return 子表的序号
+     */
+    protected int getShardIndex(String key) {
+        return (int) hash(getKeyId(key));
+    }
+
     /**
      * 获取主键的唯一id
      *
@@ -768,4 +3659,9 @@ public abstract class SQLService<Bean extends SQLBean> {
     public interface Operation<Bean extends SQLBean> {
         Bean operate(Bean origin);
     }
+
+    public interface Extractor<Bean extends SQLBean> {
+        // 获取数据行中被索引的字段值
+        Object extract(Bean bean);
+    }
 }
@@ -0,0 +1,209 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.*;
+
+/**
+ * 数据库事务，通过{@link SQLService#beginTransaction()}开始。
+ * 事务中的所有写入先缓存在事务中，提交时同一个数据库服务中所有表的修改作为一个整体写入：
+ * 要么全部生效，要么全部不生效，写入过程中出现异常时下次启动会根据事务日志完成写入。
+ * 事务中的读取都在事务开始时的快照上进行（快照隔离），读取不加锁，不会阻塞其它的写入，
+ * 也不会读到其它写入的中间状态；事务能读到自己还没有提交的写入。
+ * 如果事务修改了的子表在事务开始后被其它写入修改过，提交会失败，需要重新开始事务。
+ *
+ * @param <Bean> 数据实体的类型
+ * @author dragon
+ * @version 1.0
+ */
+public class SQLTransaction<Bean extends SQLBean> implements Closeable {
+    private static final String TAG = "SQLTransaction";
+    private final SQLService<Bean> sqlService;
+    // 事务开始时的快照版本号
+    private final long snapshot;
+    // 事务中缓存的写入：表名 -> 主键 -> 写入后的数据，值为null说明删除
+    private final Map<String, LinkedHashMap<String, Bean>> writes = new LinkedHashMap<>();
+    private boolean finished = false;
+
+    SQLTransaction(SQLService<Bean> sqlService, long snapshot) {
+        this.sqlService = sqlService;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * 在事务中插入一行数据，表中已经存在相同主键的数据时插入失败。
+     * 事务中的数据必须有主键。
+     *
+     * @param tableName 插入的表名
+     * @param row       插入的数据
+     * @return 是否成功插入
+     */
+    public boolean insert(String tableName, Bean row) {
+        if (!checkWritable(tableName, row)) return false;
+        if (selectByKey(tableName, row.getKey()) != null) return false;
+        tableWrites(tableName).put(row.getKey(), row);
+        return true;
+    }
+
+    /**
+     * 在事务中以主键为条件更新数据，表中不存在该主键时更新失败。
+     *
+     * @param tableName 更新的表名
+     * @param update    更新后的数据
+     * @return 是否成功更新
+     */
+    public boolean updateByKey(String tableName, Bean update) {
+        if (!checkWritable(tableName, update)) return false;
+        if (selectByKey(tableName, update.getKey()) == null) return false;
+        tableWrites(tableName).put(update.getKey(), update);
+        return true;
+    }
+
+    /**
+     * 在事务中以主键为条件删除数据。
+     *
+     * @param tableName 删除数据的表名
+     * @param key       数据的主键值
+     * @return 是否删除成功，表中不存在该主键时返回false
+     */
+    public boolean deleteByKey(String tableName, String key) {
+        if (finished || key == null) return false;
+        if (selectByKey(tableName, key) == null) return false;
+        tableWrites(tableName).put(key, null);
+        return true;
+    }
+
+    /**
+     * 在事务的快照上以主键为条件查找数据，包括事务中还没有提交的写入。
+     *
+     * @param tableName 查找的表名
+     * @param key       查找的主键
+     * @return 一行数据或不存在null
+     */
+    public Bean selectByKey(String tableName, String key) {
+        assert key != null;
+        Map<String, Bean> tableWrites = writes.get(tableName);
+        if (tableWrites != null && tableWrites.containsKey(key)) {
+            return tableWrites.get(key);
+        }
+        File tableFile = sqlService.getSubTableFile(tableName, sqlService.getKeyId(key));
+        if (tableFile == null) return null;
+        for (Bean bean : sqlService.getTableFileBeansAt(tableFile, snapshot)) {
+            if (key.equals(bean.getKey())) return bean;
+        }
+        return null;
+    }
+
+    /**
+     * 在事务的快照上使用自定义的查询条件查找数据，包括事务中还没有提交的写入。
+     *
+     * @param tableName 查找的表名
+     * @param condition 自定义的查询条件
+     * @return 符合查询条件的数据集，不存在则size为0
+     */
+    public List<Bean> selectByCondition(String tableName, SQLService.Condition<Bean> condition) {
+        assert condition != null;
+        List<Bean> allBeans = new ArrayList<>();
+        Map<String, Bean> tableWrites = writes.get(tableName);
+        File[] tableFiles = sqlService.getAllSubTableFile(tableName);
+        if (tableFiles != null) {
+            for (File tableFile : tableFiles) {
+                for (Bean bean : sqlService.getTableFileBeansAt(tableFile, snapshot)) {
+                    // 事务中修改过的数据以事务中的为准
+                    if (tableWrites != null && bean.getKey() != null && tableWrites.containsKey(bean.getKey())) continue;
+                    if (condition.accept(bean)) allBeans.add(bean);
+                }
+            }
+        }
+        if (tableWrites != null) {
+            for (Bean bean : tableWrites.values()) {
+                if (bean != null && condition.accept(bean)) allBeans.add(bean);
+            }
+        }
+        return allBeans;
+    }
+
+    /**
+     * 在事务的快照上查找整张表的数据，包括事务中还没有提交的写入。
+     *
+     * @param tableName 查找的表名
+     * @return 整张表的数据集，或者size为0
+     */
+    public List<Bean> selectAll(String tableName) {
+        return selectByCondition(tableName, bean -> true);
+    }
+
+    /**
+     * 提交事务，事务中所有表的修改作为一个整体写入。
+     *
+     * @return 是否提交成功，修改的子表在事务开始后被其它写入修改过时提交失败
+     */
+    public boolean commit() {
+        if (finished) {
+            Log.e(TAG, "commit failed, because of transaction has finished");
+            return false;
+        }
+        try {
+            // 按子表整理事务中的修改，同一个子表只需要写入一次
+            Map<File, Map<String, Bean>> changes = new LinkedHashMap<>();
+            for (Map.Entry<String, LinkedHashMap<String, Bean>> tableWrites : writes.entrySet()) {
+                String tableName = tableWrites.getKey();
+                for (Map.Entry<String, Bean> write : tableWrites.getValue().entrySet()) {
+                    File tableFile = sqlService.getSubTableFileOrCreate(tableName, sqlService.getKeyId(write.getKey()));
+                    if (tableFile == null) {
+                        Log.e(TAG, "commit failed, because of table " + tableName + " has not created");
+                        return false;
+                    }
+                    changes.computeIfAbsent(tableFile, key -> new LinkedHashMap<>()).put(write.getKey(), write.getValue());
+                }
+            }
+            return changes.isEmpty() || sqlService.commitTransaction(snapshot, changes);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * 回滚事务，放弃事务中的所有修改。
+     */
+    public void rollback() {
+        if (finished) return;
+        finish();
+    }
+
+    /**
+     * 没有提交的事务在关闭时回滚。
+     */
+    @Override
+    public void close() {
+        rollback();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void finish() {
+        finished = true;
+        writes.clear();
+        sqlService.endTransaction(snapshot);
+    }
+
+    private LinkedHashMap<String, Bean> tableWrites(String tableName) {
+        return writes.computeIfAbsent(tableName, key -> new LinkedHashMap<>());
+    }
+
+    private boolean checkWritable(String tableName, Bean row) {
+        if (finished) {
+            Log.e(TAG, "write " + tableName + " failed, because of transaction has finished");
+            return false;
+        }
+        if (row == null || row.getKey() == null) {
+            Log.e(TAG, "write " + tableName + " failed, because of bean or bean's key must not be null in transaction");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+package top.totoro.sql.clap;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * 子表主键的布隆过滤器，判断一个主键是否可能存在于子表中。
+ * 返回不存在时主键一定不在子表中，可以不读取子表直接得出结果；返回可能存在时需要读取子表确认。
+ * 布隆过滤器和子表文件放在一起持久化，并记录子表内容的指纹（{@link TableFormat#fingerprint(File)}），
+ * 子表在持久化之后被修改过时需要重新计算。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+final class ShardBloom {
+    private static final int fileVersion = 2;
+    // 每个主键使用的位数和哈希函数的个数，误判率约为1%
+    private static final int bitsPerKey = 10;
+    private static final int hashCount = 7;
+    // 最少容纳的主键数量，子表为空时也能直接追加一部分主键
+    private static final int minCapacity = 64;
+
+    private final long[] bits;
+    private final int numBits;
+    // 按容量计算的位数，主键数量超过容量后误判率会上升，子表下次整体写入时会按新的数量重新计算
+    private final int capacity;
+    private int count;
+    // 是否有还没有持久化的修改
+    private volatile boolean dirty = true;
+
+    private ShardBloom(int capacity, long[] bits, int count) {
+        this.capacity = capacity;
+        this.bits = bits;
+        this.numBits = bits.length * Long.SIZE;
+        this.count = count;
+    }
+
+    /**
+     * 创建一个空的布隆过滤器，会为之后追加的主键预留同样多的容量。
+     *
+     * @param expectedKeys 子表当前的主键数量
+     */
+    static ShardBloom create(int expectedKeys) {
+        int capacity = Math.max(minCapacity, expectedKeys * 2);
+        long words = ((long) capacity * bitsPerKey + Long.SIZE - 1) / Long.SIZE;
+        return new ShardBloom(capacity, new long[(int) Math.min(words, Integer.MAX_VALUE / Long.SIZE)], 0);
+    }
+
+    /**
+     * 使用子表的所有数据行创建布隆过滤器。
+     */
+    static <Bean extends SQLBean> ShardBloom of(List<Bean> rows) {
+        ShardBloom bloom = create(rows.size());
+        for (Bean row : rows) {
+            if (row != null) bloom.add(row.getKey());
+        }
+        return bloom;
+    }
+
+    /**
+     * 加入一个主键，调用时需要持有子表的写入锁。
+     *
+     * @param key 主键，为null时忽略
+     */
+    void add(String key) {
+        if (key == null) return;
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(h1, h2, i);
+            bits[index >>> 6] |= 1L << index;
+        }
+        count++;
+        dirty = true;
+    }
+
+    /**
+     * @param key 主键
+     * @return 主键是否可能存在，false说明一定不存在；主键为null时返回false，因为没有主键的数据行不会和其它数据行相同
+     */
+    boolean mightContain(String key) {
+        if (key == null) return false;
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(h1, h2, i);
+            if ((bits[index >>> 6] & (1L << index)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return 主键数量是否已经超过了容量，超过后误判率会上升
+     */
+    boolean isSaturated() {
+        return count > capacity;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    private int index(int h1, int h2, int i) {
+        return (int) (((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits);
+    }
+
+    // FNV-1a，和String.hashCode组合成双重哈希
+    private static int secondHash(String key) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+
+    /**
+     * 持久化布隆过滤器，调用时需要持有子表的写入锁，保证记录的文件指纹和内容一致。
+     *
+     * @param bloomFile 布隆过滤器的文件
+     * @param tableFile 子表文件
+     */
+    void save(File bloomFile, File tableFile) throws IOException {
+        String fingerprint = TableFormat.fingerprint(tableFile);
+        // 旧版本格式的子表没有指纹，不持久化
+        if (fingerprint == null) return;
+        File tempFile = new File(bloomFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)))) {
+            out.writeInt(fileVersion);
+            out.writeUTF(fingerprint);
+            out.writeInt(capacity);
+            out.writeInt(count);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+        if (bloomFile.exists() && !bloomFile.delete() || !tempFile.renameTo(bloomFile)) {
+            tempFile.delete();
+            throw new IOException("can not replace " + bloomFile);
+        }
+        dirty = false;
+    }
+
+    /**
+     * 加载持久化了的布隆过滤器。
+     *
+     * @param bloomFile 布隆过滤器的文件
+     * @param tableFile 子表文件
+     * @return 布隆过滤器，文件不存在或者子表已经被修改过时返回null
+     */
+    static ShardBloom load(File bloomFile, File tableFile) {
+        if (!bloomFile.exists()) return null;
+        String fingerprint = TableFormat.fingerprint(tableFile);
+        if (fingerprint == null) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bloomFile)))) {
+            if (in.readInt() != fileVersion || !in.readUTF().equals(fingerprint)) return null;
+            int capacity = in.readInt();
+            int count = in.readInt();
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            ShardBloom bloom = new ShardBloom(capacity, bits, count);
+            bloom.dirty = false;
+            return bloom;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package top.totoro.sql.clap;
+
+import java.util.*;
+
+/**
+ * 以主键为索引的子表数据行集合，按主键判断重复、更新和删除都是O(1)的。
+ * 数据行相同的规则和{@link SQLBean#equals(Object)}一致：主键相同并且{@link SQLBean#isSame(Object)}为true。
+ * 主键相同但isSame不同的数据行会同时保留，它们在遍历时排在这个主键第一次出现的位置；
+ * 没有主键的数据行不会和任何数据行相同，每一行单独保留。
+ * 不是线程安全的，写入子表时在子表的写入锁中使用，需要共享时转换成{@link ShardSnapshot}。
+ *
+ * @param <Bean> 子表中数据的类型
+ * @author dragon
+ * @version 1.0
+ */
+final class ShardRows<Bean extends SQLBean> {
+    // 主键（没有主键的数据行使用一个唯一的对象）-> 数据行，主键相同的多行数据使用RowList保存
+    private final LinkedHashMap<Object, Object> rows;
+    private int size = 0;
+
+    // 主键相同的多行数据
+    private static final class RowList<Bean> extends ArrayList<Bean> {
+        private static final long serialVersionUID = 1L;
+
+        RowList(Bean first) {
+            super(2);
+            add(first);
+        }
+    }
+
+    ShardRows(int expectedSize) {
+        rows = new LinkedHashMap<>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+    }
+
+    ShardRows(Collection<Bean> beans) {
+        this(beans.size());
+        for (Bean bean : beans) {
+            add(bean);
+        }
+    }
+
+    /**
+     * 加入一行数据，已经存在相同的数据行时不加入。
+     *
+     * @return 是否加入了
+     */
+    @SuppressWarnings("unchecked")
+    boolean add(Bean bean) {
+        if (bean == null) return false;
+        String key = bean.getKey();
+        if (key == null) {
+            rows.put(new Object(), bean);
+            size++;
+            return true;
+        }
+        Object exist = rows.get(key);
+        if (exist == null) {
+            rows.put(key, bean);
+        } else if (exist instanceof RowList) {
+            RowList<Bean> list = (RowList<Bean>) exist;
+            if (list.contains(bean)) return false;
+            list.add(bean);
+        } else {
+            if (bean.equals(exist)) return false;
+            RowList<Bean> list = new RowList<>((Bean) exist);
+            list.add(bean);
+            rows.put(key, list);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * @return 主键为key的第一行数据，不存在时为null
+     */
+    @SuppressWarnings("unchecked")
+    Bean get(String key) {
+        if (key == null) return null;
+        Object exist = rows.get(key);
+        if (exist instanceof RowList) return ((RowList<Bean>) exist).get(0);
+        return (Bean) exist;
+    }
+
+    /**
+     * @return 是否存在和bean相同的数据行
+     */
+    boolean contains(Bean bean) {
+        return indexOf(bean) >= 0;
+    }
+
+    /**
+     * 用bean替换和它相同的数据行，用于按主键更新。
+     *
+     * @return 是否存在相同的数据行
+     */
+    @SuppressWarnings("unchecked")
+    boolean replace(Bean bean) {
+        int index = indexOf(bean);
+        if (index < 0) return false;
+        Object exist = rows.get(bean.getKey());
+        if (exist instanceof RowList) {
+            ((RowList<Bean>) exist).set(index, bean);
+        } else {
+            rows.put(bean.getKey(), bean);
+        }
+        return true;
+    }
+
+    /**
+     * 用bean替换主键相同的第一行数据，不存在主键相同的数据行时加入，用于插入或更新。
+     *
+     * @return 被替换的数据行，之前不存在时为null
+     */
+    @SuppressWarnings("unchecked")
+    Bean put(Bean bean) {
+        if (bean == null) return null;
+        Object exist = bean.getKey() == null ? null : rows.get(bean.getKey());
+        if (exist == null) {
+            add(bean);
+            return null;
+        }
+        if (exist instanceof RowList) return ((RowList<Bean>) exist).set(0, bean);
+        rows.put(bean.getKey(), bean);
+        return (Bean) exist;
+    }
+
+    /**
+     * 删除主键为key的第一行数据。
+     *
+     * @return 被删除的数据行，不存在时为null
+     */
+    @SuppressWarnings("unchecked")
+    Bean removeKey(String key) {
+        if (key == null) return null;
+        Object exist = rows.get(key);
+        if (exist == null) return null;
+        Bean removed;
+        if (exist instanceof RowList) {
+            RowList<Bean> list = (RowList<Bean>) exist;
+            removed = list.remove(0);
+            if (list.size() == 1) rows.put(key, list.get(0));
+        } else {
+            removed = (Bean) exist;
+            rows.remove(key);
+        }
+        size--;
+        return removed;
+    }
+
+    /**
+     * 删除和bean相同的数据行。
+     *
+     * @return 是否存在相同的数据行
+     */
+    @SuppressWarnings("unchecked")
+    boolean remove(Bean bean) {
+        int index = indexOf(bean);
+        if (index < 0) return false;
+        Object exist = rows.get(bean.getKey());
+        if (exist instanceof RowList) {
+            RowList<Bean> list = (RowList<Bean>) exist;
+            list.remove(index);
+            if (list.size() == 1) rows.put(bean.getKey(), list.get(0));
+        } else {
+            rows.remove(bean.getKey());
+        }
+        size--;
+        return true;
+    }
+
+    // 和bean相同的数据行在主键相同的数据行中的位置，不存在时为-1
+    @SuppressWarnings("unchecked")
+    private int indexOf(Bean bean) {
+        if (bean == null || bean.getKey() == null) return -1;
+        Object exist = rows.get(bean.getKey());
+        if (exist == null) return -1;
+        if (exist instanceof RowList) return ((RowList<Bean>) exist).indexOf(bean);
+        return bean.equals(exist) ? 0 : -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return 按加入顺序排列的所有数据行
+     */
+    @SuppressWarnings("unchecked")
+    ArrayList<Bean> toList() {
+        ArrayList<Bean> list = new ArrayList<>(size);
+        for (Object row : rows.values()) {
+            if (row instanceof RowList) {
+                list.addAll((RowList<Bean>) row);
+            } else {
+                list.add((Bean) row);
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,110 @@
+package top.totoro.sql.clap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 缓存中一个子表的不可变快照。
+ * 快照创建后内容不会再被修改，读取时可以直接遍历而不需要加锁；
+ * 写入子表时创建新版本的快照并整体替换旧的快照，已经拿到旧快照的读取不受影响。
+ * 按主键查找时使用以主键为索引的{@link ShardRows}，第一次按主键查找时创建。
+ * 快照中有会过期的数据行时记录最早的过期时间，读取时据此判断是否需要去掉过期的数据行。
+ *
+ * @param <Bean> 子表中数据的类型
+ * @author dragon
+ * @version 1.0
+ */
+final class ShardSnapshot<Bean extends SQLBean> {
+    private final long version;
+    private final List<Bean> rows;
+    // 数据行中最早的过期时间（ms），0表示没有会过期的数据行
+    private final long minExpireAt;
+    // 以主键为索引的数据行，创建后不会再修改，多个线程同时创建时结果相同，使用任意一个即可
+    private volatile ShardRows<Bean> keyIndex;
+
+    private ShardSnapshot(long version, ArrayList<Bean> rows) {
+        this.version = version;
+        this.rows = Collections.unmodifiableList(rows);
+        long min = 0;
+        for (Bean row : rows) {
+            long expireAt = row.getExpireAt();
+            if (expireAt != 0 && (min == 0 || expireAt < min)) min = expireAt;
+        }
+        this.minExpireAt = min;
+    }
+
+    /**
+     * @param version 快照的版本号，同一个子表新的快照版本号更大
+     * @param rows    子表的所有数据行，会复制一份，之后修改rows不会影响快照
+     */
+    static <Bean extends SQLBean> ShardSnapshot<Bean> of(long version, List<Bean> rows) {
+        return new ShardSnapshot<>(version, new ArrayList<>(rows));
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return 只读的所有数据行，需要修改时先复制一份
+     */
+    List<Bean> getRows() {
+        return rows;
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * @return 在now时是否存在过期的数据行
+     */
+    boolean hasExpired(long now) {
+        return minExpireAt != 0 && minExpireAt <= now;
+    }
+
+    /**
+     * 去掉在now时已经过期的数据行，生成新版本的快照。
+     */
+    ShardSnapshot<Bean> removeExpired(long version, long now) {
+        ArrayList<Bean> newRows = new ArrayList<>(rows.size());
+        for (Bean row : rows) {
+            if (!row.isExpired(now)) newRows.add(row);
+        }
+        return new ShardSnapshot<>(version, newRows);
+    }
+
+    /**
+     * @return 主键为key的第一行数据，不存在时为null
+     */
+    Bean get(String key) {
+        return keyIndex().get(key);
+    }
+
+    /**
+     * @return 是否存在和bean相同的数据行
+     */
+    boolean contains(Bean bean) {
+        return keyIndex().contains(bean);
+    }
+
+    private ShardRows<Bean> keyIndex() {
+        ShardRows<Bean> keyIndex = this.keyIndex;
+        if (keyIndex == null) {
+            keyIndex = new ShardRows<>(rows);
+            this.keyIndex = keyIndex;
+        }
+        return keyIndex;
+    }
+
+    /**
+     * 在当前快照的基础上增加一行数据，生成新版本的快照。
+     */
+    ShardSnapshot<Bean> add(long version, Bean row) {
+        ArrayList<Bean> newRows = new ArrayList<>(rows.size() + 1);
+        newRows.addAll(rows);
+        newRows.add(row);
+        return new ShardSnapshot<>(version, newRows);
+    }
+}
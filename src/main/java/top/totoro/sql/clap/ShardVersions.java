@@ -0,0 +1,192 @@
+package top.totoro.sql.clap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 子表的多版本管理，用于事务的快照读。
+ * 每次子表写入生效时数据库的版本号加一，并记录子表最后一次写入的版本号；
+ * 如果写入时存在还没有结束的事务，会保留子表写入前的内容，
+ * 事务在自己开始时的版本号上读取数据，不需要加锁，也不会阻塞写入。
+ *
+ * @param <Bean> 子表中数据的类型
+ * @author dragon
+ * @version 1.0
+ */
+class ShardVersions<Bean extends SQLBean> {
+
+    /**
+     * 子表某个历史版本的内容，在版本号[validFrom, validTo)之间有效。
+     */
+    private static class Version<Bean> {
+        final long validFrom;
+        final long validTo;
+        final List<Bean> rows;
+
+        Version(long validFrom, long validTo, List<Bean> rows) {
+            this.validFrom = validFrom;
+            this.validTo = validTo;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * 读取子表写入前的内容，用于保留历史版本。
+     */
+    interface PreImageLoader<Bean> {
+        List<Bean> load(String tableFilePath);
+    }
+
+    // 已经分配的最大版本号
+    private long allocated = 0;
+    // 还没有生效的写入的版本号，小于其中最小值的版本都已经生效
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    // 子表最后一次写入的版本号，写入开始时就记录
+    private final Map<String, Long> lastWrite = new ConcurrentHashMap<>();
+    // 子表保留着的历史版本
+    private final Map<String, List<Version<Bean>>> history = new ConcurrentHashMap<>();
+    // 还没有结束的事务的快照版本号，以及每个版本号上的事务数量
+    private final TreeMap<Long, Integer> activeSnapshots = new TreeMap<>();
+    // 正在开始的快照数量，这期间开始的写入也需要保留历史版本
+    private int pendingSnapshots = 0;
+
+    /**
+     * 开始一个快照，之后的写入都不会影响在这个快照上读到的内容。
+     * 先等待之前开始的写入全部生效，这些写入可能没有保留历史版本，快照的版本号不能小于它们；
+     * 等待期间开始的写入都会保留历史版本，所以等待的时间不会因为持续的写入而变长。
+     *
+     * @return 快照的版本号
+     */
+    synchronized long begin() {
+        pendingSnapshots++;
+        long barrier = allocated;
+        boolean interrupted = false;
+        while (current() < barrier) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        long snapshot = current();
+        activeSnapshots.merge(snapshot, 1, Integer::sum);
+        pendingSnapshots--;
+        return snapshot;
+    }
+
+    // 已经生效的版本号，所有不大于它的写入都已经生效
+    private long current() {
+        return inFlight.isEmpty() ? allocated : inFlight.first() - 1;
+    }
+
+    /**
+     * 结束一个快照，清除不再被任何快照需要的历史版本。
+     *
+     * @param snapshot 快照的版本号
+     */
+    synchronized void end(long snapshot) {
+        Integer count = activeSnapshots.get(snapshot);
+        if (count == null) return;
+        if (count <= 1) {
+            activeSnapshots.remove(snapshot);
+        } else {
+            activeSnapshots.put(snapshot, count - 1);
+        }
+        if (activeSnapshots.isEmpty()) {
+            // 正在开始的快照可能需要写入中保留的历史版本
+            if (pendingSnapshots == 0) history.clear();
+            return;
+        }
+        long oldest = activeSnapshots.firstKey();
+        Iterator<Map.Entry<String, List<Version<Bean>>>> iterator = history.entrySet().iterator();
+        while (iterator.hasNext()) {
+            List<Version<Bean>> versions = iterator.next().getValue();
+            versions.removeIf(v -> v.validTo <= oldest);
+            if (versions.isEmpty()) iterator.remove();
+        }
+    }
+
+    synchronized boolean hasActiveSnapshot() {
+        return !activeSnapshots.isEmpty() || pendingSnapshots > 0;
+    }
+
+    /**
+     * @return 子表最后一次写入生效的版本号，没有写入过为0
+     */
+    long lastWrite(String tableFilePath) {
+        Long v = lastWrite.get(tableFilePath);
+        return v == null ? 0 : v;
+    }
+
+    /**
+     * 查找子表在快照版本上的历史内容。
+     *
+     * @return 历史内容，没有保留对应的历史版本时返回null，说明需要读取子表当前的内容
+     */
+    List<Bean> find(String tableFilePath, long snapshot) {
+        List<Version<Bean>> versions = history.get(tableFilePath);
+        if (versions == null) return null;
+        synchronized (this) {
+            for (Version<Bean> v : versions) {
+                if (v.validFrom <= snapshot && snapshot < v.validTo) return v.rows;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 让多个子表的写入作为一个整体在同一个版本上生效，调用时需要持有所有子表的写入锁。
+     * 必须在子表当前内容被替换之前记录最后写入的版本号，
+     * 这样读到新内容的快照读一定能发现子表已经被修改，转而读取历史版本。
+     * 只有分配版本号和记录历史版本时持有锁，读取写入前的内容和替换子表内容都在锁外进行，
+     * 不同子表的写入可以同时进行。
+     *
+     * @param tableFilePaths 写入的子表
+     * @param preImages      已经读取好的写入前的内容，可以为空
+     * @param loader         没有读取写入前的内容但需要保留历史版本时，用来读取写入前的内容
+     * @param replace        替换子表内容的操作
+     * @return 写入的版本号
+     */
+    long publish(Collection<String> tableFilePaths, Map<String, List<Bean>> preImages,
+                 PreImageLoader<Bean> loader, Runnable replace) {
+        Map<String, List<Bean>> images = hasActiveSnapshot() ? loadPreImages(tableFilePaths, preImages, loader) : null;
+        long newVersion;
+        synchronized (this) {
+            newVersion = ++allocated;
+            if (!activeSnapshots.isEmpty() || pendingSnapshots > 0) {
+                // 检查之后才有快照开始，这种情况很少，直接在锁内读取写入前的内容
+                if (images == null) images = loadPreImages(tableFilePaths, preImages, loader);
+                for (String path : tableFilePaths) {
+                    history.computeIfAbsent(path, key -> new ArrayList<>())
+                            .add(new Version<>(lastWrite(path), newVersion, images.get(path)));
+                }
+            }
+            for (String path : tableFilePaths) {
+                lastWrite.put(path, newVersion);
+            }
+            inFlight.add(newVersion);
+        }
+        try {
+            replace.run();
+        } finally {
+            // 替换失败时部分子表可能已经被替换，仍然让版本生效，保留的历史版本保证快照读不受影响
+            synchronized (this) {
+                inFlight.remove(newVersion);
+                notifyAll();
+            }
+        }
+        return newVersion;
+    }
+
+    private Map<String, List<Bean>> loadPreImages(Collection<String> tableFilePaths, Map<String, List<Bean>> preImages,
+                                                  PreImageLoader<Bean> loader) {
+        Map<String, List<Bean>> images = new HashMap<>();
+        for (String path : tableFilePaths) {
+            List<Bean> preImage = preImages == null ? null : preImages.get(path);
+            if (preImage == null) preImage = loader.load(path);
+            images.put(path, Collections.unmodifiableList(preImage));
+        }
+        return images;
+    }
+}
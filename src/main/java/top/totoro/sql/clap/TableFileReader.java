@@ -0,0 +1,220 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * 读取子表文件中的数据行。
+ * 较大的子表文件通过内存映射读取，每个数据行只在转换成字符串时复制一次。
+ * 当前格式（{@link TableFormat}）的子表按数据行的长度依次读取并校验CRC32，同时读取数据行的过期时间；
+ * 旧版本格式的子表在缓冲区中查找数据行的结束标记。
+ * 数据行按UTF-8解码，不是合法UTF-8的数据行（旧版本在非UTF-8的平台上写入的）使用平台默认的字符集解码。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+final class TableFileReader {
+    // 小于这个大小的文件直接读取到堆内存中，映射的开销比读取更大
+    private static final int mapThreshold = 64 * 1024;
+    // Windows下被映射的文件在映射释放之前无法被替换，写入子表时需要替换文件，所以不使用内存映射
+    private static final boolean mapSupported
+            = !System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+    private static final String TAG = "TableFileReader";
+
+    private final File tableFile;
+    private final String rowEndString;
+    private final byte[] rowEnd;
+    private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder();
+    // 复制数据行字节的缓冲区，按需要扩大
+    private byte[] scratch = new byte[256];
+
+    private TableFileReader(File tableFile, String rowEnd) {
+        this.tableFile = tableFile;
+        this.rowEndString = rowEnd;
+        this.rowEnd = rowEnd.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 接收数据行和数据行的过期时间。
+     */
+    interface RowConsumer {
+        /**
+         * @param row      数据行的内容
+         * @param expireAt 数据行的过期时间（ms），0表示不过期
+         */
+        void accept(String row, long expireAt);
+    }
+
+    /**
+     * 读取子表文件中所有完整的数据行，没有完成追加的数据行和校验失败的数据行会被忽略。
+     *
+     * @param tableFile 子表文件
+     * @param rowEnd    旧版本格式中数据行的结束标记，标记之后是换行符
+     * @param consumer  按顺序接收去掉结束标记之后的每一个数据行
+     */
+    static void readRows(File tableFile, String rowEnd, Consumer<String> consumer) throws IOException {
+        readRows(tableFile, rowEnd, (row, expireAt) -> consumer.accept(row));
+    }
+
+    /**
+     * 读取子表文件中所有完整的数据行和它们的过期时间，旧版本格式的数据行都不过期。
+     *
+     * @param tableFile 子表文件
+     * @param rowEnd    旧版本格式中数据行的结束标记，标记之后是换行符
+     * @param consumer  按顺序接收每一个数据行和它的过期时间
+     */
+    static void readRows(File tableFile, String rowEnd, RowConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) return;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("table file " + tableFile + " is too large: " + size);
+            }
+            ByteBuffer buffer;
+            if (mapSupported && size >= mapThreshold) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buffer = ByteBuffer.allocate((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) break;
+                }
+                // 转换成Buffer调用，在高版本JDK编译时仍然兼容Java 8
+                ((Buffer) buffer).flip();
+            }
+            TableFileReader reader = new TableFileReader(tableFile, rowEnd);
+            TableFormat.Header header = TableFormat.readHeader(buffer);
+            if (header != null) {
+                reader.readRecords(buffer, header, consumer);
+            } else {
+                reader.scan(buffer, consumer);
+            }
+        }
+    }
+
+    private void readRecords(ByteBuffer buffer, TableFormat.Header header, RowConsumer consumer) {
+        // dataLength之后是没有完成的追加
+        int limit = (int) Math.min(buffer.limit(), header.dataLength);
+        CRC32 crc = new CRC32();
+        int position = TableFormat.HEADER_SIZE;
+        while (position + TableFormat.RECORD_HEADER_SIZE <= limit) {
+            int length = buffer.getInt(position);
+            int checksum = buffer.getInt(position + 4);
+            boolean expiring = (length & TableFormat.EXPIRE_FLAG) != 0;
+            length &= ~TableFormat.EXPIRE_FLAG;
+            // 过期时间和内容是连续的，一起校验
+            int checked = position + TableFormat.RECORD_HEADER_SIZE;
+            int start = checked + (expiring ? TableFormat.EXPIRE_AT_SIZE : 0);
+            // 空的数据行只会是断电等情况下留下的全是0的内容，之后的内容也不可信
+            if (length == 0 || length > limit - start) {
+                Log.w(TAG, "table file " + tableFile + " is broken at " + position + ", ignore the rest rows");
+                return;
+            }
+            crc.reset();
+            if (header.version >= TableFormat.CHECKED_LENGTH_VERSION) {
+                ByteBuffer lengthView = buffer.duplicate();
+                ((Buffer) lengthView).limit(position + 4);
+                ((Buffer) lengthView).position(position);
+                crc.update(lengthView);
+            }
+            ByteBuffer view = buffer.duplicate();
+            ((Buffer) view).limit(start + length);
+            ((Buffer) view).position(checked);
+            crc.update(view);
+            if ((int) crc.getValue() == checksum) {
+                consumer.accept(decode(buffer, start, start + length), expiring ? buffer.getLong(checked) : 0);
+            } else {
+                Log.w(TAG, "table file " + tableFile + " has a broken row at " + position + ", ignore it");
+            }
+            position = start + length;
+        }
+    }
+
+    private void scan(ByteBuffer buffer, RowConsumer consumer) {
+        int limit = buffer.limit();
+        int lineStart = 0;
+        // 数据行中包含换行符时，之前读到的部分，和原来逐行读取一样不保留换行符
+        ByteArrayOutputStream pending = null;
+        for (int i = 0; i <= limit; i++) {
+            // 文件末尾没有换行符的最后一行也需要处理
+            if (i < limit && buffer.get(i) != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') lineEnd--;
+            boolean complete = endsWithRowEnd(buffer, lineStart, lineEnd);
+            if (pending == null && complete) {
+                String row = decode(buffer, lineStart, lineEnd - rowEnd.length);
+                // 和原来的replace保持一致，数据行内部的结束标记也会被去掉
+                if (row.contains(rowEndString)) row = row.replace(rowEndString, "");
+                consumer.accept(row, 0);
+            } else if (lineEnd > lineStart || pending != null) {
+                if (pending == null) pending = new ByteArrayOutputStream();
+                copy(buffer, lineStart, lineEnd);
+                pending.write(scratch, 0, lineEnd - lineStart);
+                if (complete) {
+                    byte[] bytes = pending.toByteArray();
+                    consumer.accept(decode(bytes, bytes.length).replace(rowEndString, ""), 0);
+                    pending = null;
+                }
+            }
+            lineStart = i + 1;
+        }
+    }
+
+    private boolean endsWithRowEnd(ByteBuffer buffer, int start, int end) {
+        if (end - start < rowEnd.length) return false;
+        for (int i = 0; i < rowEnd.length; i++) {
+            if (buffer.get(end - rowEnd.length + i) != rowEnd[i]) return false;
+        }
+        return true;
+    }
+
+    private String decode(ByteBuffer buffer, int start, int end) {
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + start, end - start);
+        }
+        copy(buffer, start, end);
+        return decode(scratch, end - start);
+    }
+
+    // 把[start, end)的字节复制到scratch中
+    private void copy(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(start);
+        view.get(scratch, 0, length);
+    }
+
+    private String decode(byte[] bytes, int length) {
+        return decode(bytes, 0, length);
+    }
+
+    private String decode(byte[] bytes, int offset, int length) {
+        boolean ascii = true;
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        try {
+            return utf8.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(bytes, offset, length, Charset.defaultCharset());
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package top.totoro.sql.clap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * 子表文件的格式。
+ * <pre>
+ * 文件头（32字节）：
+ *   0  magic      4字节 "CLAP"
+ *   4  version    4字节 格式版本
+ *   8  dataLength 8字节 文件中有效内容的长度（包括文件头），之后的内容是没有完成的追加，读取时忽略
+ *   16 rowCount   4字节 数据行的数量
+ *   20 minExpireAt 8字节 所有数据行中最早的过期时间（ms），0表示没有会过期的数据行（版本2）
+ *   28 stamp      4字节 每次写入时随机生成的写入标记（版本3），版本2以前为0
+ * 数据行（依次排列）：
+ *   length   4字节 内容的字节数，最高位为1时说明有过期时间（版本2）
+ *   crc      4字节 length、过期时间和内容的CRC32校验值（版本3以前不包括length）
+ *   expireAt 8字节 过期时间（ms），只有length的最高位为1时存在
+ *   data     length字节 数据行的内容，UTF-8编码，不能为空
+ * </pre>
+ * 读取时按长度直接跳到下一个数据行，不需要查找结束标记，内容中也可以包含任意字符。
+ * 校验值包括length，并且内容不能为空，所以断电后文件末尾全是0的内容不会被当作空的数据行。
+ * 版本1的文件头中minExpireAt的位置是0，数据行也没有过期时间，版本1、2都可以按各自的校验方式读取；
+ * 不能直接向版本1、2的文件追加，打开表和整体写入时会转换成当前版本。
+ * 追加数据行时先写入数据行，再更新文件头中的dataLength和rowCount，更新文件头就是追加生效。
+ * dataLength、rowCount和stamp一起作为子表内容的指纹（{@link #fingerprint(File)}），任何一次写入都会改变指纹，
+ * 和子表一起持久化的布隆过滤器和索引用它判断是否还和子表一致。
+ * 不以magic开头的非空文件是旧版本以" ~end"和换行符结束每一行的文本格式，
+ * 仍然可以读取，整体写入时会转换成当前格式。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+final class TableFormat {
+    static final int VERSION = 3;
+    // 从这个版本开始数据行的校验值包括length
+    static final int CHECKED_LENGTH_VERSION = 3;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int EXPIRE_AT_SIZE = 8;
+    // 数据行的length中表示存在过期时间的标记位
+    static final int EXPIRE_FLAG = 0x80000000;
+    private static final byte[] MAGIC = {'C', 'L', 'A', 'P'};
+    private static final int VERSION_OFFSET = 4;
+    private static final int DATA_LENGTH_OFFSET = 8;
+    private static final int ROW_COUNT_OFFSET = 16;
+    private static final int MIN_EXPIRE_AT_OFFSET = 20;
+    private static final int STAMP_OFFSET = 28;
+
+    /**
+     * 子表文件头中的信息。
+     */
+    static final class Header {
+        final int version;
+        final long dataLength;
+        final int rowCount;
+        final long minExpireAt;
+        final int stamp;
+
+        Header(int version, long dataLength, int rowCount, long minExpireAt, int stamp) {
+            this.version = version;
+            this.dataLength = dataLength;
+            this.rowCount = rowCount;
+            this.minExpireAt = minExpireAt;
+            this.stamp = stamp;
+        }
+
+        /**
+         * @return 在now时是否已经存在过期的数据行
+         */
+        boolean hasExpired(long now) {
+            return minExpireAt != 0 && minExpireAt <= now;
+        }
+    }
+
+    private TableFormat() {
+    }
+
+    /**
+     * 把所有数据行编码成完整的子表文件内容。
+     *
+     * @param rows     编码后的每个数据行
+     * @param expireAt 每个数据行的过期时间（ms），0表示不过期，为null时都不过期
+     * @return 子表文件的内容
+     */
+    static byte[] encode(List<String> rows, long[] expireAt) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + rows.size() * 64);
+        out.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+        writeRecords(out, rows, expireAt);
+        byte[] content = out.toByteArray();
+        ByteBuffer.wrap(content).put(MAGIC).putInt(VERSION).putLong(content.length).putInt(rows.size())
+                .putLong(minExpireAt(0, expireAt)).putInt(newStamp());
+        return content;
+    }
+
+    /**
+     * 向当前格式的子表文件末尾追加数据行，空文件会先写入文件头，调用时需要持有子表的写入锁。
+     * 上次没有完成的追加留下的内容会被覆盖。
+     * 需要同步时先把数据行同步到磁盘再更新文件头，文件头不会在数据行之前写入磁盘；
+     * 不同步时系统崩溃后可能丢失最近追加的数据行，但校验值保证不会读到不完整的数据行。
+     *
+     * @param tableFile 子表文件，必须是空文件或者当前版本的文件
+     * @param rows      编码后的每个数据行
+     * @param expireAt  每个数据行的过期时间（ms），0表示不过期，为null时都不过期
+     * @param sync      是否同步到磁盘
+     * @return 写入的字节数
+     */
+    static int append(File tableFile, List<String> rows, long[] expireAt, boolean sync) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows.size() * 64);
+        writeRecords(out, rows, expireAt);
+        byte[] records = out.toByteArray();
+        int written = records.length;
+        try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Header header = channel.size() == 0 ? null : readHeader(channel);
+            if (header == null || header.version != VERSION) {
+                if (channel.size() != 0) throw new IOException("can not append to old version table file " + tableFile);
+                ByteBuffer empty = ByteBuffer.allocate(HEADER_SIZE);
+                empty.put(MAGIC).putInt(VERSION).putLong(HEADER_SIZE).putInt(0).putLong(0);
+                ((Buffer) empty).flip();
+                writeFully(channel, empty, 0);
+                written += HEADER_SIZE;
+                header = new Header(VERSION, HEADER_SIZE, 0, 0, 0);
+            }
+            channel.truncate(header.dataLength);
+            writeFully(channel, ByteBuffer.wrap(records), header.dataLength);
+            if (sync) channel.force(false);
+            // 版本、有效长度、数据行数量、最早的过期时间和写入标记是连续的，一次写入
+            ByteBuffer update = ByteBuffer.allocate(HEADER_SIZE - VERSION_OFFSET);
+            update.putInt(VERSION).putLong(header.dataLength + records.length).putInt(header.rowCount + rows.size())
+                    .putLong(minExpireAt(header.minExpireAt, expireAt)).putInt(newStamp());
+            ((Buffer) update).flip();
+            writeFully(channel, update, VERSION_OFFSET);
+            if (sync) channel.force(false);
+        }
+        return written;
+    }
+
+    /**
+     * 按之前读取的文件头复制子表文件，用于在不持有写入锁时复制子表在读取文件头时的版本。
+     * 追加只会修改文件头和有效长度之后的内容，所以只复制有效长度之内的内容，再写回读取时的文件头。
+     *
+     * @param source 子表文件
+     * @param target 复制到的文件
+     * @param header 之前读取的文件头，为null时（空文件或者旧版本格式）直接复制整个文件
+     */
+    static void copy(File source, File target, Header header) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long length = header == null ? in.size() : header.dataLength;
+            long position = 0;
+            while (position < length) {
+                long copied = in.transferTo(position, length - position, out);
+                if (copied <= 0) throw new IOException("unexpected end of " + source);
+                position += copied;
+            }
+            if (header == null) return;
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.put(MAGIC).putInt(header.version).putLong(header.dataLength).putInt(header.rowCount)
+                    .putLong(header.minExpireAt).putInt(header.stamp);
+            ((Buffer) buffer).flip();
+            writeFully(out, buffer, 0);
+        }
+    }
+
+    /**
+     * @return 子表文件是否可以直接追加：空文件或者当前版本的文件
+     */
+    static boolean isAppendable(File tableFile) {
+        if (tableFile.length() == 0) return true;
+        Header header = readHeader(tableFile);
+        return header != null && header.version == VERSION;
+    }
+
+    /**
+     * @return 子表文件是否是旧版本的格式：文本格式或者以前版本的文件头
+     */
+    static boolean isLegacy(File tableFile) {
+        return !isAppendable(tableFile);
+    }
+
+    /**
+     * 读取子表文件的文件头。
+     *
+     * @return 文件头，空文件、旧版本格式或者读取失败时为null
+     */
+    static Header readHeader(File tableFile) {
+        if (tableFile.length() < HEADER_SIZE) return null;
+        try (FileChannel channel = FileChannel.open(tableFile.toPath(), StandardOpenOption.READ)) {
+            return readHeader(channel);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) return null;
+        }
+        ((Buffer) buffer).flip();
+        return readHeader(buffer);
+    }
+
+    /**
+     * 从缓冲区的开头读取文件头，不改变缓冲区的位置。
+     *
+     * @return 文件头，不是当前格式时为null
+     */
+    static Header readHeader(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE) return null;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) return null;
+        }
+        int version = buffer.getInt(VERSION_OFFSET);
+        if (version < 1 || version > VERSION) return null;
+        return new Header(version, buffer.getLong(DATA_LENGTH_OFFSET), buffer.getInt(ROW_COUNT_OFFSET),
+                buffer.getLong(MIN_EXPIRE_AT_OFFSET), version >= 3 ? buffer.getInt(STAMP_OFFSET) : 0);
+    }
+
+    /**
+     * 子表内容的指纹，子表的每次写入都会改变指纹，修改时间只精确到秒并且长度可能不变，不能用来判断。
+     *
+     * @return 指纹，空文件为"0"，不是当前版本的子表没有指纹，返回null
+     */
+    static String fingerprint(File tableFile) {
+        if (tableFile.length() == 0) return "0";
+        Header header = readHeader(tableFile);
+        if (header == null || header.version != VERSION) return null;
+        return header.dataLength + ":" + header.rowCount + ":" + Integer.toHexString(header.stamp);
+    }
+
+    // 写入标记，0留给没有写入标记的版本
+    private static int newStamp() {
+        int stamp;
+        do {
+            stamp = ThreadLocalRandom.current().nextInt();
+        } while (stamp == 0);
+        return stamp;
+    }
+
+    // 在已有的最早过期时间上加入新数据行的过期时间，0表示没有会过期的数据行
+    private static long minExpireAt(long min, long[] expireAt) {
+        if (expireAt == null) return min;
+        for (long time : expireAt) {
+            if (time != 0 && (min == 0 || time < min)) min = time;
+        }
+        return min;
+    }
+
+    private static void writeRecords(ByteArrayOutputStream out, List<String> rows, long[] expireAt) {
+        CRC32 crc = new CRC32();
+        byte[] recordHeader = new byte[RECORD_HEADER_SIZE + EXPIRE_AT_SIZE];
+        ByteBuffer header = ByteBuffer.wrap(recordHeader);
+        for (int i = 0; i < rows.size(); i++) {
+            byte[] data = rows.get(i).getBytes(StandardCharsets.UTF_8);
+            long time = expireAt == null ? 0 : expireAt[i];
+            int expireSize = time == 0 ? 0 : EXPIRE_AT_SIZE;
+            header.putInt(0, time == 0 ? data.length : data.length | EXPIRE_FLAG);
+            if (time != 0) header.putLong(RECORD_HEADER_SIZE, time);
+            // 校验length、过期时间和内容，crc所在的位置不参与校验
+            crc.reset();
+            crc.update(recordHeader, 0, 4);
+            crc.update(recordHeader, RECORD_HEADER_SIZE, expireSize);
+            crc.update(data, 0, data.length);
+            header.putInt(4, (int) crc.getValue());
+            out.write(recordHeader, 0, RECORD_HEADER_SIZE + expireSize);
+            out.write(data, 0, data.length);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package top.totoro.sql.clap;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * 写回模式的日志，记录还没有写入子表文件的修改，进程在写入子表文件之前退出时，下次启动根据日志恢复。
+ * 每个子表的修改从一条基准记录开始，基准是子表文件当时的长度和内容的CRC32，之后的修改记录都在基准内容上依次生效：
+ * <pre>
+ *   length 4字节 内容的字节数
+ *   crc    4字节 内容的CRC32校验值
+ *   data   length字节：
+ *     type 1字节 0是基准，1是修改
+ *     path 子表相对数据库目录的路径
+ *     基准：子表文件的长度 8字节，子表文件内容的CRC32 4字节
+ *     修改：修改的数量 4字节，每个修改是 op 1字节（0删除，1加入）、expireAt 8字节、数据行的长度 4字节和UTF-8编码的数据行
+ * </pre>
+ * 恢复时只有子表文件仍然是最后一条基准记录的内容才重做修改，已经写入了的子表不会被重复修改，所以恢复可以重复执行。
+ * 写入日志后按{@link WriteBehindSync}同步到磁盘，进程异常退出时不会丢失修改，
+ * 系统崩溃时{@link WriteBehindSync#EVERY_WRITE}不会丢失修改，{@link WriteBehindSync#INTERVAL}最多丢失最近一个同步间隔内的修改。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+final class WriteBehindLog implements Closeable {
+    private static final String TAG = "WriteBehindLog";
+    private static final int TYPE_BASE = 0;
+    private static final int TYPE_CHANGES = 1;
+    private static final int recordHeaderSize = 8;
+
+    private final File file;
+    // 写入日志的输出流，第一次写入时打开
+    private FileOutputStream out;
+    private long size;
+    private WriteBehindSync sync = WriteBehindSync.NONE;
+    private long syncIntervalNanos;
+    // 上一次同步到磁盘的时间（ns），和之后是否写入了还没有同步的记录
+    private long lastSync = System.nanoTime();
+    private boolean unsynced = false;
+
+    /**
+     * 子表的一个修改：删除或者加入一个数据行。
+     */
+    static final class Change {
+        final boolean add;
+        final String record;
+        final long expireAt;
+
+        Change(boolean add, String record, long expireAt) {
+            this.add = add;
+            this.record = record;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /**
+     * 日志中一个子表最后的基准和之后的所有修改。
+     */
+    static final class Pending {
+        final long length;
+        final int crc;
+        final List<Change> changes = new ArrayList<>();
+
+        Pending(long length, int crc) {
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * @param file 日志文件
+     */
+    WriteBehindLog(File file) {
+        this.file = file;
+        size = file.length();
+    }
+
+    /**
+     * 设置同步到磁盘的方式。
+     *
+     * @param sync         同步方式
+     * @param syncInterval {@link WriteBehindSync#INTERVAL}时两次同步的最小间隔（ms）
+     */
+    synchronized void setSync(WriteBehindSync sync, long syncInterval) {
+        this.sync = sync;
+        this.syncIntervalNanos = syncInterval * 1_000_000L;
+    }
+
+    /**
+     * 记录子表的基准，之后的修改都在这个内容上生效。
+     *
+     * @param path   子表相对数据库目录的路径
+     * @param length 子表文件的长度
+     * @param crc    子表文件内容的CRC32
+     */
+    synchronized void base(String path, long length, int crc) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeByte(TYPE_BASE);
+        out.writeUTF(path);
+        out.writeLong(length);
+        out.writeInt(crc);
+        write(data);
+    }
+
+    /**
+     * 记录子表的修改。
+     *
+     * @param path    子表相对数据库目录的路径
+     * @param changes 依次生效的修改
+     */
+    synchronized void changes(String path, List<Change> changes) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64 + changes.size() * 64);
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeByte(TYPE_CHANGES);
+        out.writeUTF(path);
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            out.writeBoolean(change.add);
+            out.writeLong(change.expireAt);
+            byte[] record = change.record.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        write(data);
+    }
+
+    private void write(ByteArrayOutputStream data) throws IOException {
+        if (out == null) out = new FileOutputStream(file, true);
+        CRC32 crc = new CRC32();
+        crc.update(data.toByteArray(), 0, data.size());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(recordHeaderSize + data.size());
+        DataOutputStream header = new DataOutputStream(buffer);
+        header.writeInt(data.size());
+        header.writeInt((int) crc.getValue());
+        data.writeTo(buffer);
+        // 一条记录一次写入，进程退出时不会只写入一部分
+        out.write(buffer.toByteArray());
+        size += buffer.size();
+        unsynced = true;
+        if (sync == WriteBehindSync.EVERY_WRITE
+                || (sync == WriteBehindSync.INTERVAL && System.nanoTime() - lastSync >= syncIntervalNanos)) {
+            sync();
+        }
+    }
+
+    /**
+     * 把还没有同步的记录同步到磁盘，{@link WriteBehindSync#INTERVAL}时在每个间隔结束时调用，
+     * 之后没有新的写入时最后的记录也会被同步。
+     */
+    synchronized void sync() throws IOException {
+        if (out == null || !unsynced) return;
+        out.getFD().sync();
+        unsynced = false;
+        lastSync = System.nanoTime();
+    }
+
+    /**
+     * @return 日志的大小（byte）
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * 清空日志，所有的修改都已经写入子表文件时调用。
+     */
+    synchronized void reset() throws IOException {
+        if (size == 0) return;
+        close();
+        new FileOutputStream(file, false).close();
+        size = 0;
+        unsynced = false;
+    }
+
+    /**
+     * 读取日志中完整并且校验通过的记录，得到每个子表最后的基准和之后的修改，没有基准的修改会被忽略。
+     *
+     * @return 子表相对数据库目录的路径 -> 最后的基准和之后的修改
+     */
+    synchronized Map<String, Pending> read() {
+        Map<String, Pending> pending = new LinkedHashMap<>();
+        if (!file.exists()) return pending;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] data;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0) break;
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data, 0, data.length);
+                if ((int) crc.getValue() != checksum) break;
+                readRecord(data, pending);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read write-behind log " + file + " failed: " + e);
+        }
+        return pending;
+    }
+
+    private static void readRecord(byte[] data, Map<String, Pending> pending) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int type = in.readByte();
+        String path = in.readUTF();
+        if (type == TYPE_BASE) {
+            pending.put(path, new Pending(in.readLong(), in.readInt()));
+            return;
+        }
+        Pending shard = pending.get(path);
+        if (shard == null) return;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            boolean add = in.readBoolean();
+            long expireAt = in.readLong();
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            shard.changes.add(new Change(add, new String(record, StandardCharsets.UTF_8), expireAt));
+        }
+    }
+
+    /**
+     * 计算文件内容的CRC32，文件不存在时和空文件一样是0。
+     */
+    static int checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        if (!file.exists()) return 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                crc.update(buffer.array(), 0, buffer.position());
+                ((Buffer) buffer).clear();
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 计算内容的CRC32，和写入文件后{@link #checksum(File)}的结果一致。
+     */
+    static int checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close write-behind log " + file + " failed: " + e);
+        }
+        out = null;
+    }
+}
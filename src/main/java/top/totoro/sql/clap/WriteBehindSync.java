@@ -0,0 +1,14 @@
+package top.totoro.sql.clap;
+
+/**
+ * 写回模式下写回日志同步到磁盘的方式，进程异常退出时三种方式都不会丢失修改，区别在于系统崩溃或断电时。
+ */
+public enum WriteBehindSync {
+    /* 写回日志的同步方式 */
+    // 不主动同步，由操作系统决定什么时候写入磁盘，系统崩溃时可能丢失还没有写入子表文件的所有修改
+    NONE,
+    // 每个写回间隔最多同步一次，系统崩溃时最多丢失最近一个写回间隔内的修改
+    INTERVAL,
+    // 每次写入都同步，写入方法返回后的修改在系统崩溃时也不会丢失，每次写入多一次磁盘同步
+    EVERY_WRITE,
+}
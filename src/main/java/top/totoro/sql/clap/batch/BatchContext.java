@@ -0,0 +1,350 @@
+package top.totoro.sql.clap.batch;
+
+import top.totoro.sql.clap.metrics.MetricsRegistry;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 批处理任务的执行环境，每个数据库服务拥有一个自己的执行环境，
+ * 包括执行批处理的线程池、每个表的任务优先级集合、可再利用的任务对象以及每个表的有界提交队列。
+ * 使用{@link ExecutionMode#VIRTUAL}时，线程池只负责任务的延迟调度，任务本身都在虚拟线程中执行，
+ * 等待文件I/O的任务不会占用有限的平台线程。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class BatchContext {
+    private static final String TAG = "BatchContext";
+    // 每种模式最多保留多少个可再利用的任务对象，避免无限制的增长
+    private static final int maxAvailableTasks = 32;
+    // 线程空闲多久后回收（s），所有线程都被回收后不会阻止JVM退出
+    private static final long keepAliveTime = 60;
+
+    private final String name;
+    // 使用机器的处理器数量创建计划执行的的服务，虚拟线程模式下只用一个线程调度延迟任务
+    private volatile ScheduledThreadPoolExecutor executor;
+    // 虚拟线程模式下执行任务的服务，平台线程模式下为空
+    private volatile ExecutorService virtualExecutor;
+    private volatile ExecutionMode mode;
+    // 总是把任务交给当前执行方式的服务，切换执行方式之后仍然可以使用
+    private final Executor dispatcher = this::execute;
+    // 存储当前存在的所有批处理对象优先级集合，执行批处理任务时需要根据优先级执行
+    private final Map<String, Map<BatchMode, Queue<BatchTask<? extends Serializable>>>> priorityMap
+            = new ConcurrentHashMap<>();
+    // 当前可再利用的批处理空对象
+    private final Map<BatchMode, Queue<BatchTask<? extends Serializable>>> availableMap
+            = new ConcurrentHashMap<>();
+    // 每个表的有界提交队列
+    private final Map<String, BatchQueue> queues = new ConcurrentHashMap<>();
+    // 新建提交队列时使用的默认配置
+    private volatile int queueCapacity = 1024;
+    private volatile BatchPolicy queuePolicy = BatchPolicy.BLOCK;
+    private volatile long blockTimeout = 0;
+    // 记录提交队列指标的注册表，可以为空
+    private final MetricsRegistry metrics;
+    // 还没有执行的定时任务，关闭时取消
+    private final Set<ScheduledFuture<?>> timers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name 执行环境的名称，用于区分线程
+     */
+    public BatchContext(String name) {
+        this(name, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * @param name 执行环境的名称，用于区分线程
+     * @param mode 任务的执行方式，运行环境不支持虚拟线程时使用平台线程池
+     */
+    public BatchContext(String name, ExecutionMode mode) {
+        this(name, mode, null);
+    }
+
+    /**
+     * @param name    执行环境的名称，用于区分线程
+     * @param mode    任务的执行方式，运行环境不支持虚拟线程时使用平台线程池
+     * @param metrics 记录每个表的提交队列的深度和等待时间，为null时不记录
+     */
+    public BatchContext(String name, ExecutionMode mode, MetricsRegistry metrics) {
+        this.name = name;
+        this.metrics = metrics;
+        setMode(mode);
+    }
+
+    /**
+     * 切换任务的执行方式，之后的任务使用新的执行方式。
+     * 还在等待延迟的任务由原来的调度线程等待，延迟结束后交给当时的执行方式执行。
+     *
+     * @param mode 任务的执行方式，运行环境不支持虚拟线程时使用平台线程池
+     */
+    public synchronized void setMode(ExecutionMode mode) {
+        if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+            Log.w(TAG, "virtual threads not supported in java " + System.getProperty("java.version") + ", use platform threads");
+            mode = ExecutionMode.PLATFORM;
+        }
+        if (mode == this.mode) return;
+        ScheduledThreadPoolExecutor oldExecutor = executor;
+        ExecutorService oldVirtualExecutor = virtualExecutor;
+        AtomicInteger threadNum = new AtomicInteger();
+        int poolSize = mode == ExecutionMode.VIRTUAL ? 1 : Runtime.getRuntime().availableProcessors();
+        ScheduledThreadPoolExecutor newExecutor = new ScheduledThreadPoolExecutor(poolSize,
+                runnable -> new Thread(runnable, "clap-batch-" + name + "-" + threadNum.incrementAndGet()));
+        newExecutor.setKeepAliveTime(keepAliveTime, TimeUnit.SECONDS);
+        newExecutor.allowCoreThreadTimeOut(true);
+        virtualExecutor = mode == ExecutionMode.VIRTUAL ? VirtualThreads.newExecutor("clap-virtual-" + name + "-") : null;
+        executor = newExecutor;
+        this.mode = mode;
+        // 原来的线程池不再接收新任务，但会执行完已经调度了的任务
+        if (oldExecutor != null) oldExecutor.shutdown();
+        if (oldVirtualExecutor != null) oldVirtualExecutor.shutdown();
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return 执行任务的服务，虚拟线程模式下每个任务一个虚拟线程，切换执行方式后使用新的执行方式
+     */
+    public Executor getExecutor() {
+        return dispatcher;
+    }
+
+    /**
+     * 在当前的执行方式中执行任务，提交时执行方式刚好被切换、原来的服务已经关闭的话，重新提交到新的服务中。
+     *
+     * @throws RejectedExecutionException 执行环境已经关闭
+     */
+    private void execute(Runnable task) {
+        while (true) {
+            Executor target = currentExecutor();
+            try {
+                target.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // 执行方式没有切换过，是执行环境已经关闭了
+                if (target == currentExecutor()) throw e;
+            }
+        }
+    }
+
+    private Executor currentExecutor() {
+        ExecutorService virtualExecutor = this.virtualExecutor;
+        return virtualExecutor != null ? virtualExecutor : executor;
+    }
+
+    // 延迟结束后在当前的执行方式中执行，平台线程模式下直接在调度线程中执行
+    private void dispatch(Runnable task, Consumer<RejectedExecutionException> onRejected) {
+        try {
+            if (virtualExecutor == null) {
+                task.run();
+            } else {
+                // 调度线程只负责把任务交给虚拟线程，不会被任务阻塞
+                execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            onRejected.accept(e);
+        }
+    }
+
+    // 在当前的调度线程池中延迟执行，提交时调度线程池刚好被切换的话重新提交到新的线程池中
+    private ScheduledFuture<?> delay(Runnable task, long delay) {
+        while (true) {
+            ScheduledThreadPoolExecutor executor = this.executor;
+            try {
+                return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                if (executor == this.executor) throw e;
+            }
+        }
+    }
+
+    /**
+     * 延迟执行一个任务，延迟结束后在{@link #getExecutor()}中执行，执行环境已经关闭时任务被丢弃。
+     *
+     * @param task  执行的任务
+     * @param delay 延迟的时间（ms）
+     */
+    public void schedule(Runnable task, long delay) {
+        schedule(task, delay, e -> Log.w(TAG, "schedule() task rejected: " + e));
+    }
+
+    /**
+     * 延迟执行一个任务，延迟结束后在{@link #getExecutor()}中执行。
+     *
+     * @param task       执行的任务
+     * @param delay      延迟的时间（ms）
+     * @param onRejected 执行环境已经关闭、任务不会被执行时调用，可能在调度线程中调用
+     */
+    public void schedule(Runnable task, long delay, Consumer<RejectedExecutionException> onRejected) {
+        try {
+            if (delay <= 0 && virtualExecutor != null) {
+                execute(task);
+            } else {
+                delay(() -> dispatch(task, onRejected), delay);
+            }
+        } catch (RejectedExecutionException e) {
+            onRejected.accept(e);
+        }
+    }
+
+    /**
+     * 延迟执行一个定时任务，和{@link #schedule(Runnable, long)}不同，关闭执行环境时还没有开始的定时任务不再执行，
+     * 关闭时不需要等待很长的间隔结束。
+     *
+     * @param task  执行的任务
+     * @param delay 延迟的时间（ms）
+     */
+    public void scheduleTimer(Runnable task, long delay) {
+        Consumer<RejectedExecutionException> onRejected = e -> Log.w(TAG, "scheduleTimer() timer rejected: " + e);
+        timers.removeIf(Future::isDone);
+        try {
+            timers.add(delay(() -> dispatch(task, onRejected), delay));
+        } catch (RejectedExecutionException e) {
+            onRejected.accept(e);
+        }
+    }
+
+    /**
+     * 获取表的提交队列，不存在则使用默认配置创建。
+     *
+     * @param tableName 表名
+     * @return 表的提交队列
+     */
+    public BatchQueue getQueue(String tableName) {
+        return queues.computeIfAbsent(tableName, table -> {
+            BatchQueue queue = new BatchQueue(table, queueCapacity, queuePolicy, blockTimeout);
+            if (metrics != null) {
+                String prefix = "batch." + table + ".";
+                metrics.gauge(prefix + "depth", queue::getDepth);
+                metrics.gauge(prefix + "maxDepth", queue::getMaxDepth);
+                metrics.gauge(prefix + "submitted", queue::getSubmittedCount);
+                metrics.gauge(prefix + "rejected", queue::getRejectedCount);
+                metrics.register(prefix + "wait", queue.getWaitTimes());
+            }
+            return queue;
+        });
+    }
+
+    /**
+     * @return 所有表的提交队列，可用于观察队列深度
+     */
+    public Map<String, BatchQueue> getQueues() {
+        return queues;
+    }
+
+    /**
+     * 设置之后新建的提交队列的默认配置，已经存在的队列也会同步修改。
+     *
+     * @param capacity     队列容量
+     * @param policy       队列已满时的策略
+     * @param blockTimeout BLOCK策略下最多等待的时间（ms），不大于0时一直等待
+     */
+    public void setQueueConfig(int capacity, BatchPolicy policy, long blockTimeout) {
+        this.queueCapacity = capacity;
+        this.queuePolicy = policy;
+        this.blockTimeout = blockTimeout;
+        for (BatchQueue queue : queues.values()) {
+            queue.setCapacity(capacity);
+            queue.setPolicy(policy, blockTimeout);
+        }
+    }
+
+    /**
+     * 获取一个可再利用的批处理任务对象，没有可用的对象时新建一个。
+     *
+     * @param mode        任务的执行模式
+     * @param respondType 任务的返回类型
+     * @return 批处理任务对象
+     */
+    public BatchTask<?> obtain(BatchMode mode, Class<?> respondType) {
+        Queue<BatchTask<? extends Serializable>> batchTaskList = availableMap.computeIfAbsent(mode, key -> new ConcurrentLinkedQueue<>());
+        for (BatchTask<?> batchTask : batchTaskList) {
+            if (batchTask != null
+                    && batchTask.isTaskEnd()
+                    && batchTask.getRespond() != null
+                    && batchTask.getRespond().getClass().isAssignableFrom(respondType)
+                    && batchTaskList.remove(batchTask)) {
+                batchTask.setTaskEnd(false);
+                Log.d(TAG, () -> "obtain mode = " + mode);
+                return batchTask;
+            }
+        }
+        return new BatchTask<>(this, mode);
+    }
+
+    /**
+     * 任务开始时登记到表的优先级集合中。
+     */
+    void register(BatchTask<? extends Serializable> task) {
+        priorityMap.computeIfAbsent(task.getTableName(), key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(task.getMode(), mode -> new ConcurrentLinkedQueue<>()).add(task);
+    }
+
+    /**
+     * 任务结束时从表的优先级集合中移除，并放回可再利用的任务对象中。
+     */
+    void recycle(BatchTask<? extends Serializable> task) {
+        Map<BatchMode, Queue<BatchTask<? extends Serializable>>> tableTaskMap = priorityMap.get(task.getTableName());
+        if (tableTaskMap != null) {
+            Queue<BatchTask<? extends Serializable>> tasks = tableTaskMap.get(task.getMode());
+            if (tasks != null) tasks.remove(task);
+        }
+        Queue<BatchTask<? extends Serializable>> available = availableMap.computeIfAbsent(task.getMode(), key -> new ConcurrentLinkedQueue<>());
+        if (available.size() < maxAvailableTasks) {
+            available.add(task);
+        }
+    }
+
+    /**
+     * @return 表中是否还存在指定模式的任务没有执行结束
+     */
+    boolean hasTasks(String tableName, BatchMode mode) {
+        Map<BatchMode, Queue<BatchTask<? extends Serializable>>> tableTaskMap = priorityMap.get(tableName);
+        if (tableTaskMap == null) return false;
+        Queue<BatchTask<? extends Serializable>> tasks = tableTaskMap.get(mode);
+        return tasks != null && !tasks.isEmpty();
+    }
+
+    /**
+     * 关闭执行环境，等待已经提交的批处理执行结束，还没有开始的定时任务不再执行。
+     * 批处理执行过程中还会提交子任务，所以要先等所有提交队列为空才能关闭线程池。
+     *
+     * @param timeout 最多等待的时间（ms）
+     */
+    public void shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (System.currentTimeMillis() < deadline && !isIdle()) {
+                Thread.sleep(5);
+            }
+            timers.forEach(timer -> timer.cancel(false));
+            timers.clear();
+            executor.shutdown();
+            boolean terminated = executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (virtualExecutor != null) {
+                virtualExecutor.shutdown();
+                terminated &= virtualExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            if (!terminated) {
+                Log.w(TAG, "shutdown() batch tasks not finished in " + timeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isIdle() {
+        for (BatchQueue queue : queues.values()) {
+            if (queue.getDepth() > 0) return false;
+        }
+        return true;
+    }
+}
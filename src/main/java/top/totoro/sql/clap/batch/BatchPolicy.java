@@ -0,0 +1,14 @@
+package top.totoro.sql.clap.batch;
+
+/**
+ * 批处理提交队列已满时的处理策略。
+ */
+public enum BatchPolicy {
+    /* 提交队列已满时的策略 */
+    // 阻塞提交线程直到队列有空位，超过等待时间后拒绝
+    BLOCK,
+    // 直接拒绝，抛出RejectedExecutionException
+    ABORT,
+    // 丢弃本次提交，提交方法返回false
+    DISCARD,
+}
@@ -0,0 +1,249 @@
+package top.totoro.sql.clap.batch;
+
+import top.totoro.sql.clap.metrics.LatencyHistogram;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 一个表的有界批处理提交队列。
+ * 每次提交批处理前需要先进入队列，批处理的所有子任务执行结束后才离开队列，
+ * 这样同一个表中同时存在的批处理数量不会超过队列容量，内存和延迟都是可预期的。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class BatchQueue {
+    private final String tableName;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    // 队列容量，即同一时间允许存在的批处理数量
+    private int capacity;
+    // 队列已满时的处理策略
+    private BatchPolicy policy;
+    // BLOCK策略下最多等待的时间（ms），不大于0时一直等待
+    private long blockTimeout;
+    // 当前队列中的批处理数量
+    private int depth;
+    private int maxDepth;
+    private long submittedCount;
+    private long rejectedCount;
+    private long completedCount;
+    // 提交时等待进入队列的时间（ns）
+    private long totalWaitTime;
+    private long maxWaitTime;
+    // 成功进入队列的提交的等待时间分布
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+
+    public BatchQueue(String tableName, int capacity, BatchPolicy policy, long blockTimeout) {
+        assert capacity > 0 && policy != null;
+        this.tableName = tableName;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * 提交一个批处理，需要进入队列。
+     *
+     * @return 是否成功进入队列，DISCARD策略下队列已满时返回false
+     * @throws RejectedExecutionException ABORT策略下队列已满，或者BLOCK策略等待超时、被中断
+     */
+    public boolean enter() {
+        long startTime = System.nanoTime();
+        lock.lock();
+        try {
+            if (depth >= capacity) {
+                if (policy == BatchPolicy.DISCARD) {
+                    rejectedCount++;
+                    return false;
+                }
+                if (policy == BatchPolicy.ABORT) {
+                    rejectedCount++;
+                    throw new RejectedExecutionException("batch queue of table " + tableName + " is full, capacity = " + capacity);
+                }
+                long remain = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+                while (depth >= capacity) {
+                    if (blockTimeout <= 0) {
+                        notFull.await();
+                    } else if (remain <= 0) {
+                        rejectedCount++;
+                        throw new RejectedExecutionException("wait batch queue of table " + tableName + " timeout = " + blockTimeout + "ms");
+                    } else {
+                        remain = notFull.awaitNanos(remain);
+                    }
+                }
+            }
+            depth++;
+            submittedCount++;
+            maxDepth = Math.max(maxDepth, depth);
+            long waitTime = System.nanoTime() - startTime;
+            totalWaitTime += waitTime;
+            maxWaitTime = Math.max(maxWaitTime, waitTime);
+            waitTimes.record(waitTime);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejectedCount++;
+            throw new RejectedExecutionException("interrupted while waiting batch queue of table " + tableName, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 批处理执行结束，离开队列，唤醒一个等待中的提交。
+     */
+    public void leave() {
+        lock.lock();
+        try {
+            if (depth > 0) depth--;
+            completedCount++;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public int getCapacity() {
+        lock.lock();
+        try {
+            return capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 修改队列容量，扩容时会唤醒所有等待中的提交。
+     *
+     * @param capacity 新的容量，必须大于0
+     */
+    public void setCapacity(int capacity) {
+        assert capacity > 0;
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public BatchPolicy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(BatchPolicy policy, long blockTimeout) {
+        assert policy != null;
+        lock.lock();
+        try {
+            this.policy = policy;
+            this.blockTimeout = blockTimeout;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 当前队列中还没有执行结束的批处理数量
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmittedCount() {
+        lock.lock();
+        try {
+            return submittedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRejectedCount() {
+        lock.lock();
+        try {
+            return rejectedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompletedCount() {
+        lock.lock();
+        try {
+            return completedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 所有提交等待进入队列的总时间（ms）
+     */
+    public long getTotalWaitTime() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(totalWaitTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 单次提交等待进入队列的最长时间（ms）
+     */
+    public long getMaxWaitTime() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 提交等待进入队列的时间的分布
+     */
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "BatchQueue{table=" + tableName +
+                    ", depth=" + depth +
+                    ", capacity=" + capacity +
+                    ", maxDepth=" + maxDepth +
+                    ", submitted=" + submittedCount +
+                    ", rejected=" + rejectedCount +
+                    ", completed=" + completedCount +
+                    "}";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
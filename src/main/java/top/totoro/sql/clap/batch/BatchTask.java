@@ -1,15 +1,8 @@
 package top.totoro.sql.clap.batch;
 
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
-import static top.totoro.sql.clap.SQLBatch.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 一个可执行的批处理任务，可以通过obtain获取批处理任务对象，确保任务优先级。
@@ -23,19 +16,25 @@ public class BatchTask<Respond extends Serializable> {
     private static final String TAG = "BatchTask";
 
     private String mTableName = "";
+    // 任务所在的执行环境
+    private BatchContext mContext;
     // 用于处理任务
     private Callable<Respond> mTask;
     // 当前任务的处理模式
     private BatchMode mMode;
     // 从开启任务到真正执行的延迟
     private long mDelay = 0;
-    // 当前任务的执行Future
-    private ScheduledFuture<Respond> mRespondFuture;
+    // 当前任务的执行Future，任务执行结束时完成
+    private CompletableFuture<Respond> mRespondFuture;
     // 当前任务的执行结果
     private Respond mRespond;
     // 任务是否执行结束
     private boolean mTaskEnd;
 
+    public String getTableName() {
+        return mTableName;
+    }
+
     /**
      * 设置该任务执行操作对应的是那张表的表名。
      *
@@ -45,6 +44,19 @@ public class BatchTask<Respond extends Serializable> {
         this.mTableName = tableName;
     }
 
+    public BatchContext getContext() {
+        return mContext;
+    }
+
+    /**
+     * 设置任务在哪个执行环境中执行，开启任务之前必须设置。
+     *
+     * @param context 执行环境
+     */
+    public void setContext(BatchContext context) {
+        this.mContext = context;
+    }
+
     public Callable<Respond> getTask() {
         return mTask;
     }
@@ -108,6 +120,11 @@ public class BatchTask<Respond extends Serializable> {
         this.mMode = mode;
     }
 
+    public BatchTask(BatchContext context, BatchMode mode) {
+        this.mContext = context;
+        this.mMode = mode;
+    }
+
     public BatchTask(String tableName, Callable<Respond> task, BatchMode mode, long delay) {
         this.mTableName = tableName;
         this.mTask = task;
@@ -115,6 +132,11 @@ public class BatchTask<Respond extends Serializable> {
         this.mDelay = delay;
     }
 
+    public BatchTask(BatchContext context, String tableName, Callable<Respond> task, BatchMode mode, long delay) {
+        this(tableName, task, mode, delay);
+        this.mContext = context;
+    }
+
     /**
      * 开启批处理任务，需要直接设置任务参数。
      *
@@ -140,42 +162,42 @@ public class BatchTask<Respond extends Serializable> {
      */
     /* 正式开启批处理，可以链式调用继续异步执行then方法 */
     public BatchTask<Respond> start() {
-        assert mTask != null;
+        assert mTask != null && mContext != null;
         setTaskEnd(false);
-        HashMap<BatchMode, LinkedList<BatchTask<? extends Serializable>>> tableTaskMap = BATCH_PRIORITY_MAP.computeIfAbsent(mTableName, key -> new HashMap<>());
-        tableTaskMap.computeIfAbsent(getMode(), table -> new LinkedList<>()).add(this);
-        mRespondFuture = SCHEDULED_EXECUTOR.schedule(() -> {
-            waitToExecutor(getMode());
-            return mTask.call();
-        }, mDelay, TimeUnit.MILLISECONDS);
+        mContext.register(this);
+        CompletableFuture<Respond> respondFuture = new CompletableFuture<>();
+        mRespondFuture = respondFuture;
+        schedule(respondFuture, mDelay);
         return this;
     }
 
-    private void waitToExecutor(BatchMode mode) {
-        if (mode == BatchMode.INSERT) return;
-        while (true) {
-            HashMap<BatchMode, LinkedList<BatchTask<? extends Serializable>>> tableTaskMap = BATCH_PRIORITY_MAP.computeIfAbsent(mTableName, key -> new HashMap<>());
-            List<BatchTask<?>> insertTasks = tableTaskMap.get(BatchMode.INSERT);
-            boolean insertTaskEmpty = insertTasks == null || insertTasks.isEmpty();
-            if (insertTaskEmpty) {
-                if (mode == BatchMode.UPDATE) return;
-            }
-            List<BatchTask<?>> updateTasks = tableTaskMap.get(BatchMode.UPDATE);
-            boolean updateTaskEmpty = updateTasks == null || updateTasks.isEmpty();
-            if (insertTaskEmpty && updateTaskEmpty) {
-                if (mode == BatchMode.DELETE) return;
-            }
-            List<BatchTask<?>> deleteTasks = tableTaskMap.get(BatchMode.DELETE);
-            boolean deleteTaskEmpty = deleteTasks == null || deleteTasks.isEmpty();
-            if (insertTaskEmpty && updateTaskEmpty && deleteTaskEmpty) {
+    private void schedule(CompletableFuture<Respond> respondFuture, long delay) {
+        mContext.schedule(() -> {
+            // 优先级更高的任务还没有结束时稍后再尝试，不能在线程池中阻塞等待，否则优先级高的任务可能没有线程执行
+            if (!canExecute(getMode())) {
+                schedule(respondFuture, 5);
                 return;
             }
             try {
-                Thread.sleep(5);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                respondFuture.complete(mTask.call());
+            } catch (Throwable e) {
+                respondFuture.completeExceptionally(e);
             }
+        }, delay, respondFuture::completeExceptionally);
+    }
+
+    private boolean canExecute(BatchMode mode) {
+        if (mode == BatchMode.INSERT) return true;
+        boolean insertTaskEmpty = !mContext.hasTasks(mTableName, BatchMode.INSERT);
+        if (insertTaskEmpty) {
+            if (mode == BatchMode.UPDATE) return true;
+        }
+        boolean updateTaskEmpty = !mContext.hasTasks(mTableName, BatchMode.UPDATE);
+        if (insertTaskEmpty && updateTaskEmpty) {
+            if (mode == BatchMode.DELETE) return true;
         }
+        boolean deleteTaskEmpty = !mContext.hasTasks(mTableName, BatchMode.DELETE);
+        return insertTaskEmpty && updateTaskEmpty && deleteTaskEmpty;
     }
 
     /**
@@ -186,22 +208,19 @@ public class BatchTask<Respond extends Serializable> {
      */
     /* 批处理执行结束后继续异步执行后续任务then */
     public void then(ThenTask<Respond> then) {
-        Runnable thenRun = () -> {
-            try {
-                mRespond = mRespondFuture.get();
-                if (then == null) return;
-                then.then(mRespond);
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            } finally {
-                // 在这里移除任务，防止执行过程出现异常后没有正确移除任务，导致优先级低的任务得不到执行
-                BATCH_PRIORITY_MAP.get(mTableName).computeIfAbsent(getMode(), mode -> new LinkedList<>()).remove(this);
-                BATCH_AVAILABLE_MAP.get(getMode()).add(this);
-                setTaskEnd(true);
+        // 不能在线程池中阻塞等待任务结束，线程数较少时等待的线程会占满线程池，导致任务本身得不到执行
+        mRespondFuture.whenCompleteAsync((respond, throwable) -> {
+            if (throwable != null) {
+                throwable.printStackTrace();
+            } else {
+                mRespond = respond;
             }
-        };
-        SCHEDULED_EXECUTOR.schedule(thenRun, 0, TimeUnit.MICROSECONDS);
+            // 在这里移除任务，防止执行过程出现异常后没有正确移除任务，导致优先级低的任务得不到执行
+            mContext.recycle(this);
+            setTaskEnd(true);
+            // 任务执行失败时也需要执行后续任务，保证等待后续任务的批处理能够结束
+            if (then != null) then.then(throwable == null ? respond : null);
+        }, mContext.getExecutor());
     }
 
 }
-
@@ -0,0 +1,12 @@
+package top.totoro.sql.clap.batch;
+
+/**
+ * 批处理任务的执行方式。
+ */
+public enum ExecutionMode {
+    /* 批处理任务的执行方式 */
+    // 使用和处理器数量相同的平台线程池执行任务
+    PLATFORM,
+    // 每个任务使用一个虚拟线程执行，需要JDK 21以上，不支持时使用平台线程池
+    VIRTUAL,
+}
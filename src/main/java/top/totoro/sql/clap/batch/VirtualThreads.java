@@ -0,0 +1,28 @@
+package top.totoro.sql.clap.batch;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 虚拟线程的支持。
+ * 这是Java 8的版本，不支持虚拟线程；
+ * JDK 21以上运行时会使用multi-release jar中META-INF/versions/21下的版本。
+ */
+public class VirtualThreads {
+
+    /**
+     * @return 当前运行环境是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * 创建一个为每个任务启动一个虚拟线程的执行服务。
+     *
+     * @param name 线程名称的前缀
+     * @return 虚拟线程的执行服务
+     */
+    public static ExecutorService newExecutor(String name) {
+        throw new UnsupportedOperationException("virtual threads require JDK 21+");
+    }
+}
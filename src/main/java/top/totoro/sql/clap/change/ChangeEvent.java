@@ -0,0 +1,76 @@
+package top.totoro.sql.clap.change;
+
+/**
+ * 一次已经提交的数据变更。
+ * 数据行使用{@code SQLService#encoderRow}编码后的内容，可以通过{@code SQLService#decoderRow}转换成Bean。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class ChangeEvent {
+    // 写入变更日志时分配，之后不会再修改
+    long sequence;
+    private final long timestamp;
+    private final ChangeType type;
+    private final String table;
+    private final String key;
+    private final String row;
+
+    /**
+     * @param type  变更的类型
+     * @param table 表名
+     * @param key   数据行的主键，可以为null
+     * @param row   插入和更新时是新的数据行，删除时是被删除的数据行，删除表时为null
+     */
+    public ChangeEvent(ChangeType type, String table, String key, String row) {
+        this(0, System.currentTimeMillis(), type, table, key, row);
+    }
+
+    ChangeEvent(long sequence, long timestamp, ChangeType type, String table, String key, String row) {
+        assert type != null && table != null;
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.table = table;
+        this.key = key;
+        this.row = row;
+    }
+
+    /**
+     * @return 变更的序号，从1开始连续递增，可以作为继续订阅的位置
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return 变更提交的时间（ms）
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public ChangeType getType() {
+        return type;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return 插入和更新时是新的数据行，删除时是被删除的数据行，删除表时为null
+     */
+    public String getRow() {
+        return row;
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{" + sequence + " " + type + " " + table + (key == null ? "" : " " + key) + "}";
+    }
+}
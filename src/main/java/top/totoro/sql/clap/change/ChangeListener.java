@@ -0,0 +1,17 @@
+package top.totoro.sql.clap.change;
+
+/**
+ * 按顺序接收订阅的数据变更，在订阅的线程中调用。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public interface ChangeListener {
+
+    /**
+     * 接收一个数据变更，处理完成之后{@link ChangeSubscription#getPosition()}才会前进到这个变更。
+     *
+     * @param event 数据变更
+     */
+    void onChange(ChangeEvent event);
+}
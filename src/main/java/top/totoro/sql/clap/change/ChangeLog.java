@@ -0,0 +1,404 @@
+package top.totoro.sql.clap.change;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * 数据库已经提交的数据变更日志，默认关闭。
+ * 开启后每次写入子表在提交之后按顺序记录插入、更新和删除的数据行，每个变更分配一个连续递增的序号。
+ * 变更保存在数据库目录下的分段文件"changes.第一个序号.log"中，每个变更是一条记录：
+ * <pre>
+ *   length 4字节 内容的字节数
+ *   crc    4字节 内容的CRC32校验值
+ *   data   length字节 序号、时间、类型、表名、主键和数据行
+ * </pre>
+ * 所有分段的总大小超过上限时删除最早的分段，所以只能从保留的变更中继续订阅。
+ * 最近的变更同时保存在内存中，跟上了最新变更的订阅不需要读取文件。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class ChangeLog implements Closeable {
+    private static final String TAG = "ChangeLog";
+    private static final String filePrefix = "changes.";
+    private static final String fileSuffix = ".log";
+    private static final int recordHeaderSize = 8;
+    // 内存中保存的最近变更的数量
+    private static final int tailCapacity = 4096;
+
+    private final File dir;
+    private volatile boolean enabled = false;
+    private boolean opened = false;
+    // 所有分段的总大小上限（byte）
+    private long maxSize = 64L * 1024 * 1024;
+    private long lastSequence = 0;
+    // 正在写入的分段
+    private FileOutputStream out;
+    private long segmentSize;
+    private final ArrayDeque<ChangeEvent> tail = new ArrayDeque<>();
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param dir 保存变更日志的目录
+     */
+    public ChangeLog(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * 开启或关闭变更日志，开启时从已有的日志继续分配序号。
+     * 关闭期间的写入不会被记录，订阅者无法感知，所以需要从开启之后一直保持开启。
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && !opened) {
+            try {
+                open();
+            } catch (IOException e) {
+                Log.e(TAG, "open change log in " + dir + " failed: " + e);
+                return;
+            }
+        }
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 设置变更日志的总大小上限，默认是64MB，超过时删除最早的分段。
+     *
+     * @param bytes 总大小上限（byte）
+     */
+    public synchronized void setMaxSize(long bytes) {
+        assert bytes > 0;
+        maxSize = bytes;
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return 最后一个变更的序号，还没有变更时为0
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return 保留的最早的变更的序号，从比它小1的位置开始订阅不会丢失变更
+     */
+    public synchronized long getFirstSequence() {
+        List<Long> segments = listSegments();
+        return segments.isEmpty() ? lastSequence + 1 : segments.get(0);
+    }
+
+    /**
+     * 记录一组已经提交的变更，按顺序分配序号，没有开启时忽略。
+     *
+     * @param events 变更
+     * @param sync   是否同步到磁盘
+     */
+    public synchronized void append(List<ChangeEvent> events, boolean sync) {
+        if (!enabled || events.isEmpty()) return;
+        long sequence = lastSequence;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(events.size() * 128);
+            for (ChangeEvent event : events) {
+                event.sequence = ++sequence;
+                writeRecord(buffer, event);
+            }
+            out.write(buffer.toByteArray());
+            if (sync) out.getFD().sync();
+            segmentSize += buffer.size();
+        } catch (IOException e) {
+            Log.e(TAG, "append " + events.size() + " changes failed: " + e);
+            return;
+        }
+        lastSequence = sequence;
+        for (ChangeEvent event : events) {
+            if (tail.size() == tailCapacity) tail.pollFirst();
+            tail.addLast(event);
+        }
+        notifyAll();
+        if (segmentSize >= segmentLimit()) {
+            try {
+                roll();
+            } catch (IOException e) {
+                Log.e(TAG, "roll change log failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * 读取序号在afterSequence之后的变更，这些变更已经被删除时从保留的最早的变更开始。
+     *
+     * @param afterSequence 已经读取到的序号
+     * @param max           最多读取的数量
+     * @return 按序号排列的变更，没有新的变更时为空
+     */
+    public List<ChangeEvent> read(long afterSequence, int max) {
+        synchronized (this) {
+            if (afterSequence >= lastSequence) return Collections.emptyList();
+            ChangeEvent first = tail.peekFirst();
+            if (first != null && first.getSequence() <= afterSequence + 1) {
+                List<ChangeEvent> events = new ArrayList<>(Math.min(max, (int) (lastSequence - afterSequence)));
+                for (ChangeEvent event : tail) {
+                    if (event.getSequence() <= afterSequence) continue;
+                    events.add(event);
+                    if (events.size() >= max) break;
+                }
+                return events;
+            }
+        }
+        return readFiles(afterSequence, max);
+    }
+
+    /**
+     * 从afterSequence之后开始订阅变更。
+     *
+     * @param afterSequence 已经处理完成的变更的序号，从头开始时为0，只订阅新的变更时为{@link #getLastSequence()}
+     * @param listener      接收变更
+     * @return 订阅，不需要时关闭
+     */
+    public ChangeSubscription subscribe(long afterSequence, ChangeListener listener) {
+        assert listener != null;
+        ChangeSubscription subscription = new ChangeSubscription(this, Math.max(0, afterSequence), listener);
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    synchronized void unsubscribe(ChangeSubscription subscription) {
+        subscriptions.remove(subscription);
+        notifyAll();
+    }
+
+    /**
+     * 等待序号在position之后的变更。
+     *
+     * @return 是否有新的变更，订阅关闭时为false
+     */
+    synchronized boolean awaitAfter(long position, ChangeSubscription subscription) throws InterruptedException {
+        while (!subscription.isClosed() && lastSequence <= position) {
+            wait();
+        }
+        return !subscription.isClosed();
+    }
+
+    /**
+     * 关闭变更日志和所有的订阅。
+     */
+    @Override
+    public void close() {
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+        synchronized (this) {
+            enabled = false;
+            opened = false;
+            closeSegment();
+        }
+    }
+
+    private long segmentLimit() {
+        return Math.max(maxSize / 8, 4096);
+    }
+
+    // 打开最后一个分段继续写入，去掉上次没有写完的记录
+    private void open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("can not create " + dir);
+        List<Long> segments = listSegments();
+        if (segments.isEmpty()) {
+            lastSequence = 0;
+            openSegment(1);
+        } else {
+            long first = segments.get(segments.size() - 1);
+            File file = segmentFile(first);
+            long[] last = {first - 1};
+            long valid = readSegment(file, event -> {
+                last[0] = event.getSequence();
+                return true;
+            });
+            if (valid < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(valid);
+                }
+            }
+            lastSequence = last[0];
+            out = new FileOutputStream(file, true);
+            segmentSize = valid;
+        }
+        tail.clear();
+        opened = true;
+        Log.d(TAG, "open change log " + dir + " last sequence = " + lastSequence);
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+        openSegment(lastSequence + 1);
+        // 超过总大小上限时删除最早的分段，正在写入的分段不会被删除
+        List<Long> segments = listSegments();
+        long total = 0;
+        for (Long first : segments) {
+            total += segmentFile(first).length();
+        }
+        for (int i = 0; i < segments.size() - 1 && total > maxSize; i++) {
+            File file = segmentFile(segments.get(i));
+            long length = file.length();
+            if (!file.delete()) break;
+            total -= length;
+        }
+    }
+
+    private void openSegment(long firstSequence) throws IOException {
+        out = new FileOutputStream(segmentFile(firstSequence), false);
+        segmentSize = 0;
+    }
+
+    private void closeSegment() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close change log failed: " + e);
+        }
+        out = null;
+    }
+
+    private File segmentFile(long firstSequence) {
+        return new File(dir, filePrefix + firstSequence + fileSuffix);
+    }
+
+    // 所有分段的第一个序号，从小到大排列
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return segments;
+        for (String name : names) {
+            if (!name.startsWith(filePrefix) || !name.endsWith(fileSuffix)) continue;
+            try {
+                segments.add(Long.parseLong(name.substring(filePrefix.length(), name.length() - fileSuffix.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private List<ChangeEvent> readFiles(long afterSequence, int max) {
+        List<Long> segments;
+        synchronized (this) {
+            segments = listSegments();
+        }
+        List<ChangeEvent> events = new ArrayList<>();
+        if (segments.isEmpty()) return events;
+        // 从包含afterSequence之后第一个变更的分段开始读取
+        int start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i) <= afterSequence + 1) start = i;
+        }
+        if (segments.get(0) > afterSequence + 1) {
+            Log.w(TAG, "changes after " + afterSequence + " have been dropped, continue from " + segments.get(0));
+        }
+        for (int i = start; i < segments.size() && events.size() < max; i++) {
+            try {
+                readSegment(segmentFile(segments.get(i)), event -> {
+                    if (event.getSequence() > afterSequence) events.add(event);
+                    return events.size() < max;
+                });
+            } catch (IOException e) {
+                // 分段在读取之前被删除了
+                Log.w(TAG, "read change log failed: " + e);
+            }
+        }
+        return events;
+    }
+
+    private interface RecordVisitor {
+        /**
+         * @return 是否继续读取
+         */
+        boolean visit(ChangeEvent event);
+    }
+
+    /**
+     * 按顺序读取分段中完整并且校验通过的记录。
+     *
+     * @return 有效记录的总长度
+     */
+    private static long readSegment(File file, RecordVisitor visitor) throws IOException {
+        long valid = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                int checksum;
+                byte[] data;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0) break;
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data, 0, data.length);
+                if ((int) crc.getValue() != checksum) break;
+                valid += recordHeaderSize + length;
+                if (!visitor.visit(readEvent(data))) break;
+            }
+        }
+        return valid;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream buffer, ChangeEvent event) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(data);
+        out.writeLong(event.getSequence());
+        out.writeLong(event.getTimestamp());
+        out.writeByte(event.getType().ordinal());
+        out.writeUTF(event.getTable());
+        out.writeBoolean(event.getKey() != null);
+        if (event.getKey() != null) out.writeUTF(event.getKey());
+        if (event.getRow() == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] row = event.getRow().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(row.length);
+            out.write(row);
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(data.toByteArray(), 0, data.size());
+        DataOutputStream header = new DataOutputStream(buffer);
+        header.writeInt(data.size());
+        header.writeInt((int) crc.getValue());
+        data.writeTo(buffer);
+    }
+
+    private static ChangeEvent readEvent(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        ChangeType type = ChangeType.values()[in.readByte()];
+        String table = in.readUTF();
+        String key = in.readBoolean() ? in.readUTF() : null;
+        int length = in.readInt();
+        String row = null;
+        if (length >= 0) {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            row = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new ChangeEvent(sequence, timestamp, type, table, key, row);
+    }
+}
@@ -0,0 +1,79 @@
+package top.totoro.sql.clap.change;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.util.List;
+
+/**
+ * 对变更日志的一个订阅，在单独的线程中按顺序把变更交给{@link ChangeListener}，
+ * 先读取订阅位置之后已经记录的变更，再等待新的变更。
+ * 调用者可以保存{@link #getPosition()}，下次从这个位置继续订阅。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class ChangeSubscription implements AutoCloseable {
+    private static final String TAG = "ChangeSubscription";
+    // 每次读取的最大变更数量
+    private static final int batchSize = 256;
+
+    private final ChangeLog log;
+    private final ChangeListener listener;
+    private final Thread thread;
+    private volatile long position;
+    private volatile boolean closed = false;
+
+    ChangeSubscription(ChangeLog log, long position, ChangeListener listener) {
+        this.log = log;
+        this.position = position;
+        this.listener = listener;
+        thread = new Thread(this::deliver, "clap-change-" + position);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void deliver() {
+        while (!closed) {
+            try {
+                if (!log.awaitAfter(position, this)) continue;
+                List<ChangeEvent> events = log.read(position, batchSize);
+                // 变更日志读取失败时稍后重试
+                if (events.isEmpty()) Thread.sleep(100);
+                for (ChangeEvent event : events) {
+                    if (closed) return;
+                    try {
+                        listener.onChange(event);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "change listener " + listener + " failed at " + event + ": " + e);
+                    }
+                    position = event.getSequence();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 最后一个已经处理完成的变更的序号
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 停止订阅，正在处理的变更会处理完。
+     */
+    @Override
+    public void close() {
+        closed = true;
+        log.unsubscribe(this);
+    }
+}
@@ -0,0 +1,14 @@
+package top.totoro.sql.clap.change;
+
+/**
+ * 数据变更的类型。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public enum ChangeType {
+    /* 数据行的变更 */
+    INSERT, UPDATE, DELETE,
+    // 删除了整个表，不再逐行记录表中被删除的数据行
+    DROP,
+}
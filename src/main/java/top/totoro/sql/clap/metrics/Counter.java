@@ -0,0 +1,30 @@
+package top.totoro.sql.clap.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 只增加的计数，并发增加时不需要加锁。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
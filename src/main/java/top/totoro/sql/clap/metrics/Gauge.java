@@ -0,0 +1,14 @@
+package top.totoro.sql.clap.metrics;
+
+/**
+ * 读取时才计算的当前值，例如队列深度和文件大小。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public interface Gauge {
+    /**
+     * @return 当前值
+     */
+    long value();
+}
@@ -0,0 +1,130 @@
+package top.totoro.sql.clap.metrics;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 把指标注册成JMX的MBean，可以通过JConsole、VisualVM等工具查看。
+ * 每个注册表对应一个MBean，名称为"top.totoro.sql.clap:type=Metrics,name=注册表名称"，
+ * 同名的注册表会加上instance区分，每个指标值是MBean的一个只读属性，读取时才计算。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class JmxExporter implements MetricsExporter {
+    private static final String TAG = "JmxExporter";
+    public static final String DOMAIN = "top.totoro.sql.clap";
+    private static volatile JmxExporter instance;
+
+    private final Map<MetricsRegistry, ObjectName> names = new ConcurrentHashMap<>();
+
+    /**
+     * @return 所有数据库服务共享的默认导出方式，注册到平台的MBeanServer
+     */
+    public static JmxExporter getInstance() {
+        if (instance == null) {
+            synchronized (JmxExporter.class) {
+                if (instance == null) instance = new JmxExporter();
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public void export(MetricsRegistry registry) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = DOMAIN + ":type=Metrics,name=" + ObjectName.quote(registry.getName());
+        try {
+            for (int i = 1; ; i++) {
+                ObjectName name = new ObjectName(i == 1 ? prefix : prefix + ",instance=" + i);
+                try {
+                    server.registerMBean(new MetricsMBean(registry), name);
+                    names.put(registry, name);
+                    return;
+                } catch (InstanceAlreadyExistsException e) {
+                    // 同名的数据库服务，使用下一个instance
+                }
+            }
+        } catch (JMException e) {
+            Log.w(TAG, "export metrics " + registry.getName() + " failed: " + e);
+        }
+    }
+
+    @Override
+    public void unexport(MetricsRegistry registry) {
+        ObjectName name = names.remove(registry);
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            Log.w(TAG, "unexport metrics " + registry.getName() + " failed: " + e);
+        }
+    }
+
+    /**
+     * @return 注册表导出的MBean名称，没有导出时为null
+     */
+    public ObjectName getObjectName(MetricsRegistry registry) {
+        return names.get(registry);
+    }
+
+    // 属性是注册表当前的所有指标值，指标会随着表的创建和删除变化，所以使用DynamicMBean
+    private static final class MetricsMBean implements DynamicMBean {
+        private final MetricsRegistry registry;
+
+        MetricsMBean(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = registry.snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Number> values = registry.snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Number> values = registry.snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> entry : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(getClass().getName(), "ClapSQL metrics of " + registry.getName(),
+                    attributes, null, null, null);
+        }
+    }
+}
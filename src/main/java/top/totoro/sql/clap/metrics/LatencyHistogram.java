@@ -0,0 +1,112 @@
+package top.totoro.sql.clap.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟的直方图，记录纳秒级的耗时并计算百分位数。
+ * 和HdrHistogram一样按对数分组：每个2的幂区间再平均分成32个子区间，
+ * 所以任何大小的值相对误差都不超过1/32，占用的内存是固定的，记录一个值只需要几次原子操作，不需要加锁。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class LatencyHistogram {
+    private static final int subBucketBits = 5;
+    private static final int subBucketCount = 1 << subBucketBits;
+    // 最大记录约73分钟（ns），更大的值按最大值记录
+    private static final long maxValue = (1L << 42) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(maxValue) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * 记录一次耗时。
+     *
+     * @param nanos 耗时（ns），小于0时按0记录
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), maxValue);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * 记录从startNanos到现在的耗时。
+     *
+     * @param startNanos 开始时的{@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return 记录的次数
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return 平均耗时（ns）
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @return 最大耗时（ns）
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * 计算百分位数，返回值所在子区间的上界，不会超过记录过的最大值。
+     *
+     * @param percentile 百分位，例如99.9
+     * @return 不小于percentile%的记录的最小耗时（ns），没有记录时为0
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) return Math.min(lowerBound(i + 1) - 1, getMax());
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < subBucketCount) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return shift * subBucketCount + (int) (value >>> shift);
+    }
+
+    // 第index个子区间的最小值
+    static long lowerBound(int index) {
+        if (index < 2 * subBucketCount) return index;
+        int shift = index / subBucketCount - 1;
+        return (long) (index - shift * subBucketCount) << shift;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() +
+                ", mean=" + (long) getMean() +
+                "ns, p50=" + getPercentile(50) +
+                "ns, p99=" + getPercentile(99) +
+                "ns, max=" + getMax() + "ns}";
+    }
+}
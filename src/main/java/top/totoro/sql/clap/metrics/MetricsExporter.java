@@ -0,0 +1,20 @@
+package top.totoro.sql.clap.metrics;
+
+/**
+ * 把{@link MetricsRegistry}中的指标导出到监控系统，通过{@link MetricsRegistry#setExporter}设置。
+ * 导出时只需要保存注册表，监控系统读取时再通过{@link MetricsRegistry#snapshot()}获取当前值。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public interface MetricsExporter {
+    /**
+     * 开始导出注册表中的指标。
+     */
+    void export(MetricsRegistry registry);
+
+    /**
+     * 停止导出注册表中的指标。
+     */
+    void unexport(MetricsRegistry registry);
+}
@@ -0,0 +1,150 @@
+package top.totoro.sql.clap.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 一个数据库服务的所有指标，按名称保存计数{@link Counter}、延迟直方图{@link LatencyHistogram}和当前值{@link Gauge}。
+ * 指标名用"."分隔，例如"sql.selectByKey"、"table.user.bytesRead"、"cache.hits"。
+ * 获取指标时不存在则创建，重复获取得到的是同一个指标，调用者可以保存下来避免每次查找。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class MetricsRegistry {
+    // 导出直方图时计算的百分位
+    private static final double[] percentiles = {50, 90, 99, 99.9};
+    private static final String[] percentileNames = {"p50", "p90", "p99", "p999"};
+
+    private final String name;
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+    private MetricsExporter exporter;
+
+    /**
+     * @param name 注册表的名称，导出时用于区分不同的数据库服务
+     */
+    public MetricsRegistry(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 名为name的计数，不存在则创建
+     * @throws IllegalArgumentException 已经存在同名的其它类型的指标
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class, new Counter());
+    }
+
+    /**
+     * @return 名为name的延迟直方图，不存在则创建
+     * @throws IllegalArgumentException 已经存在同名的其它类型的指标
+     */
+    public LatencyHistogram histogram(String name) {
+        return get(name, LatencyHistogram.class, new LatencyHistogram());
+    }
+
+    /**
+     * 注册一个已有的延迟直方图，替换同名的指标。
+     */
+    public void register(String name, LatencyHistogram histogram) {
+        metrics.put(name, histogram);
+    }
+
+    /**
+     * 注册一个当前值，替换同名的指标。
+     */
+    public void gauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    private <T> T get(String name, Class<T> type, T created) {
+        Object metric = metrics.computeIfAbsent(name, n -> created);
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException("metric " + name + " is " + metric.getClass().getSimpleName() + ", not " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * 移除名为name的指标。
+     */
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * 移除名称以prefix开头的所有指标，例如删除表时移除这个表的所有指标。
+     */
+    public void removeAll(String prefix) {
+        metrics.keySet().removeIf(n -> n.startsWith(prefix));
+    }
+
+    /**
+     * @return 按名称排序的所有指标
+     */
+    public SortedMap<String, Object> getMetrics() {
+        return new TreeMap<>(metrics);
+    }
+
+    /**
+     * 获取所有指标的当前值，直方图展开成count、mean、p50、p90、p99、p999和max，耗时的单位是微秒。
+     *
+     * @return 按名称排序的指标值
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                values.put(name, ((Gauge) metric).value());
+            } else if (metric instanceof LatencyHistogram) {
+                LatencyHistogram histogram = (LatencyHistogram) metric;
+                values.put(name + ".count", histogram.getCount());
+                values.put(name + ".mean", histogram.getMean() / 1000);
+                for (int i = 0; i < percentiles.length; i++) {
+                    values.put(name + "." + percentileNames[i], histogram.getPercentile(percentiles[i]) / 1000d);
+                }
+                values.put(name + ".max", histogram.getMax() / 1000d);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 设置导出指标的方式，之前的导出会被停止。
+     *
+     * @param exporter 导出方式，为null时不导出
+     */
+    public synchronized void setExporter(MetricsExporter exporter) {
+        if (this.exporter == exporter) return;
+        if (this.exporter != null) this.exporter.unexport(this);
+        this.exporter = exporter;
+        if (exporter != null) exporter.export(this);
+    }
+
+    public synchronized MetricsExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * 停止导出指标，数据库服务关闭时调用。
+     */
+    public void close() {
+        setExporter(null);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsRegistry{name=" + name + ", metrics=" + metrics.size() + "}";
+    }
+}
@@ -0,0 +1,189 @@
+package top.totoro.sql.clap.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次数据库操作的追踪记录，按阶段（例如list、read、decode、filter、cache、lock、write）汇总耗时。
+ * 阶段的耗时是独占的：一个阶段中嵌套执行的其它阶段的耗时不计入这个阶段，
+ * 所以所有阶段的耗时加上{@link #getOtherNanos()}就是操作的总耗时。
+ * 操作执行的过程中只会被执行操作的线程修改，结束后交给{@link TraceListener}时不会再变化。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public final class OperationTrace {
+
+    /**
+     * 一个阶段的汇总：执行的次数、总耗时和单次的最大耗时。
+     */
+    public static final class Span {
+        private final String name;
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+
+        private Span(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + count + "x " + millis(totalNanos) + "ms (max " + millis(maxNanos) + "ms)";
+        }
+    }
+
+    final Tracer tracer;
+    private final String operation;
+    private final String target;
+    private final String thread;
+    private final long startTime;
+    private final long startNanos;
+    private long totalNanos = -1;
+    // 阶段名 -> 阶段的汇总，按第一次出现的顺序
+    private final Map<String, Span> spans = new LinkedHashMap<>();
+    // 嵌套的操作，最外层的操作结束时追踪才结束
+    int depth = 1;
+    // 正在执行的阶段中，已经执行完的子阶段的耗时，每一层阶段开始时保存上一层的值
+    private long childNanos;
+    private long[] savedChildNanos = new long[8];
+    private int spanDepth;
+
+    OperationTrace(Tracer tracer, String operation, String target) {
+        this.tracer = tracer;
+        this.operation = operation;
+        this.target = target;
+        this.thread = Thread.currentThread().getName();
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    void enterSpan() {
+        if (spanDepth == savedChildNanos.length) savedChildNanos = Arrays.copyOf(savedChildNanos, spanDepth * 2);
+        savedChildNanos[spanDepth++] = childNanos;
+        childNanos = 0;
+    }
+
+    void exitSpan(String name, long elapsedNanos) {
+        if (spanDepth == 0) return;
+        add(name, elapsedNanos - childNanos);
+        childNanos = savedChildNanos[--spanDepth] + elapsedNanos;
+    }
+
+    // 在当前阶段中记录一个单独计时的子阶段
+    void record(String name, long nanos) {
+        add(name, nanos);
+        childNanos += nanos;
+    }
+
+    private void add(String name, long nanos) {
+        Span span = spans.get(name);
+        if (span == null) {
+            span = new Span(name);
+            spans.put(name, span);
+        }
+        span.count++;
+        span.totalNanos += nanos;
+        if (nanos > span.maxNanos) span.maxNanos = nanos;
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return 操作的名称，例如"selectByCondition"
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return 操作的表名，没有时为null
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return 执行操作的线程名
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * @return 操作开始的时间（ms）
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return 操作的总耗时（ns），操作还没有结束时为-1
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return 按第一次出现的顺序排列的所有阶段
+     */
+    public List<Span> getSpans() {
+        return Collections.unmodifiableList(new ArrayList<>(spans.values()));
+    }
+
+    /**
+     * @return 名为name的阶段，没有执行过时为null
+     */
+    public Span getSpan(String name) {
+        return spans.get(name);
+    }
+
+    /**
+     * @return 不属于任何阶段的耗时（ns）
+     */
+    public long getOtherNanos() {
+        long other = totalNanos;
+        for (Span span : spans.values()) {
+            other -= span.totalNanos;
+        }
+        return Math.max(other, 0);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(operation);
+        if (target != null) builder.append('(').append(target).append(')');
+        builder.append(' ').append(millis(totalNanos)).append("ms on ").append(thread).append(':');
+        for (Span span : spans.values()) {
+            builder.append("\n  ").append(span);
+        }
+        builder.append("\n  other ").append(millis(getOtherNanos())).append("ms");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package top.totoro.sql.clap.metrics;
+
+/**
+ * 接收开启了追踪的数据库操作的追踪记录，在执行操作的线程中调用，不能执行耗时的逻辑。
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public interface TraceListener {
+
+    /**
+     * 一次操作结束。
+     *
+     * @param trace 操作的追踪记录
+     */
+    void onTrace(OperationTrace trace);
+}
@@ -0,0 +1,163 @@
+package top.totoro.sql.clap.metrics;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 数据库操作的追踪，默认关闭。
+ * 开启后每个操作在执行的线程中记录一个{@link OperationTrace}，按阶段汇总耗时，
+ * 操作结束时交给所有的{@link TraceListener}，耗时超过慢操作阈值时输出每个阶段的耗时。
+ * 关闭时开始和结束操作只需要读取一个volatile变量和一次ThreadLocal，记录阶段只需要读取一个volatile变量。
+ * <pre>
+ * long start = Tracer.spanStart();
+ * ... // 读取子表文件
+ * Tracer.spanEnd("read", start);
+ * </pre>
+ *
+ * @author dragon
+ * @version 1.0
+ */
+public class Tracer {
+    private static final String TAG = "Tracer";
+    // 没有在追踪时spanStart的返回值
+    private static final long NOT_TRACING = Long.MIN_VALUE;
+    // 当前线程正在执行的操作的追踪记录
+    private static final ThreadLocal<OperationTrace> current = new ThreadLocal<>();
+    // 开启了追踪的Tracer的数量，为0时记录阶段不需要查找ThreadLocal
+    private static final AtomicInteger enabledCount = new AtomicInteger();
+
+    private volatile boolean enabled = false;
+    // 慢操作的阈值（ns），不大于0时不输出慢操作
+    private volatile long slowThresholdNanos = 1000 * 1000000L;
+    private final List<TraceListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * 开启或关闭追踪，已经开始的操作不受影响。
+     */
+    public synchronized void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
+        this.enabled = enabled;
+        if (enabled) {
+            enabledCount.incrementAndGet();
+        } else {
+            enabledCount.decrementAndGet();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 设置慢操作的阈值，开启追踪时总耗时不小于阈值的操作会输出每个阶段的耗时，默认是1000ms。
+     *
+     * @param millis 阈值（ms），不大于0时不输出
+     */
+    public void setSlowThreshold(long millis) {
+        slowThresholdNanos = millis * 1000000L;
+    }
+
+    /**
+     * @return 慢操作的阈值（ms）
+     */
+    public long getSlowThreshold() {
+        return slowThresholdNanos / 1000000L;
+    }
+
+    public void addListener(TraceListener listener) {
+        assert listener != null;
+        listeners.add(listener);
+    }
+
+    public void removeListener(TraceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 开始一个操作，需要和{@link #end()}成对调用。
+     * 当前线程已经在执行其它操作时，这个操作的阶段记录到外层的操作中。
+     *
+     * @param operation 操作的名称
+     * @param target    操作的表名，可以为null
+     */
+    public void begin(String operation, String target) {
+        if (!enabled) return;
+        OperationTrace trace = current.get();
+        if (trace != null) {
+            trace.depth++;
+            return;
+        }
+        current.set(new OperationTrace(this, operation, target));
+    }
+
+    /**
+     * 结束当前线程的操作，最外层的操作结束时通知监听者并判断是否是慢操作。
+     */
+    public void end() {
+        OperationTrace trace = current.get();
+        if (trace == null || --trace.depth > 0) return;
+        current.remove();
+        trace.finish();
+        trace.tracer.complete(trace);
+    }
+
+    private void complete(OperationTrace trace) {
+        for (TraceListener listener : listeners) {
+            try {
+                listener.onTrace(trace);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "trace listener " + listener + " failed: " + e);
+            }
+        }
+        long threshold = slowThresholdNanos;
+        if (threshold > 0 && trace.getTotalNanos() >= threshold) {
+            Log.w(TAG, () -> "slow operation " + trace);
+        }
+    }
+
+    /**
+     * @return 当前线程是否在追踪一个操作
+     */
+    public static boolean isTracing() {
+        return enabledCount.get() > 0 && current.get() != null;
+    }
+
+    /**
+     * 开始一个阶段，需要和{@link #spanEnd(String, long)}成对调用。
+     *
+     * @return 阶段开始的时间，交给spanEnd
+     */
+    public static long spanStart() {
+        if (enabledCount.get() == 0) return NOT_TRACING;
+        OperationTrace trace = current.get();
+        if (trace == null) return NOT_TRACING;
+        trace.enterSpan();
+        return System.nanoTime();
+    }
+
+    /**
+     * 结束一个阶段，记录到当前线程的操作中。
+     *
+     * @param name  阶段的名称
+     * @param start {@link #spanStart()}的返回值
+     */
+    public static void spanEnd(String name, long start) {
+        if (start == NOT_TRACING) return;
+        OperationTrace trace = current.get();
+        if (trace != null) trace.exitSpan(name, System.nanoTime() - start);
+    }
+
+    /**
+     * 在当前阶段中记录一个单独计时的子阶段，这段耗时不再计入当前阶段。
+     *
+     * @param name  阶段的名称
+     * @param nanos 耗时（ns）
+     */
+    public static void record(String name, long nanos) {
+        OperationTrace trace = current.get();
+        if (trace != null) trace.record(name, nanos);
+    }
+}
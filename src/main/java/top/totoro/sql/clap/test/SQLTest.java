@@ -1,11 +1,13 @@
 package top.totoro.sql.clap.test;
 
 import com.google.gson.Gson;
+import top.totoro.sql.clap.AccessMode;
 import top.totoro.sql.clap.SQLBatch;
 import top.totoro.sql.clap.SQLBean;
 import top.totoro.sql.clap.SQLService;
 import top.totoro.sql.clap.uitl.Log;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -98,11 +100,31 @@ public class SQLTest {
 
     }
 
+    /**
+     * 检查测试的结果，不符合时抛出异常结束测试。
+     *
+     * @param ok      结果是否符合预期
+     * @param message 检查的内容
+     */
+    static void check(boolean ok, String message) {
+        if (!ok) throw new IllegalStateException("check failed: " + message);
+        Log.i(TAG, "ok " + message);
+    }
+
     static class Service extends SQLService<TestBean> {
         public Service(String dbName) {
             super(dbName);
         }
 
+        public Service(String dbName, AccessMode mode) {
+            super(dbName, mode);
+        }
+
+        // 主键所在的子表文件
+        File shardOf(String table, String key) {
+            return getSubTableFile(table, getKeyId(key));
+        }
+
         private static final Gson GSON = new Gson();
 
         @Override
@@ -0,0 +1,117 @@
+package top.totoro.sql.clap.test;
+
+import top.totoro.sql.clap.AccessMode;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 多进程共享数据库目录的测试：写入进程提交多个子表的修改期间，另一个进程中只读的数据库服务不会读到只生效了一部分的提交，
+ * 并且能读到最后一次提交的内容。
+ */
+public class SharedAccessTest {
+    private static final String TAG = "SharedAccessTest";
+    private static final String table = "shared";
+    private static final int rows = 3000;
+    private static final int rounds = 30;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals("read")) {
+            System.exit(read(args[1]) ? 0 : 1);
+            return;
+        }
+        String dbName = "shared" + System.nanoTime();
+        SQLTest.Service writer = new SQLTest.Service(dbName, AccessMode.READ_WRITE);
+        writer.createTable(table);
+        for (int i = 0; i < rows; i++) {
+            writer.insert(table, new SQLTest.TestBean(i + "", "0"));
+        }
+        SQLTest.check(writer.getAccessMode() == AccessMode.READ_WRITE, "writer holds the database lock");
+
+        /* 在另一个进程中只读 */
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedAccessTest.class.getName(), "read", dbName).redirectErrorStream(true).start();
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicReference<String> result = new AtomicReference<>();
+        Thread output = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals("ready")) ready.countDown();
+                    if (line.startsWith("reads ")) result.set(line);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "read reader output failed: " + e);
+            } finally {
+                ready.countDown();
+            }
+        });
+        output.start();
+        ready.await();
+
+        // 每一轮把所有子表的数据行修改为同一个值，作为一个整体写入
+        for (int round = 1; round <= rounds; round++) {
+            String name = round + "";
+            if (!writer.updateByCondition(table, bean -> true, origin -> {
+                origin.setName(name);
+                return origin;
+            })) {
+                throw new IllegalStateException("update round " + round + " failed");
+            }
+        }
+        int exit = process.waitFor();
+        output.join();
+        Log.i(TAG, "reader: " + result.get());
+        SQLTest.check(exit == 0, "reader saw only whole commits and the last round");
+        writer.dropTable(table);
+        writer.close();
+        Log.i(TAG, "shared access test passed");
+    }
+
+    // 只读进程一直读取到最后一轮的内容出现，返回是否没有读到一部分的提交
+    private static boolean read(String dbName) {
+        SQLTest.Service reader = new SQLTest.Service(dbName, AccessMode.READ_ONLY);
+        reader.createTable(table);
+        // 写入都失败，也不能把被拒绝的写入放进自己的缓存
+        boolean readOnly = reader.getAccessMode() == AccessMode.READ_ONLY
+                && !reader.insert(table, new SQLTest.TestBean("reader"))
+                && !reader.updateByKey(table, new SQLTest.TestBean("3", "phantom"))
+                && reader.selectByKey(table, "3").getName().equals("0")
+                && !reader.deleteByKey(table, "3")
+                && reader.selectByKey(table, "3") != null;
+        System.out.println("ready");
+        System.out.flush();
+        int reads = 0;
+        int torn = 0;
+        String last = null;
+        long deadline = System.currentTimeMillis() + 120_000;
+        while (System.currentTimeMillis() < deadline) {
+            Set<String> names = new HashSet<>();
+            int size = 0;
+            for (SQLTest.TestBean bean : reader.selectAll(table)) {
+                names.add(bean.getName());
+                size++;
+            }
+            reads++;
+            if (size != rows || names.size() != 1) {
+                torn++;
+                continue;
+            }
+            last = names.iterator().next();
+            if (last.equals(rounds + "")) break;
+        }
+        System.out.println("reads " + reads + " torn " + torn + " last " + last + " readOnly " + readOnly);
+        System.out.flush();
+        reader.close();
+        return readOnly && torn == 0 && (rounds + "").equals(last);
+    }
+}
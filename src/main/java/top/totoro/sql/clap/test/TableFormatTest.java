@@ -0,0 +1,148 @@
+package top.totoro.sql.clap.test;
+
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 子表文件格式的测试：损坏的文件末尾、损坏的数据行以及旧版本格式的转换。
+ */
+public class TableFormatTest {
+    private static final String TAG = "TableFormatTest";
+    private static final int HEADER_SIZE = 32;
+
+    public static void main(String[] args) throws IOException {
+        String dbName = "format" + System.nanoTime();
+        String table = "test";
+        SQLTest.Service service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        for (int i = 0; i < 200; i++) {
+            service.insert(table, new SQLTest.TestBean(i + "", "name ~end\n" + i));
+        }
+        File shard = service.shardOf(table, "5");
+        int shardRows = countShard(service, table, shard);
+        SQLTest.check(service.selectByKey(table, "5").getName().equals("name ~end\n5"), "row content with row end and newline");
+        service.close();
+
+        /* 断电后有效长度之内全是0的内容 */
+        byte[] content = Files.readAllBytes(shard.toPath());
+        try (RandomAccessFile file = new RandomAccessFile(shard, "rw")) {
+            file.seek(content.length);
+            file.write(new byte[64]);
+            file.seek(8);
+            file.writeLong(content.length + 64);
+        }
+        service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        SQLTest.check(countShard(service, table, shard) == shardRows, "zero-filled tail is ignored");
+        SQLTest.check(service.selectAll(table).size() == 200, "other rows still readable");
+
+        /* 没有完成的追加留下的内容 */
+        service.close();
+        Files.write(shard.toPath(), content);
+        try (RandomAccessFile file = new RandomAccessFile(shard, "rw")) {
+            file.seek(content.length);
+            file.write(new byte[]{0, 0, 0, 50, 1, 2, 3});
+        }
+        service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        SQLTest.check(countShard(service, table, shard) == shardRows, "garbage after data length is ignored");
+        String key = keyInShard(service, table, shard, 1000);
+        SQLTest.check(service.insert(table, new SQLTest.TestBean(key)), "append over torn tail");
+        SQLTest.check(countShard(service, table, shard) == shardRows + 1, "appended row readable");
+        service.close();
+
+        /* 损坏的数据行只丢失自己 */
+        byte[] corrupted = Files.readAllBytes(shard.toPath());
+        corrupted[HEADER_SIZE + 9] ^= 1;
+        Files.write(shard.toPath(), corrupted);
+        service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        SQLTest.check(countShard(service, table, shard) == shardRows, "broken row is skipped");
+        service.close();
+
+        /* 旧版本的文本格式和版本2的格式打开表时转换成当前版本 */
+        File tableDir = shard.getParentFile();
+        File textTable = new File(tableDir.getParentFile(), "text");
+        File binaryTable = new File(tableDir.getParentFile(), "binary");
+        textTable.mkdirs();
+        binaryTable.mkdirs();
+        List<String> rows = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            String row = service.encoderRow(new SQLTest.TestBean("k" + i, "中文" + i));
+            rows.add(row);
+            text.append(row).append(" ~end\r\n");
+        }
+        Files.write(new File(textTable, "0.tab").toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(binaryTable, "0.tab").toPath(), versionTwo(rows));
+        for (int round = 0; round < 2; round++) {
+            service = new SQLTest.Service(dbName);
+            for (String name : new String[]{"text", "binary"}) {
+                service.createTable(name);
+                byte[] upgraded = Files.readAllBytes(new File(tableDir.getParentFile(), name + File.separator + "0.tab").toPath());
+                SQLTest.check(new String(upgraded, 0, 4, StandardCharsets.US_ASCII).equals("CLAP")
+                        && ByteBuffer.wrap(upgraded).getInt(4) == 3, name + " table upgraded, round " + round);
+                SQLTest.check(service.selectAll(name).size() == (round == 1 && name.equals("binary") ? 11 : 10) && nameOf(service, name, "k3").equals("中文3"),
+                        name + " rows kept, round " + round);
+            }
+            if (round == 0) SQLTest.check(service.insert("binary", new SQLTest.TestBean("k10")), "append after upgrade");
+            service.close();
+        }
+        service = new SQLTest.Service(dbName);
+        SQLTest.check(service.selectAll("binary").size() == 11, "appended row kept after reopen");
+        service.dropTable(table);
+        service.dropTable("text");
+        service.dropTable("binary");
+        service.close();
+        Log.i(TAG, "table format test passed");
+    }
+
+    private static int countShard(SQLTest.Service service, String table, File shard) {
+        int count = 0;
+        for (SQLTest.TestBean bean : service.selectAll(table)) {
+            if (service.shardOf(table, bean.getKey()).equals(shard)) count++;
+        }
+        return count;
+    }
+
+    // 手动写入的子表不一定是主键对应的子表，按主键遍历查找
+    private static String nameOf(SQLTest.Service service, String table, String key) {
+        for (SQLTest.TestBean bean : service.selectAll(table)) {
+            if (bean.getKey().equals(key)) return bean.getName();
+        }
+        return null;
+    }
+
+    // 找一个不存在并且在指定子表中的主键
+    private static String keyInShard(SQLTest.Service service, String table, File shard, int from) {
+        for (int i = from; ; i++) {
+            if (service.shardOf(table, i + "").equals(shard)) return i + "";
+        }
+    }
+
+    // 版本2的子表文件：数据行的校验值不包括length
+    private static byte[] versionTwo(List<String> rows) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        buffer.put(new byte[]{'C', 'L', 'A', 'P'}).putInt(2).putLong(0).putInt(rows.size()).putLong(0).putInt(0);
+        CRC32 crc = new CRC32();
+        for (String row : rows) {
+            byte[] data = row.getBytes(StandardCharsets.UTF_8);
+            crc.reset();
+            crc.update(data, 0, data.length);
+            buffer.putInt(data.length).putInt((int) crc.getValue()).put(data);
+        }
+        buffer.putLong(8, buffer.position());
+        byte[] content = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, content, 0, content.length);
+        return content;
+    }
+}
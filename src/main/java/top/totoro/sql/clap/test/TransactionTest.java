@@ -0,0 +1,109 @@
+package top.totoro.sql.clap.test;
+
+import top.totoro.sql.clap.SQLTransaction;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 事务和快照读取的测试：并发提交期间事务读到的内容不变，开始于提交过程中的事务也只读到完整的版本。
+ */
+public class TransactionTest {
+    private static final String TAG = "TransactionTest";
+    private static final int rows = 300;
+    private static final int rounds = 40;
+
+    public static void main(String[] args) throws InterruptedException {
+        String dbName = "transaction" + System.nanoTime();
+        String table = "account";
+        SQLTest.Service service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        service.createTable("audit");
+        for (int i = 0; i < rows; i++) {
+            service.insert(table, new SQLTest.TestBean(i + "", "0"));
+        }
+
+        /* 并发提交期间事务读到的内容不变 */
+        SQLTransaction<SQLTest.TestBean> stable = service.beginTransaction();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // 每一轮把所有子表的数据行修改为同一个值，作为一个整体写入
+        Thread writer = new Thread(() -> {
+            try {
+                for (int round = 1; round <= rounds; round++) {
+                    String name = round + "";
+                    if (!service.updateByCondition(table, bean -> true, origin -> {
+                        origin.setName(name);
+                        return origin;
+                    })) {
+                        throw new IllegalStateException("update round " + round + " failed");
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        writer.start();
+        int snapshots = 0;
+        while (writer.isAlive()) {
+            SQLTest.check(namesOf(stable.selectAll(table)).equals(single("0")), "transaction keeps its snapshot");
+            /* 在提交过程中开始的事务只读到某一轮完整的修改 */
+            SQLTransaction<SQLTest.TestBean> transaction = service.beginTransaction();
+            List<SQLTest.TestBean> all = transaction.selectAll(table);
+            Set<String> names = namesOf(all);
+            SQLTest.check(all.size() == rows && names.size() == 1, "snapshot " + snapshots + " sees one round " + names);
+            String name = names.iterator().next();
+            SQLTest.check(transaction.selectByKey(table, "7").getName().equals(name), "snapshot " + snapshots + " key read");
+            transaction.rollback();
+            snapshots++;
+        }
+        writer.join();
+        SQLTest.check(failure.get() == null, "concurrent commits succeeded " + failure.get());
+        SQLTest.check(namesOf(service.selectAll(table)).equals(single(rounds + "")), "last round visible after commits");
+
+        /* 事务修改了的子表被其它写入修改过时提交失败 */
+        SQLTest.check(stable.updateByKey(table, new SQLTest.TestBean("7", "stale")), "write in old transaction");
+        SQLTest.check(!stable.commit(), "commit conflicts with concurrent writes");
+        SQLTest.check(service.selectByKey(table, "7").getName().equals(rounds + ""), "conflicting commit not applied");
+
+        /* 多个表的修改作为一个整体提交 */
+        SQLTransaction<SQLTest.TestBean> transaction = service.beginTransaction();
+        transaction.updateByKey(table, new SQLTest.TestBean("7", "tx"));
+        transaction.deleteByKey(table, "8");
+        transaction.insert("audit", new SQLTest.TestBean("a1", "7 -> tx"));
+        SQLTest.check(transaction.selectByKey(table, "7").getName().equals("tx"), "transaction reads its own write");
+        SQLTest.check(service.selectByKey(table, "7").getName().equals(rounds + ""), "uncommitted write invisible");
+        SQLTest.check(transaction.commit(), "commit without conflict");
+        SQLTest.check(service.selectByKey(table, "7").getName().equals("tx")
+                && service.selectByKey(table, "8") == null
+                && service.selectAll("audit").size() == 1, "committed writes visible in all tables");
+        service.close();
+
+        SQLTest.Service reopened = new SQLTest.Service(dbName);
+        reopened.createTable(table);
+        reopened.createTable("audit");
+        SQLTest.check(reopened.selectAll(table).size() == rows - 1
+                && reopened.selectByKey(table, "7").getName().equals("tx")
+                && reopened.selectAll("audit").size() == 1, "committed writes kept after reopen");
+        reopened.dropTable(table);
+        reopened.dropTable("audit");
+        reopened.close();
+        Log.i(TAG, "transaction test passed, " + snapshots + " snapshots during commits");
+    }
+
+    private static Set<String> namesOf(List<SQLTest.TestBean> beans) {
+        Set<String> names = new HashSet<>();
+        for (SQLTest.TestBean bean : beans) {
+            names.add(bean.getName());
+        }
+        return names;
+    }
+
+    private static Set<String> single(String name) {
+        Set<String> names = new HashSet<>();
+        names.add(name);
+        return names;
+    }
+}
@@ -0,0 +1,102 @@
+package top.totoro.sql.clap.test;
+
+import top.totoro.sql.clap.WriteBehindSync;
+import top.totoro.sql.clap.uitl.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 写回模式的测试：写入进程在脏子表写入子表文件之前异常退出，下次启动时根据写回日志恢复，
+ * 日志末尾没有写完的记录被忽略，恢复可以重复执行。
+ */
+public class WriteBehindTest {
+    private static final String TAG = "WriteBehindTest";
+    private static final String table = "counter";
+    private static final int rows = 200;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 2 && args[0].equals("crash")) {
+            crash(args[1]);
+            return;
+        }
+        String dbName = "writebehind" + System.nanoTime();
+        /* 在另一个进程中写入，不关闭数据库服务直接退出 */
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                WriteBehindTest.class.getName(), "crash", dbName).redirectErrorStream(true).start();
+        File dbDir = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("db ")) dbDir = new File(line.substring(3));
+            }
+        }
+        SQLTest.check(process.waitFor() == 0 && dbDir != null, "writer process halted after writes");
+        File log = new File(dbDir, "writebehind.log");
+        SQLTest.check(log.length() > 0, "write-behind log left by the writer");
+
+        /* 日志末尾写了一半的记录 */
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write(new byte[]{1, 2, 3});
+        }
+        for (int round = 0; round < 2; round++) {
+            SQLTest.Service service = new SQLTest.Service(dbName);
+            service.createTable(table);
+            SQLTest.check(service.selectAll(table).size() == rows, "row count after replay, round " + round);
+            SQLTest.check(service.selectByKey(table, "0").getName().equals("last"), "repeated updates replayed, round " + round);
+            boolean updated = true;
+            for (int i = 1; i < 50; i++) {
+                updated &= service.selectByKey(table, i + "").getName().equals("behind");
+            }
+            SQLTest.check(updated, "updates replayed, round " + round);
+            boolean deleted = true;
+            for (int i = 50; i < 60; i++) {
+                deleted &= service.selectByKey(table, i + "") == null;
+            }
+            SQLTest.check(deleted, "deletes replayed, round " + round);
+            boolean inserted = true;
+            for (int i = 0; i < 10; i++) {
+                inserted &= service.selectByKey(table, "n" + i) != null;
+            }
+            SQLTest.check(inserted, "inserts replayed, round " + round);
+            SQLTest.check(service.selectByKey(table, "100").getName().equals("0"), "untouched rows kept, round " + round);
+            if (round == 1) service.dropTable(table);
+            service.close();
+        }
+        Log.i(TAG, "write-behind test passed");
+    }
+
+    // 写回模式下修改之后直接结束进程，脏子表都没有写入子表文件
+    private static void crash(String dbName) {
+        SQLTest.Service service = new SQLTest.Service(dbName);
+        service.createTable(table);
+        for (int i = 0; i < rows; i++) {
+            service.insert(table, new SQLTest.TestBean(i + "", "0"));
+        }
+        service.startWriteBehind(3600_000, 1L << 30, WriteBehindSync.EVERY_WRITE);
+        for (int i = 0; i < 50; i++) {
+            service.updateByKey(table, new SQLTest.TestBean(i + "", "behind"));
+        }
+        for (int i = 0; i < 20; i++) {
+            service.updateByKey(table, new SQLTest.TestBean("0", i + ""));
+        }
+        service.updateByKey(table, new SQLTest.TestBean("0", "last"));
+        for (int i = 50; i < 60; i++) {
+            service.deleteByKey(table, i + "");
+        }
+        for (int i = 0; i < 10; i++) {
+            service.insert(table, new SQLTest.TestBean("n" + i));
+        }
+        System.out.println("db " + service.shardOf(table, "0").getParentFile().getParent());
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+}
@@ -0,0 +1,103 @@
+package top.totoro.sql.clap.uitl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 日志的异步输出，多个线程写入、一个后台线程输出的无锁环形缓冲区。
+ * 写入时用CAS占用一个位置再放入日志，缓冲区满时丢弃日志并计数，不会阻塞写入的线程；
+ * 后台线程按顺序取出日志并格式化，每次把取出的所有日志一起输出，没有日志时短暂休眠。
+ *
+ * @param <T> 日志的类型
+ * @author dragon
+ * @version 1.0
+ */
+final class AsyncAppender<T> {
+    private static final int capacity = 8192;
+    private static final int mask = capacity - 1;
+    // 没有日志时后台线程最多休眠多久（ns），写入日志时会唤醒休眠中的后台线程
+    private static final long idleNanos = 10 * 1000 * 1000;
+
+    private final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(capacity);
+    private final Function<T, String> formatter;
+    // 下一个写入的位置
+    private final AtomicLong tail = new AtomicLong();
+    // 下一个输出的位置，之前的日志都已经输出，只由后台线程修改
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread consumer;
+    private volatile boolean waiting;
+
+    AsyncAppender(Function<T, String> formatter) {
+        this.formatter = formatter;
+        consumer = new Thread(this::run, "clap-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * 放入一条日志。
+     *
+     * @return 是否放入，缓冲区满时返回false
+     */
+    boolean append(T record) {
+        long position;
+        do {
+            position = tail.get();
+            if (position - head >= capacity) {
+                dropped.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+        slots.lazySet((int) (position & mask), record);
+        if (waiting) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    private void run() {
+        StringBuilder lines = new StringBuilder();
+        while (true) {
+            long position = head;
+            while (true) {
+                T record = slots.get((int) (position & mask));
+                // 位置已经被占用但日志还没有放入时，下次再取
+                if (record == null) break;
+                slots.lazySet((int) (position & mask), null);
+                lines.append(formatter.apply(record)).append(System.lineSeparator());
+                position++;
+            }
+            long drops = dropped.sumThenReset();
+            if (drops > 0) {
+                lines.append("WARN Log dropped ").append(drops).append(" messages, buffer is full").append(System.lineSeparator());
+            }
+            if (lines.length() > 0) {
+                System.out.print(lines);
+                System.out.flush();
+                lines.setLength(0);
+                // 输出之后才释放位置，flush返回时日志已经输出
+                head = position;
+                continue;
+            }
+            waiting = true;
+            if (tail.get() == head) LockSupport.parkNanos(this, idleNanos);
+            waiting = false;
+        }
+    }
+
+    /**
+     * 等待已经放入的日志输出完成。
+     *
+     * @param timeout 最多等待的时间（ms）
+     */
+    void flush(long timeout) {
+        long target = tail.get();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (head < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(100 * 1000);
+        }
+    }
+}
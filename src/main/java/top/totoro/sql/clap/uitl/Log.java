@@ -1,55 +1,221 @@
 package top.totoro.sql.clap.uitl;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * 日志打印。
  * 创建时间 2020/6/26 21:40
+ * <p>
+ * 日志按级别过滤，可以为每个tag单独设置级别，默认级别是{@link Level#INFO}，调试日志默认不打印。
+ * 低于所有设置的级别的日志在解析tag之前就直接返回，拼接代价较大的消息使用Supplier的重载，只在需要打印时才生成。
+ * 默认异步打印：调用线程只把日志放入无锁的环形缓冲区，由后台线程格式化时间并输出，缓冲区满时丢弃日志而不是阻塞调用线程。
  *
  * @author dragon
  * @version 1.0
  */
 public class Log {
-    private static boolean debug = true;
-    private static final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss.SSS");
+    /**
+     * 日志级别，设置为{@link #OFF}时不打印任何日志。
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final DateTimeFormatter format
+            = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static volatile Level defaultLevel = Level.INFO;
+    // 单独设置了级别的tag
+    private static final Map<String, Level> tagLevels = new ConcurrentHashMap<>();
+    // 所有设置中最低的级别，低于它的日志一定不会打印
+    private static volatile int minLevel = Level.INFO.ordinal();
+    private static volatile boolean async = true;
+    private static volatile AsyncAppender<Record> appender;
+
+    // 一条日志，格式化推迟到输出时
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String tag;
+        final String msg;
+
+        Record(Level level, String tag, String msg) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+        }
+    }
 
     public static void i(Object tag, String msg) {
-        if (!debug) return;
-        print("INFO ", tag, msg);
+        log(Level.INFO, tag, msg);
+    }
+
+    public static void i(Object tag, Supplier<String> msg) {
+        log(Level.INFO, tag, msg);
     }
 
     public static void d(Object tag, String msg) {
-        if (!debug) return;
-        print("DEBUG", tag, msg);
+        log(Level.DEBUG, tag, msg);
+    }
+
+    public static void d(Object tag, Supplier<String> msg) {
+        log(Level.DEBUG, tag, msg);
     }
 
     public static void w(Object tag, String msg) {
-        if (!debug) return;
-        print("WARN ", tag, msg);
+        log(Level.WARN, tag, msg);
+    }
+
+    public static void w(Object tag, Supplier<String> msg) {
+        log(Level.WARN, tag, msg);
     }
 
     public static void e(Object tag, String msg) {
-        if (!debug) return;
-        print("ERROR", tag, msg);
+        log(Level.ERROR, tag, msg);
+    }
+
+    public static void e(Object tag, Supplier<String> msg) {
+        log(Level.ERROR, tag, msg);
     }
 
     public static void l() {
-        if (!debug) return;
-        System.out.println(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
+        if (!isLoggable(Level.DEBUG, null)) return;
+        write(new Record(Level.DEBUG, null, ">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>"));
+    }
+
+    private static void log(Level level, Object tagObj, String msg) {
+        if (level.ordinal() < minLevel) return;
+        String tag = tagOf(tagObj);
+        if (!isLoggable(level, tag)) return;
+        write(new Record(level, tag, msg));
+    }
+
+    private static void log(Level level, Object tagObj, Supplier<String> msg) {
+        if (level.ordinal() < minLevel) return;
+        String tag = tagOf(tagObj);
+        if (!isLoggable(level, tag)) return;
+        // 消息在调用线程中生成，Supplier中使用的对象之后被修改也不会影响日志
+        write(new Record(level, tag, msg.get()));
+    }
+
+    private static String format(Record record) {
+        // 没有tag的是分隔线
+        if (record.tag == null) return record.msg;
+        return format.format(Instant.ofEpochMilli(record.time)) + "\t" + label(record.level) + " ----- " + record.tag + " : " + record.msg;
+    }
+
+    private static String label(Level level) {
+        switch (level) {
+            case INFO:
+                return "INFO ";
+            case WARN:
+                return "WARN ";
+            default:
+                return level.name();
+        }
+    }
+
+    private static String tagOf(Object tagObj) {
+        if (tagObj == null) return "DEFAULT-TAG";
+        if (tagObj instanceof String) return (String) tagObj;
+        Class<?> type = tagObj instanceof Class ? (Class<?>) tagObj : tagObj.getClass();
+        String name = type.getSimpleName();
+        return name.isEmpty() ? type.getName() : name;
+    }
+
+    private static void write(Record record) {
+        if (async) {
+            AsyncAppender<Record> appender = Log.appender;
+            if (appender == null) appender = startAppender();
+            appender.append(record);
+        } else {
+            System.out.println(format(record));
+        }
+    }
+
+    private static synchronized AsyncAppender<Record> startAppender() {
+        if (appender == null) {
+            appender = new AsyncAppender<>(Log::format);
+            // 退出JVM时打印完缓冲区中的日志，之后的日志直接打印
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> setAsync(false), "clap-log-flush"));
+        }
+        return appender;
+    }
+
+    /**
+     * @param level 日志级别
+     * @param tag   日志的tag，可以是字符串、类或者对象，规则和打印日志时一致
+     * @return 这个级别的日志是否会被打印，用于跳过只为打印日志而进行的计算
+     */
+    public static boolean isLoggable(Level level, Object tag) {
+        if (level == Level.OFF || level.ordinal() < minLevel) return false;
+        Level tagLevel = tagLevels.isEmpty() || tag == null ? null : tagLevels.get(tagOf(tag));
+        return level.compareTo(tagLevel != null ? tagLevel : defaultLevel) >= 0;
     }
 
-    private static void print(String level, Object tagObj, String msg) {
-        String tag = "DEFAULT-TAG";
-        if (tagObj instanceof String) {
-            tag = (String) tagObj;
-        } else if (!(tagObj instanceof Class)) {
-            tag = tagObj.getClass().getSimpleName();
+    /**
+     * 设置默认的日志级别，单独设置了级别的tag不受影响。
+     */
+    public static synchronized void setLevel(Level level) {
+        assert level != null;
+        defaultLevel = level;
+        updateMinLevel();
+    }
+
+    /**
+     * 单独设置一个tag的日志级别。
+     *
+     * @param tag   日志的tag，类和对象使用类名
+     * @param level 日志级别，为null时恢复使用默认的级别
+     */
+    public static synchronized void setLevel(String tag, Level level) {
+        if (level == null) {
+            tagLevels.remove(tag);
+        } else {
+            tagLevels.put(tag, level);
         }
-        System.out.printf("%s\t%s ----- %s : %s\n", format.format(new Date()), level, tag, msg);
+        updateMinLevel();
+    }
+
+    public static Level getLevel() {
+        return defaultLevel;
+    }
+
+    private static void updateMinLevel() {
+        int min = defaultLevel.ordinal();
+        for (Level level : tagLevels.values()) {
+            min = Math.min(min, level.ordinal());
+        }
+        minLevel = min;
+    }
+
+    /**
+     * 打开或者关闭所有日志，打开时包括调试日志，关闭时不打印任何日志。
+     *
+     * @param debug 是否打印日志
+     */
+    public static synchronized void debug(boolean debug) {
+        setLevel(debug ? Level.DEBUG : Level.OFF);
+    }
+
+    /**
+     * 设置是否异步打印日志，切换到同步打印时会先打印完缓冲区中的日志。
+     */
+    public static void setAsync(boolean async) {
+        Log.async = async;
+        if (!async) flush();
     }
 
-    public static void debug(boolean debug) {
-        Log.debug = debug;
+    /**
+     * 等待缓冲区中的日志打印完成。
+     */
+    public static void flush() {
+        AsyncAppender<Record> appender = Log.appender;
+        if (appender != null) appender.flush(1000);
     }
 }
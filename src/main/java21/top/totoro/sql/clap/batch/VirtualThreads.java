@@ -0,0 +1,28 @@
+package top.totoro.sql.clap.batch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程的支持。
+ * 这是JDK 21以上的版本，编译到multi-release jar的META-INF/versions/21下。
+ */
+public class VirtualThreads {
+
+    /**
+     * @return 当前运行环境是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * 创建一个为每个任务启动一个虚拟线程的执行服务。
+     *
+     * @param name 线程名称的前缀
+     * @return 虚拟线程的执行服务
+     */
+    public static ExecutorService newExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 1).factory());
+    }
+}